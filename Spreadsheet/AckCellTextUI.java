@@ -2,6 +2,7 @@
 
 import java.util.*;
 import java.io.*;
+import java.nio.file.*;
 
 
 public class AckCellTextUI{
@@ -18,8 +19,16 @@ public class AckCellTextUI{
 
   }
 
-  private static String slurp(String fname) throws Exception{
-    return new Scanner(new File(fname), "UTF-8").useDelimiter("\\Z").next();
+  // Load either a binary snapshot or a file in the text save format,
+  // streaming it rather than reading it into one string.
+  private static Spreadsheet loadSheet(String fname) throws Exception{
+    Path path = Paths.get(fname);
+    if (SheetSnapshot.isSnapshot(path)){
+      return SheetSnapshot.load(path);
+    }
+    try (BufferedReader in = Files.newBufferedReader(path)){
+      return Spreadsheet.readSaveText(in);
+    }
   }
 
   public static void echo(String s){
@@ -38,6 +47,7 @@ public class AckCellTextUI{
     System.out.println("delete id       :  Delete contents cell with given id");
     System.out.println("save filename   :  Save the current sheet to named file");
     System.out.println("load filename   :  Discard the current sheet and load from the named file");
+    System.out.println("stats           :  Show formula and recalculation counts");
     System.out.println("quit            :  Quit program");
     System.out.println();
 
@@ -78,10 +88,7 @@ public class AckCellTextUI{
         echo(String.format("%s %s",command,filename));
         System.out.printf("Saving sheet to '%s' filename... ",filename);
         try{
-          PrintWriter out = new PrintWriter(new File(filename));
-          String saveString = sheet.toSaveString();
-          out.print(saveString);
-          out.close();
+          SheetSnapshot.save(sheet, Paths.get(filename));
           System.out.printf("done.\n");
         }
         catch(Exception e){
@@ -93,14 +100,18 @@ public class AckCellTextUI{
         echo(String.format("%s %s",command,filename));
         System.out.printf("Loading sheet to '%s' filename... ",filename);
         try{
-          String saveString = slurp(filename);
-          sheet = Spreadsheet.fromSaveString(saveString);
+          sheet = loadSheet(filename);
           System.out.printf("done.\n");
         }
         catch(Exception e){
           System.out.printf("\nCould not load sheet: %s\n",e.getMessage());
         }
       }
+      else if(command.equals("stats")){
+        echo(command);
+        System.out.println(sheet.formulaReport());
+        System.out.println(sheet.recalcReport());
+      }
       else{
         echo(String.format("%s",command));
         System.out.printf("Unrecognized command '%s'\n",command);
@@ -2,16 +2,31 @@ import java.util.*;
 public class Cell {
 // Spreadsheet Cells can be one of three different kinds:
 
+  // Kind codes, also used as is by SheetSnapshot.
+  public static final byte NUMBER = 0, STRING = 1, FORMULA = 2;
+  protected static final String[] KIND_NAMES = {"number", "string", "formula"};
+
   protected String contents;   
-  // The actual contents of the cell.
+  // The actual contents of the cell. Null for a number cell whose
+  // contents are exactly what numberText gives for its value, which
+  // is most of them, so a number costs no string.
 
-  protected Double numberValue;  
-  // Value if cell contains a number or value of evaluated formula. 
+  protected double value;  
+  // Value if cell contains a number or value of evaluated formula.
+  // Only meaningful when hasNumber() is true.
   
   protected FNode formulaTree;    
   // Root of the parsed formula tree if kind() is "formula". Null o/w.
-  private String kind; // either string, formula, or number
-  private boolean error; // indicates if formula is error
+
+  protected Formula compiled;
+  // Flattened form of formulaTree used for evaluation. Null o/w.
+  protected byte kind; // NUMBER, STRING or FORMULA
+  protected boolean error; // indicates if formula is error
+  protected boolean dirty; // value is stale in a lazy spreadsheet
+  protected boolean pooled; // formulaTree belongs to a FormulaPool
+  // A cell is one object of primitive fields and a few references:
+  // reading a value never allocates and a number cell holds nothing
+  // else.
  
   // Factory method to create cells with the given contents linked to
   // the given spreadsheet.
@@ -20,39 +35,162 @@ public class Cell {
     Cell c =  new Cell();
     c.error = false;
     c.contents = contents.trim();
-    c.numberValue = 0.0;
     
     // if contents represents a formula, change the fields accordingly
     if (contents.contains("=")){
-      c.kind = "formula";
+      c.kind = FORMULA;
       c.error = true;
-      c.numberValue = null;
-      c.formulaTree = FNode.parseFormulaString(contents);
+      FNode parsed = FNode.parseFormulaString(contents);
+      c.formulaTree = FormulaPool.simplify(parsed);
+      c.compiled = Formula.compile(c.formulaTree);
+      c.compiled.sourceNodes = FormulaPool.size(parsed);
     }
     else{
-      // if there isn't an exception then it's a number, otherwise it's a string
-      // changes kind and numberValue accordingly
-      try{
-        c.numberValue = Double.parseDouble(contents);
-        c.kind = "number";
-      }catch(Exception e){
-        c.kind = "string";
-        c.numberValue = null;
+      // scan the contents first so text never costs an exception;
+      // changes kind and value accordingly
+      if (isNumber(contents)){
+        c.value = Double.parseDouble(contents);
+        c.kind = NUMBER;
+        if (c.contents.equals(numberText(c.value))){
+          c.contents = null;
+        }
+      }
+      else{
+        c.kind = STRING;
       }
     }
     return c;
   }
+
+  // Return the usual way of writing a number: without a fraction if it
+  // is a whole number of reasonable size, as Double.toString o/w.
+  public static String numberText(double value){
+    if (value == Math.rint(value) && Math.abs(value) < 1e15){
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  // Return whether Double.parseDouble accepts the string, without
+  // calling it. Decimal numbers, NaN and Infinity are scanned here;
+  // the rare hexadecimal form is handed to parseDouble itself.
+  // Runtime Complexity: O(n)
+  //   n: the length of the string
+  public static boolean isNumber(String s){
+    int i = 0, end = s.length();
+    // parseDouble ignores the same characters String.trim does
+    while (i < end && s.charAt(i) <= ' '){
+      i++;
+    }
+    while (end > i && s.charAt(end - 1) <= ' '){
+      end--;
+    }
+    if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')){
+      i++;
+    }
+    if (i == end){
+      return false;
+    }
+    char first = s.charAt(i);
+    if (first == 'N' || first == 'I'){
+      String word = s.substring(i, end);
+      return word.equals("NaN") || word.equals("Infinity");
+    }
+    if (first == '0' && i + 1 < end && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')){
+      try{
+        Double.parseDouble(s);
+        return true;
+      }
+      catch(NumberFormatException e){
+        return false;
+      }
+    }
+    // an optional type suffix may follow the number
+    char last = s.charAt(end - 1);
+    if (last == 'd' || last == 'D' || last == 'f' || last == 'F'){
+      end--;
+    }
+    int digits = 0;
+    while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'){
+      i++;
+      digits++;
+    }
+    if (i < end && s.charAt(i) == '.'){
+      i++;
+      while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'){
+        i++;
+        digits++;
+      }
+    }
+    if (digits == 0){
+      return false;
+    }
+    if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')){
+      i++;
+      if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')){
+        i++;
+      }
+      int expDigits = 0;
+      while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'){
+        i++;
+        expDigits++;
+      }
+      if (expDigits == 0){
+        return false;
+      }
+    }
+    return i == end;
+  }
   
+  // Recreate a cell saved by SheetSnapshot with its value already
+  // known. A formula is only parsed when the cell is next evaluated
+  // or its references are asked for, so loading a sheet does no
+  // parsing at all.
+  public static Cell restore(String contents, byte kind, double value, boolean error){
+    Cell c = new Cell();
+    c.contents = contents;
+    c.kind = kind;
+    c.value = value;
+    c.error = error;
+    if (kind == NUMBER && contents.equals(numberText(value))){
+      c.contents = null;
+    }
+    return c;
+  }
+
+  // Return the compiled formula, parsing the contents first if the
+  // cell was restored from a snapshot. Null for non-formula cells.
+  protected Formula compiled(){
+    if (compiled == null && kind == FORMULA){
+      FNode parsed = FNode.parseFormulaString(contents);
+      formulaTree = FormulaPool.simplify(parsed);
+      compiled = Formula.compile(formulaTree);
+      compiled.sourceNodes = FormulaPool.size(parsed);
+    }
+    return compiled;
+  }
+
+  // Return the formula tree, null for non-formula cells.
+  public FNode tree(){
+    compiled();
+    return formulaTree;
+  }
+
   // Return the kind of the cell which is one of "string", "number",
   // or "formula".
   public String kind(){
+    return KIND_NAMES[kind];
+  }
+
+  // Return the kind of the cell as one of NUMBER, STRING or FORMULA.
+  public byte kindCode(){
     return kind;
   }
 
   // Return the raw contents of the cell.
   // Runtime Complexity: O(1)
   public String contents(){
-    return contents;
+    return contents != null ? contents : numberText(value);
   }
 
   // Returns whether the cell is ansently in an error state.
@@ -64,7 +202,7 @@ public class Cell {
   // Runtime Complexity: O(1)
   public String displayString(){
     // returns original content for string
-    if(kind.equals("string")){
+    if(kind == STRING){
       return contents;
     }
     // if it's in error state then return error
@@ -73,19 +211,29 @@ public class Cell {
     }
     // whether or not it's formula or number return numeric value
     else{
-      return String.format("%.1f", numberValue);
+      return String.format("%.1f", value);
     }
   }
 
+  // Return whether the cell has a numeric value, as numberValue() !=
+  // null does.
+  public boolean hasNumber(){
+    return !error && kind != STRING;
+  }
+
+  // Return the numeric value of this cell without boxing it. Only
+  // meaningful when hasNumber() is true.
+  // Runtime Complexity: O(1)
+  public double value(){
+    return value;
+  }
+
   // Return the numeric value of this cell.
   // Runtime Complexity: O(1)
   public Double numberValue(){
     // if formula has error then return null
-    if(error == true){
-      return null;
-    }
     // will return null even for strings, or the numberic value otherwise
-    return numberValue;
+    return hasNumber() ? value : null;
   }
 
   // Update the value of the cell value. 
@@ -96,13 +244,15 @@ public class Cell {
   public void updateValue(Map<String,Cell> cellMap){
     // change error to false bc we're calculating the value
     error = false;
-    // if it's a formula then call evalFormulaTree to get value
-    if(kind.equals("formula")){ 
-      try{
-        numberValue = evalFormulaTree(formulaTree, cellMap);
-      }
+    // if it's a formula then run the compiled formula to get value
+    if(kind == FORMULA){ 
+      Formula f = compiled();
+      double result = f.tryEvaluate(cellMap);
       // if value can't be calculated then it's still in error state
-      catch(EvalFormulaException e){
+      if(f.status() == Formula.OK){
+        value = result;
+      }
+      else{
         error = true;
       }
     }
@@ -117,35 +267,53 @@ public class Cell {
   }
 
   // Recursively evaluate the formula tree formulaTreeed at the given
-  // node.
+  // node. Throws EvalFormulaException if a referenced cell is missing
+  // or has no numeric value.
   // Runtime Complexity: O(T) 
   //   T: the number of nodes in the formula tree
   public static Double evalFormulaTree(FNode node, Map<String,Cell> cellMap){
+    int[] status = new int[1];
+    double ans = evalTree(node, cellMap, status);
+    if(status[0] != Formula.OK){
+      throw new EvalFormulaException(Formula.STATUS_MESSAGES[status[0]]);
+    }
+    return ans;
+  }
+
+  // Evaluate the tree as evalFormulaTree does, but report an error by
+  // setting status[0] to one of the Formula status codes rather than
+  // throwing. Evaluation stops at the first error.
+  // Runtime Complexity: O(T)
+  protected static double evalTree(FNode node, Map<String,Cell> cellMap, int[] status){
+    // once in error the value no longer matters
+    if(status[0] != Formula.OK){
+      return 0.0;
+    }
     // declare variable that will be answer
     double ans = 0.0;  
     // if it's a plus then add left and right
     if(node.type == TokenType.Plus){
-      ans = evalFormulaTree(node.left, cellMap);
-      ans += evalFormulaTree(node.right, cellMap);
+      ans = evalTree(node.left, cellMap, status);
+      ans += evalTree(node.right, cellMap, status);
     }
     // if minus then subtract right from left
     else if(node.type == TokenType.Minus){
-      ans = evalFormulaTree(node.left, cellMap);
-      ans -= evalFormulaTree(node.right, cellMap);
+      ans = evalTree(node.left, cellMap, status);
+      ans -= evalTree(node.right, cellMap, status);
     }
     // if multiply then multiply left and right
     else if(node.type == TokenType.Multiply){
-      ans = evalFormulaTree(node.right, cellMap);
-      ans *= evalFormulaTree(node.left, cellMap);
+      ans = evalTree(node.right, cellMap, status);
+      ans *= evalTree(node.left, cellMap, status);
     }
     // if divide then divide left by right
     else if(node.type == TokenType.Divide){
-      ans = evalFormulaTree(node.left, cellMap);
-      ans /= evalFormulaTree(node.right, cellMap);
+      ans = evalTree(node.left, cellMap, status);
+      ans /= evalTree(node.right, cellMap, status);
     }
     // if negate then make negative
     else if(node.type == TokenType.Negate){
-      ans -= evalFormulaTree(node.left, cellMap);
+      ans -= evalTree(node.left, cellMap, status);
     }
     // if number then make it the number
     else if(node.type == TokenType.Number){
@@ -153,30 +321,51 @@ public class Cell {
     }
     // if cell ID then try to get number val of it
     else if(node.type == TokenType.CellID){
-      if(cellMap.containsKey(node.data)){
-        // check if the cell ID is usable 
-        if(cellMap.get(node.data).numberValue() == null){
-          throw new EvalFormulaException("Invalid");      
-        }
-        ans = cellMap.get(node.data).numberValue();      
+      Cell cell = cellMap.get(node.data);
+      // if id isn't in cellMap then it can't be found
+      if(cell == null){
+        status[0] = Formula.MISSING_REF;
+      }
+      // check if the cell ID is usable 
+      else if(!cell.hasNumber()){
+        status[0] = Formula.INVALID_REF;
       }
-      // if id isn't in cellMap then throw exception
       else{
-        throw new EvalFormulaException("Can't find");
+        ans = cell.value;
       }
-    // tokentype doesn't exist
     }
+    // if function then aggregate its range cell by cell
+    else if(node.type == TokenType.Function){
+      int func = RangeIndex.functionCode(node.data);
+      RangeIndex.Totals t = RangeIndex.totals(cellMap, RangeIndex.Range.parse(node.left.data));
+      if(t.failed(func)){
+        status[0] = Formula.RANGE_ERROR;
+      }
+      else{
+        ans = t.value(func);
+      }
+    }
+    // tokentype doesn't exist
     else{
       throw new RuntimeException("Error with TokenType '" + node.type + "'");
     } 
     return ans;
   }
 
+  // Return the canonical IDs of the ranges this cell aggregates.
+  public String[] getRangeIDs(){
+    return compiled() == null ? new String[0] : compiled.rangeNames();
+  }
+
   // Return a set of upstream cells from this cell.
   public Set<String> getUpstreamIDs(){
     Set<String> set = new HashSet<String>();
-    // call helper method, throw in empty set
-    getAllCellIDsRecur(formulaTree, set);
+    // the compiled formula already lists each reference once; a range
+    // is linked as a single node named by its canonical ID
+    if(compiled() != null){
+      Collections.addAll(set, compiled.refs());
+      Collections.addAll(set, compiled.rangeNames());
+    }
     return set;
   }
 
@@ -0,0 +1,87 @@
+// Codec between cell IDs such as "ZD11" and packed long addresses.
+// The column letters are read as a bijective base 26 number (A=1,
+// Z=26, AA=27, ...) and stored in the high 32 bits; the row number is
+// stored in the low 32 bits. IDs are decoded once at the boundary so
+// the sheet and formulas can work with primitive keys afterwards.
+public class CellAddress {
+  // Returned by encode for IDs which are not well formed or whose
+  // column or row does not fit in an int.
+  public static final long NONE = -1L;
+
+  // Determine if id has the form of letters followed by a row number
+  // without leading zeros, such as "A1" or "ZD11".
+  // Runtime Complexity: O(S)
+  //   S: the length of id
+  public static boolean isWellFormed(String id){
+    int n = id.length();
+    int i = 0;
+    while (i < n && id.charAt(i) >= 'A' && id.charAt(i) <= 'Z'){
+      i++;
+    }
+    // need at least one letter and a first digit of 1-9
+    if (i == 0 || i == n || id.charAt(i) < '1' || id.charAt(i) > '9'){
+      return false;
+    }
+    for (i++; i < n; i++){
+      if (id.charAt(i) < '0' || id.charAt(i) > '9'){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Return the packed address of id or NONE.
+  // Runtime Complexity: O(S)
+  public static long encode(String id){
+    if (!isWellFormed(id)){
+      return NONE;
+    }
+    long col = 0;
+    int i = 0;
+    for (; id.charAt(i) >= 'A'; i++){
+      col = col * 26 + (id.charAt(i) - 'A' + 1);
+      if (col > Integer.MAX_VALUE){
+        return NONE;
+      }
+    }
+    long row = 0;
+    for (; i < id.length(); i++){
+      row = row * 10 + (id.charAt(i) - '0');
+      if (row > Integer.MAX_VALUE){
+        return NONE;
+      }
+    }
+    return pack((int) col, (int) row);
+  }
+
+  // Combine a 1-based column and row into an address.
+  public static long pack(int col, int row){
+    return ((long) col << 32) | (row & 0xFFFFFFFFL);
+  }
+
+  // Column of an address, 1-based.
+  public static int column(long addr){
+    return (int) (addr >>> 32);
+  }
+
+  // Row of an address, 1-based.
+  public static int row(long addr){
+    return (int) addr;
+  }
+
+  // Return the letters naming the given 1-based column.
+  public static String columnName(int col){
+    StringBuilder sb = new StringBuilder();
+    while (col > 0){
+      col--;
+      sb.append((char) ('A' + col % 26));
+      col /= 26;
+    }
+    return sb.reverse().toString();
+  }
+
+  // Return the cell ID for an address.
+  public static String decode(long addr){
+    return columnName(column(addr)) + row(addr);
+  }
+}
@@ -0,0 +1,72 @@
+// Tests of CellAddress, LongMap and PackedCellStore
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class CellAddressTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("CellAddressTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(1000); 
+
+  @Test public void address_roundtrip(){
+    String [] ids = {"A1","Z9","AA10","ZD11","BB8","CX5","XFD1048576"};
+    for(String id : ids){
+      long addr = CellAddress.encode(id);
+      assertTrue(id, addr != CellAddress.NONE);
+      assertEquals(id, CellAddress.decode(addr));
+    }
+    assertEquals(26, CellAddress.column(CellAddress.encode("Z3")));
+    assertEquals(27, CellAddress.column(CellAddress.encode("AA3")));
+    assertEquals(3,  CellAddress.row(CellAddress.encode("AA3")));
+  }
+  @Test public void address_bad(){
+    String [] ids = {"","A","1","A0","A01","a1","A1B","A_1","hello","Ack!","A99999999999"};
+    for(String id : ids){
+      assertEquals(id, CellAddress.NONE, CellAddress.encode(id));
+    }
+    assertFalse(CellAddress.isWellFormed("A01"));
+    assertTrue(CellAddress.isWellFormed("A10"));
+  }
+
+  // Insert and remove many keys checking against a HashMap
+  @Test public void longmap_churn(){
+    LongMap<String> map = new LongMap<String>();
+    Map<Long,String> expect = new HashMap<Long,String>();
+    Random rand = new Random(310);
+    for(int i=0; i<20000; i++){
+      long key = 1 + rand.nextInt(500);
+      if(rand.nextBoolean()){
+        assertEquals(expect.put(key, "v"+i), map.put(key, "v"+i));
+      }
+      else{
+        assertEquals(expect.remove(key), map.remove(key));
+      }
+      assertEquals(expect.size(), map.size());
+    }
+    for(long key=1; key<=500; key++){
+      assertEquals(expect.get(key), map.get(key));
+    }
+  }
+
+  @Test public void cellstore_basic(){
+    CellStore store = new PackedCellStore();
+    store.put("A1", Cell.make("1"));
+    store.put("A_B1", Cell.make("2"));
+    assertEquals(2, store.size());
+    assertEquals("1", store.get("A1").contents());
+    assertEquals("2", store.get("A_B1").contents());
+    assertEquals("1", store.getAt(CellAddress.encode("A1")).contents());
+    assertEquals(new HashSet<String>(Arrays.asList("A1","A_B1")), store.keySet());
+    store.remove("A1");
+    assertFalse(store.containsKey("A1"));
+    assertEquals(1, store.size());
+  }
+}
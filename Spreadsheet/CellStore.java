@@ -0,0 +1,27 @@
+import java.util.*;
+
+// Map from cell IDs to cells which can also be probed by packed
+// CellAddress, as formulas do with the addresses they decoded when
+// compiled. PackedCellStore keeps a plain sheet's cells and
+// ConcurrentCellStore those of a ConcurrentSpreadsheet.
+public interface CellStore extends Map<String, Cell> {
+  // Return the cell at a packed address or null.
+  Cell getAt(long addr);
+
+  // Return the packed addresses of the stored cells with well formed
+  // IDs.
+  long[] addresses();
+
+  // Return the aggregates over ranges of this store, used by formulas
+  // when set, or null.
+  RangeIndex ranges();
+
+  void setRanges(RangeIndex ranges);
+
+  // Return the epoch, which the owning sheet advances whenever it
+  // links or unlinks a cell, so a value remembered at one epoch is
+  // current until the next.
+  long epoch();
+
+  void advanceEpoch();
+}
@@ -232,6 +232,46 @@ public class CellTests {
     assertEquals((Double) (-15.0), result);
   }
 
+  // Compiled formulas must agree with the tree evaluation
+  @Test public void formula_compiled1(){
+    FNode root = FNode.parseFormulaString("= -( 5 + 8 / 4 * (7+1) - 1) + 5");
+    Formula f = Formula.compile(root);
+    assertEquals(0, f.refs().length);
+    assertEquals((Double) (-15.0), (Double) f.evaluate(cellMap()));
+  }
+  @Test public void formula_compiled2(){
+    FNode root = FNode.parseFormulaString("=(100 + A2) - 10 / (CX5 * BB8) + A2");
+    Map<String,Cell> cellMap = cellMap("BB8","-0.5","A2","200.0","CX5","10");
+    Formula f = Formula.compile(root);
+    assertEquals(3, f.refs().length);
+    assertEquals(Cell.evalFormulaTree(root,cellMap), (Double) f.evaluate(cellMap));
+  }
+  @Test(timeout=1000,expected=Cell.EvalFormulaException.class)
+  public void formula_compiled_exception1(){
+    Formula f = Formula.compile(FNode.parseFormulaString("=2 * (20 + CX5)"));
+    f.evaluate(cellMap("A1","2.0"));
+  }
+
+  @Test public void formula_jit1(){
+    int old = FormulaJit.getThreshold();
+    try{
+      FormulaJit.setThreshold(2);
+      long before = FormulaJit.compiledCount();
+      FNode root = FNode.parseFormulaString("=-(100 + A2) - 10 / (CX5 * BB8)");
+      Map<String,Cell> cellMap = cellMap("BB8","-0.5","A2","200.0","CX5","10");
+      Formula f = Formula.compile(root);
+      Double expect = Cell.evalFormulaTree(root,cellMap);
+      for(int i=0; i<5; i++){
+        assertEquals(expect, (Double) f.evaluate(cellMap));
+      }
+      assertNotNull(f.jitted);
+      assertEquals(before+1, FormulaJit.compiledCount());
+    }
+    finally{
+      FormulaJit.setThreshold(old);
+    }
+  }
+
   // Evaluate formulas with missing references which should raise a
   // Cell.EvalFormulaException
   @Test(timeout=1000,expected=Cell.EvalFormulaException.class)
@@ -691,4 +731,53 @@ public class CellTests {
     assertEquals(false        ,cell.isError());
   }
 
+  // The number scanner agrees with Double.parseDouble
+  @Test public void isNumber1(){
+    String[] inputs = {"1", "-5.23", " 1  ", "+.5", "5.", ".", "-", "", "  ",
+                       "1e5", "1E-3", "2.5e+10", "1e", "1e+", ".e5", "3f", "3D",
+                       "3.0dd", "NaN", "-Infinity", "Infinityx", "nan", "0x1p3",
+                       "0x1", "0xg", "1 2", "12a", "a12", "--1", "1..2", "\u0661\u0662"};
+    for(String in : inputs){
+      boolean expect;
+      try{
+        Double.parseDouble(in);
+        expect = true;
+      }
+      catch(NumberFormatException e){
+        expect = false;
+      }
+      assertEquals(in, expect, Cell.isNumber(in));
+    }
+  }
+
+  // tryEvaluate reports errors as a status instead of throwing
+  @Test public void formula_try_evaluate1(){
+    Formula f = Formula.compile(FNode.parseFormulaString("=2 * (20 + CX5)"));
+    f.tryEvaluate(cellMap("A1","2.0"));
+    assertEquals(Formula.MISSING_REF, f.status());
+    f.tryEvaluate(cellMap("CX5","text"));
+    assertEquals(Formula.INVALID_REF, f.status());
+    assertEquals(44.0, f.tryEvaluate(cellMap("CX5","2")), 0.0);
+    assertEquals(Formula.OK, f.status());
+    Formula g = Formula.compile(FNode.parseFormulaString("=AVG(A1:A3)"));
+    g.tryEvaluate(cellMap("B1","2.0"));
+    assertEquals(Formula.RANGE_ERROR, g.status());
+  }
+
+  // Number cells keep their exact contents whether or not they store
+  // the text
+  @Test public void number_contents1(){
+    String[] inputs = {"1", "1.0", "007", "-0", "0", "1e3", "2.5", "-17",
+                       "123456789012345678", "0.1", "+4", "NaN"};
+    for(String in : inputs){
+      Cell cell = Cell.make(in);
+      assertEquals("number", cell.kind());
+      assertEquals(in, cell.contents());
+      assertEquals(Double.parseDouble(in), cell.value(), 0.0);
+    }
+    assertNull(Cell.make("42").contents);
+    assertNull(Cell.make(" 2.5 ").contents);
+    assertEquals("2.5", Cell.make(" 2.5 ").contents());
+  }
+
 }
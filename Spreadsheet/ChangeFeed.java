@@ -0,0 +1,328 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Tells listeners which cells each edit changed, so clients watching a
+// few thousand cells need not poll them. A listener subscribes to the
+// whole sheet, one cell or a range, and after every edit and the
+// recalculation it causes, the new state of each changed cell it
+// watches is queued for it and delivered on an executor rather than
+// the editing thread.
+//
+// Every subscription has its own queue holding at most one change per
+// cell: a cell changing again before its last change was delivered
+// just replaces it. The queue can therefore never outgrow the cells
+// the listener watches, and a listener that falls behind gets fewer,
+// larger batches of the latest values rather than holding up edits or
+// piling up work. Each call hands over at most BATCH changes, and one
+// subscription's calls never overlap.
+public class ChangeFeed {
+  public static final int BATCH = 1024;
+
+  public interface Listener {
+    // Called with changes not yet delivered, in the order the cells
+    // first changed since the last call.
+    void cellsChanged(List<Change> changes);
+  }
+
+  // The state of one cell after an edit.
+  public static class Change {
+    public final String id;
+    public final String display;
+    public final Double value;
+    // The cell's ID, its display string, "" once deleted, and its
+    // number value, null for text, errors and deleted cells.
+
+    public Change(String id, String display, Double value){
+      this.id = id;
+      this.display = display;
+      this.value = value;
+    }
+
+    public String toString(){
+      return id + "=" + display;
+    }
+  }
+
+  protected volatile Executor executor;
+  protected final List<Subscription> global;
+  protected final Map<String, List<Subscription>> byCell;
+  protected final Map<Integer, List<Subscription>> byColumn;
+  protected int count;
+  // Executor deliveries run on, and the live subscriptions to the
+  // whole sheet, to each cell and to ranges over each column.
+
+  // Construct a feed delivering on the given executor, or on one
+  // daemon thread of its own if null.
+  public ChangeFeed(Executor executor){
+    this.executor = executor != null ? executor : newExecutor();
+    this.global = new ArrayList<Subscription>();
+    this.byCell = new HashMap<String, List<Subscription>>();
+    this.byColumn = new HashMap<Integer, List<Subscription>>();
+  }
+
+  protected static Executor newExecutor(){
+    return Executors.newSingleThreadExecutor(new ThreadFactory(){
+      public Thread newThread(Runnable r){
+        Thread thread = new Thread(r, "sheet-changes");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  // Deliver on the given executor from now on.
+  public void setExecutor(Executor executor){
+    this.executor = executor;
+  }
+
+  // A listener's interest in part of the sheet and its queue of
+  // undelivered changes.
+  public class Subscription implements Runnable {
+    protected final Listener listener;
+    protected final String cell;
+    protected final RangeIndex.Range range;
+    // What is watched: one cell, a range, or with both null the whole
+    // sheet.
+
+    protected final LinkedHashMap<String, Change> pending;
+    protected boolean scheduled, cancelled;
+    protected long delivered, replaced, failures;
+    // Undelivered changes by cell, whether a delivery is queued on the
+    // executor, and counts of changes delivered, changes replaced by a
+    // later one before delivery, and calls which threw.
+
+    protected Subscription(Listener listener, String cell, RangeIndex.Range range){
+      this.listener = listener;
+      this.cell = cell;
+      this.range = range;
+      this.pending = new LinkedHashMap<String, Change>();
+    }
+
+    // Queue a change, replacing any undelivered one of the same cell.
+    // Returns whether a delivery needs scheduling.
+    protected synchronized boolean add(Change change){
+      if (cancelled){
+        return false;
+      }
+      if (pending.put(change.id, change) != null){
+        replaced++;
+      }
+      if (scheduled){
+        return false;
+      }
+      scheduled = true;
+      return true;
+    }
+
+    // Deliver one batch, then schedule the next if more are waiting,
+    // so a busy subscription shares the executor with the others.
+    public void run(){
+      List<Change> batch;
+      synchronized (this){
+        if (cancelled || pending.isEmpty()){
+          scheduled = false;
+          return;
+        }
+        batch = new ArrayList<Change>(Math.min(BATCH, pending.size()));
+        Iterator<Change> it = pending.values().iterator();
+        while (it.hasNext() && batch.size() < BATCH){
+          batch.add(it.next());
+          it.remove();
+        }
+      }
+      try{
+        listener.cellsChanged(batch);
+      }
+      catch(RuntimeException e){
+        synchronized (this){
+          failures++;
+        }
+      }
+      synchronized (this){
+        delivered += batch.size();
+        if (cancelled || pending.isEmpty()){
+          scheduled = false;
+          return;
+        }
+      }
+      executor.execute(this);
+    }
+
+    // Stop delivering to the listener. Changes not yet delivered are
+    // dropped.
+    public void cancel(){
+      synchronized (this){
+        cancelled = true;
+        pending.clear();
+      }
+      remove(this);
+    }
+
+    // Return the number of changes waiting to be delivered.
+    public synchronized int backlog(){
+      return pending.size();
+    }
+
+    // Return the number of changes delivered so far.
+    public synchronized long deliveredCount(){
+      return delivered;
+    }
+
+    // Return the number of changes replaced by a later change of the
+    // same cell before they were delivered.
+    public synchronized long replacedCount(){
+      return replaced;
+    }
+
+    // Return the number of calls to the listener which threw.
+    public synchronized long failureCount(){
+      return failures;
+    }
+  }
+
+  // Subscribe to every cell.
+  public synchronized Subscription subscribe(Listener listener){
+    Subscription s = new Subscription(listener, null, null);
+    global.add(s);
+    count++;
+    return s;
+  }
+
+  // Subscribe to the cell with the given ID.
+  public synchronized Subscription subscribeCell(String id, Listener listener){
+    Subscription s = new Subscription(listener, id, null);
+    List<Subscription> list = byCell.get(id);
+    if (list == null){
+      list = new ArrayList<Subscription>();
+      byCell.put(id, list);
+    }
+    list.add(s);
+    count++;
+    return s;
+  }
+
+  // Subscribe to every cell in the given range.
+  public synchronized Subscription subscribeRange(RangeIndex.Range range, Listener listener){
+    Subscription s = new Subscription(listener, null, range);
+    for (int col = range.col1; col <= range.col2; col++){
+      List<Subscription> list = byColumn.get(col);
+      if (list == null){
+        list = new ArrayList<Subscription>();
+        byColumn.put(col, list);
+      }
+      list.add(s);
+    }
+    count++;
+    return s;
+  }
+
+  // Forget a cancelled subscription.
+  protected synchronized void remove(Subscription s){
+    if (s.range != null){
+      boolean found = false;
+      for (int col = s.range.col1; col <= s.range.col2; col++){
+        List<Subscription> list = byColumn.get(col);
+        if (list != null && list.remove(s)){
+          found = true;
+          if (list.isEmpty()){
+            byColumn.remove(col);
+          }
+        }
+      }
+      if (found){
+        count--;
+      }
+    }
+    else if (s.cell != null){
+      List<Subscription> list = byCell.get(s.cell);
+      if (list != null && list.remove(s)){
+        count--;
+        if (list.isEmpty()){
+          byCell.remove(s.cell);
+        }
+      }
+    }
+    else if (global.remove(s)){
+      count--;
+    }
+  }
+
+  // Return whether anything is subscribed.
+  public synchronized boolean isEmpty(){
+    return count == 0;
+  }
+
+  // Return whether any subscription watches the cell with the given
+  // ID.
+  public synchronized boolean watches(String id){
+    return !global.isEmpty() || byCell.containsKey(id) || !rangesOver(id).isEmpty();
+  }
+
+  // Return the range subscriptions containing the cell with the given
+  // ID.
+  protected List<Subscription> rangesOver(String id){
+    long addr = CellAddress.encode(id);
+    if (addr == CellAddress.NONE){
+      return Collections.emptyList();
+    }
+    List<Subscription> list = byColumn.get(CellAddress.column(addr));
+    if (list == null){
+      return Collections.emptyList();
+    }
+    int col = CellAddress.column(addr), row = CellAddress.row(addr);
+    List<Subscription> out = new ArrayList<Subscription>();
+    for (Subscription s : list){
+      if (s.range.contains(col, row)){
+        out.add(s);
+      }
+    }
+    return out;
+  }
+
+  // Queue the changes of one edit for every subscription watching
+  // them and schedule deliveries. Never waits for a listener.
+  // Runtime Complexity: O(k S)
+  //   k: changes, S: subscriptions watching each
+  public void offer(List<Change> changes){
+    deliver(queue(changes));
+  }
+
+  // Queue the changes of one edit as offer does and return the
+  // subscriptions needing a delivery scheduled, for callers which must
+  // queue while holding locks that listeners could need.
+  // Runtime Complexity: O(k S)
+  public List<Subscription> queue(List<Change> changes){
+    List<Subscription> ready = new ArrayList<Subscription>();
+    synchronized (this){
+      for (Change c : changes){
+        List<Subscription> cellSubs = byCell.get(c.id);
+        for (Subscription s : global){
+          if (s.add(c)){
+            ready.add(s);
+          }
+        }
+        if (cellSubs != null){
+          for (Subscription s : cellSubs){
+            if (s.add(c)){
+              ready.add(s);
+            }
+          }
+        }
+        for (Subscription s : rangesOver(c.id)){
+          if (s.add(c)){
+            ready.add(s);
+          }
+        }
+      }
+    }
+    return ready;
+  }
+
+  // Schedule the deliveries queue asked for. Called outside the lock
+  // as a direct executor runs listeners right here.
+  public void deliver(List<Subscription> ready){
+    for (Subscription s : ready){
+      executor.execute(s);
+    }
+  }
+}
@@ -0,0 +1,249 @@
+// Tests of change listeners
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class ChangeFeedTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("ChangeFeedTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(5000); 
+
+  // Listener keeping every batch it is given
+  public static class Recorder implements ChangeFeed.Listener {
+    final List<List<ChangeFeed.Change>> batches = new ArrayList<List<ChangeFeed.Change>>();
+    public synchronized void cellsChanged(List<ChangeFeed.Change> changes){
+      batches.add(changes);
+    }
+    // The batches as strings
+    synchronized String text(){
+      return batches.toString();
+    }
+  }
+
+  // Executor which only runs its tasks when told to
+  public static class Held implements Executor {
+    final Deque<Runnable> tasks = new ArrayDeque<Runnable>();
+    public void execute(Runnable r){
+      tasks.add(r);
+    }
+    void runAll(){
+      while(!tasks.isEmpty()){
+        tasks.poll().run();
+      }
+    }
+  }
+
+  public static final Executor DIRECT = new Executor(){
+    public void execute(Runnable r){
+      r.run();
+    }
+  };
+
+  // Each kind of subscription sees just the changes it watches
+  @Test public void feed_cell_range_global1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "1");
+    sheet.setCell("B1", "=A1*2");
+    sheet.setCell("C1", "text");
+    sheet.setChangeExecutor(DIRECT);
+    Recorder cell = new Recorder(), range = new Recorder(), all = new Recorder();
+    sheet.subscribeCell("B1", cell);
+    sheet.subscribeRange("A1:A5", range);
+    sheet.subscribe(all);
+    sheet.setCell("A1", "5");
+    assertEquals("[[B1=10.0]]", cell.text());
+    assertEquals("[[A1=5.0]]", range.text());
+    assertEquals("[[A1=5.0, B1=10.0]]", all.text());
+    assertEquals(10.0, cell.batches.get(0).get(0).value, 0.0);
+    sheet.setCell("C1", "more");
+    assertEquals(1, cell.batches.size());
+    assertEquals(1, range.batches.size());
+    assertEquals("[C1=more]", all.batches.get(1).toString());
+    assertNull(all.batches.get(1).get(0).value);
+  }
+
+  // Cells whose values come out the same are not reported, and a
+  // deleted cell is reported blank
+  @Test public void feed_unchanged_deleted1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "1");
+    sheet.setCell("B1", "=A1*0");
+    sheet.setCell("C1", "=B1+A1");
+    sheet.setChangeExecutor(DIRECT);
+    Recorder all = new Recorder();
+    sheet.subscribe(all);
+    sheet.setCell("A1", "2");
+    assertEquals("[[A1=2.0, C1=2.0]]", all.text());
+    sheet.deleteCell("A1");
+    assertEquals("[A1=, B1=ERROR, C1=ERROR]", all.batches.get(1).toString());
+  }
+
+  // Changes wait for a slow listener without holding up edits, one per
+  // cell with the latest value
+  @Test public void feed_coalesces1(){
+    Spreadsheet sheet = new Spreadsheet();
+    Held held = new Held();
+    sheet.setChangeExecutor(held);
+    Recorder all = new Recorder();
+    ChangeFeed.Subscription s = sheet.subscribe(all);
+    for(int i=1; i<=100; i++){
+      sheet.setCell("A1", "" + i);
+      sheet.setCell("B1", "=A1+" + i);
+    }
+    assertEquals(1, held.tasks.size());
+    assertEquals(2, s.backlog());
+    assertEquals(297, s.replacedCount());
+    held.runAll();
+    assertEquals("[[A1=100.0, B1=200.0]]", all.text());
+    assertEquals(0, s.backlog());
+    assertEquals(2, s.deliveredCount());
+  }
+
+  // Large edits arrive in batches of at most BATCH changes
+  @Test public void feed_batches1(){
+    Spreadsheet sheet = new Spreadsheet();
+    Held held = new Held();
+    sheet.setChangeExecutor(held);
+    Recorder range = new Recorder();
+    sheet.subscribeRange("A1:A5000", range);
+    Map<String, String> edit = new HashMap<String, String>();
+    for(int i=1; i<=3000; i++){
+      edit.put("A" + i, "" + i);
+      edit.put("B" + i, "" + i);
+    }
+    sheet.setCells(edit);
+    held.runAll();
+    assertEquals(3, range.batches.size());
+    Set<String> seen = new HashSet<String>();
+    for(List<ChangeFeed.Change> batch : range.batches){
+      assertTrue(batch.size() <= ChangeFeed.BATCH);
+      for(ChangeFeed.Change c : batch){
+        assertTrue(seen.add(c.id));
+        assertTrue(c.id.startsWith("A"));
+      }
+    }
+    assertEquals(3000, seen.size());
+  }
+
+  // A cancelled subscription gets nothing more, even what was waiting
+  @Test public void feed_cancel1(){
+    Spreadsheet sheet = new Spreadsheet();
+    Held held = new Held();
+    sheet.setChangeExecutor(held);
+    Recorder cell = new Recorder();
+    ChangeFeed.Subscription s = sheet.subscribeCell("A1", cell);
+    sheet.setCell("A1", "1");
+    s.cancel();
+    sheet.setCell("A1", "2");
+    held.runAll();
+    assertEquals("[]", cell.text());
+    assertTrue(sheet.feed.isEmpty());
+  }
+
+  // By default listeners run on a thread of their own, so a listener
+  // which blocks does not stop edits
+  @Test public void feed_async1() throws Exception{
+    Spreadsheet sheet = new Spreadsheet();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    final List<String> last = new ArrayList<String>();
+    sheet.subscribeCell("A1", new ChangeFeed.Listener(){
+      public void cellsChanged(List<ChangeFeed.Change> changes){
+        try{
+          release.await();
+        }
+        catch(InterruptedException e){
+          return;
+        }
+        synchronized(last){
+          last.add(changes.toString());
+          if(changes.get(0).display.equals("500.0")){
+            done.countDown();
+          }
+        }
+      }
+    });
+    for(int i=1; i<=500; i++){
+      sheet.setCell("A1", "" + i);
+    }
+    release.countDown();
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    synchronized(last){
+      assertTrue(last.size() <= 2);
+      assertEquals("[A1=500.0]", last.get(last.size()-1));
+    }
+  }
+
+  // Watched cells of a lazy sheet are evaluated for their listeners
+  @Test public void feed_lazy1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setLazy(true);
+    sheet.setCell("A1", "1");
+    sheet.setCell("B1", "=A1+1");
+    sheet.setChangeExecutor(DIRECT);
+    Recorder cell = new Recorder();
+    sheet.subscribeCell("B1", cell);
+    sheet.setCell("A1", "4");
+    assertEquals("[[B1=5.0]]", cell.text());
+  }
+
+  // Bad IDs are refused
+  @Test public void feed_refused1(){
+    Spreadsheet sheet = new Spreadsheet();
+    try{
+      sheet.subscribeRange("A1", new Recorder());
+      fail("Expected an exception");
+    }
+    catch(RuntimeException e){ }
+  }
+  // A concurrent sheet tells listeners of each writer's changes, and
+  // the last state delivered for a cell is its current one
+  @Test public void feed_concurrent1() throws Exception{
+    final ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+    sheet.setCell("A1", "1");
+    sheet.setCell("B1", "=A1*2");
+    sheet.setChangeExecutor(DIRECT);
+    Recorder cell = new Recorder();
+    sheet.subscribeCell("B1", cell);
+    sheet.setCell("A1", "5");
+    assertEquals("[[B1=10.0]]", cell.text());
+    final Map<String,String> latest = new HashMap<String,String>();
+    sheet.subscribe(new ChangeFeed.Listener(){
+      public void cellsChanged(List<ChangeFeed.Change> changes){
+        synchronized(latest){
+          for(ChangeFeed.Change c : changes){
+            latest.put(c.id, c.display);
+          }
+        }
+      }
+    });
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(int t=0; t<4; t++){
+      final int seed = t;
+      tasks.add(new Callable<Void>(){
+        public Void call(){
+          Random rand = new Random(seed);
+          for(int i=0; i<200; i++){
+            sheet.setCell("A" + (1 + rand.nextInt(3)), "" + rand.nextInt(100));
+            sheet.setCell("C" + (1 + rand.nextInt(3)), "=SUM(A1:A3)+" + seed);
+          }
+          return null;
+        }
+      });
+    }
+    ConcurrentSpreadsheetTests.runAll(tasks);
+    for(String id : latest.keySet()){
+      assertEquals(id, sheet.getCellDisplayString(id), latest.get(id));
+    }
+    assertEquals(sheet.getCellDisplayString("B1"), latest.get("B1"));
+  }
+}
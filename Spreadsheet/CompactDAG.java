@@ -0,0 +1,405 @@
+import java.util.*;
+
+// A DAG which stores its links as int arrays rather than a HashSet of
+// names per node, for sheets with millions of links. Every node gets
+// an int number the first time it is linked, and the links of all
+// nodes live in compressed sparse row (CSR) arrays: the upstream
+// numbers of node n are upEdges[upStart[n]] to upEdges[upStart[n+1]-1],
+// and likewise downstream. A link then costs four bytes on each side
+// in place of a set entry of several dozen.
+//
+// CSR arrays cannot be changed in place, so edits go to an overlay: a
+// node whose upstream links are replaced keeps the new list in
+// upDelta, and a node whose downstream links change gets a copy of
+// them in downDelta which grows and shrinks in place. Once more than a
+// quarter of the nodes (and at least MIN_COMPACT) are in the overlay,
+// compact folds it back into fresh CSR arrays in one linear pass.
+//
+// Ordering, cycle checks and implied links are inherited unchanged.
+// The link sets handed out are read-only views over the arrays, and
+// nodeNumber, upstreamCount, upstreamAt and their downstream twins
+// read links without allocating at all.
+public class CompactDAG extends DAG {
+  public static final int MIN_COMPACT = 1024;
+  public static final int INDEX_AT = 16;
+
+  protected Map<String, Integer> numbers;
+  protected String[] names;
+  protected int count;
+  // Number of each node ever linked and the name of each number.
+  // Numbers are not reused, so a forgotten node keeps its number.
+
+  protected int[] upStart, upEdges, downStart, downEdges;
+  protected int compacted;
+  // Links of the nodes numbered below compacted as of the last
+  // compaction. Later nodes have none there.
+
+  protected int[][] upDelta, downDelta;
+  protected int[] downSize;
+  protected LongMap<Integer>[] downIndex;
+  protected int deltaNodes;
+  // Overlay of links changed since the last compaction: the whole new
+  // upstream list of a node, and an editable copy of its downstream
+  // list with downSize entries in use. Downstream lists of more than
+  // INDEX_AT entries also get an index of the position of each entry
+  // so removing a link from a widely read node takes constant time.
+  // deltaNodes counts the overlay entries.
+
+  protected static final int[] NONE = new int[0];
+
+  // Construct an empty DAG.
+  public CompactDAG(){
+    this.numbers = new HashMap<String, Integer>();
+    this.names = new String[16];
+    this.upStart = new int[1];
+    this.downStart = new int[1];
+    this.upEdges = NONE;
+    this.downEdges = NONE;
+    this.upDelta = new int[16][];
+    this.downDelta = new int[16][];
+    this.downSize = new int[16];
+    this.downIndex = newIndexArray(16);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  protected static LongMap<Integer>[] newIndexArray(int size){
+    return (LongMap<Integer>[]) new LongMap[size];
+  }
+
+  // List nodes and links by name. The stored order follows the order
+  // they were first linked in, which a snapshot does not keep.
+  @Override
+  protected Collection<String> listed(Collection<String> ids){
+    List<String> sorted = new ArrayList<String>(ids);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  // Return the number of id, or -1 if it has never been linked.
+  public int nodeNumber(String id){
+    Integer n = numbers.get(id);
+    return n == null ? -1 : n;
+  }
+
+  // Return the name of node number n.
+  public String nodeName(int n){
+    return names[n];
+  }
+
+  // Return the number of id, numbering it if it is new.
+  protected int number(String id){
+    Integer n = numbers.get(id);
+    if (n != null){
+      return n;
+    }
+    if (count == names.length){
+      int size = count * 2;
+      names = Arrays.copyOf(names, size);
+      upDelta = Arrays.copyOf(upDelta, size);
+      downDelta = Arrays.copyOf(downDelta, size);
+      downSize = Arrays.copyOf(downSize, size);
+      downIndex = Arrays.copyOf(downIndex, size);
+    }
+    names[count] = id;
+    numbers.put(id, count);
+    return count++;
+  }
+
+  // Return how many nodes node n links to upstream, and the k'th.
+  // Runtime Complexity: O(1)
+  public int upstreamCount(int n){
+    if (upDelta[n] != null){
+      return upDelta[n].length;
+    }
+    return n < compacted ? upStart[n+1] - upStart[n] : 0;
+  }
+
+  public int upstreamAt(int n, int k){
+    return upDelta[n] != null ? upDelta[n][k] : upEdges[upStart[n] + k];
+  }
+
+  // Return how many nodes link to node n from downstream, and the
+  // k'th.
+  // Runtime Complexity: O(1)
+  public int downstreamCount(int n){
+    if (downDelta[n] != null){
+      return downSize[n];
+    }
+    return n < compacted ? downStart[n+1] - downStart[n] : 0;
+  }
+
+  public int downstreamAt(int n, int k){
+    return downDelta[n] != null ? downDelta[n][k] : downEdges[downStart[n] + k];
+  }
+
+  @Override
+  public Set<String> getUpstreamLinks(String id){
+    Integer n = numbers.get(id);
+    if (n == null || upstreamCount(n) == 0){
+      return Collections.<String>emptySet();
+    }
+    return new Links(n, true);
+  }
+
+  @Override
+  public Set<String> getDownstreamLinks(String id){
+    Integer n = numbers.get(id);
+    if (n == null || downstreamCount(n) == 0){
+      return Collections.<String>emptySet();
+    }
+    return new Links(n, false);
+  }
+
+  // Read-only view of the upstream or downstream links of one node. An
+  // iterator reads the arrays as they were when it was made.
+  protected class Links extends AbstractSet<String> {
+    final int node;
+    final boolean up;
+
+    Links(int node, boolean up){
+      this.node = node;
+      this.up = up;
+    }
+
+    public int size(){
+      return up ? upstreamCount(node) : downstreamCount(node);
+    }
+
+    public boolean contains(Object o){
+      Integer other = o instanceof String ? numbers.get(o) : null;
+      if (other == null){
+        return false;
+      }
+      if (!up && downIndex[node] != null){
+        return downIndex[node].containsKey(other + 1L);
+      }
+      int size = size();
+      for (int k = 0; k < size; k++){
+        if ((up ? upstreamAt(node, k) : downstreamAt(node, k)) == other){
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public Iterator<String> iterator(){
+      final int[] edges;
+      final int lo, hi;
+      if (up ? upDelta[node] != null : downDelta[node] != null){
+        edges = up ? upDelta[node] : downDelta[node];
+        lo = 0;
+        hi = up ? edges.length : downSize[node];
+      }
+      else if (node < compacted){
+        edges = up ? upEdges : downEdges;
+        int[] start = up ? upStart : downStart;
+        lo = start[node];
+        hi = start[node+1];
+      }
+      else{
+        edges = NONE;
+        lo = 0;
+        hi = 0;
+      }
+      return new Iterator<String>(){
+        int k = lo;
+
+        public boolean hasNext(){
+          return k < hi;
+        }
+
+        public String next(){
+          if (k >= hi){
+            throw new NoSuchElementException();
+          }
+          return names[edges[k++]];
+        }
+      };
+    }
+  }
+
+  @Override
+  protected Collection<String> upstreamKeys(){
+    return numbers.keySet();
+  }
+
+  @Override
+  protected Collection<String> downstreamKeys(){
+    return numbers.keySet();
+  }
+
+  @Override
+  protected void putUpstream(String id, Set<String> upstreamIDs){
+    if (deltaNodes > Math.max(MIN_COMPACT, count / 4)){
+      compact();
+    }
+    int n = number(id);
+    int[] list = upstreamIDs.isEmpty() ? NONE : new int[upstreamIDs.size()];
+    int k = 0;
+    for (String up : upstreamIDs){
+      list[k++] = number(up);
+    }
+    setUpstream(n, list);
+  }
+
+  @Override
+  protected void dropUpstream(String id){
+    Integer n = numbers.get(id);
+    if (n != null && upstreamCount(n) > 0){
+      setUpstream(n, NONE);
+    }
+  }
+
+  // Replace the upstream list of node n in the overlay.
+  protected void setUpstream(int n, int[] list){
+    if (upDelta[n] == null){
+      deltaNodes++;
+    }
+    upDelta[n] = list;
+  }
+
+  @Override
+  protected void dropDownstream(String id){
+    Integer n = numbers.get(id);
+    if (n != null && downstreamCount(n) > 0){
+      editableDownstream(n);
+      downSize[n] = 0;
+      downIndex[n] = null;
+    }
+  }
+
+  // id must not already be downstream of up, which DAG never asks for
+  // as links only go in after the old ones of id are removed.
+  // Runtime Complexity: O(1) amortized, O(D) the first time up changes
+  //   D: the number of links downstream of up
+  @Override
+  protected void addDownstreamLink(String up, String id){
+    int u = number(up), d = number(id);
+    int[] list = editableDownstream(u);
+    int size = downSize[u];
+    if (size == list.length){
+      list = Arrays.copyOf(list, Math.max(4, size * 2));
+      downDelta[u] = list;
+    }
+    list[size] = d;
+    downSize[u] = size + 1;
+    if (downIndex[u] != null){
+      downIndex[u].put(d + 1L, size);
+    }
+    else if (size + 1 > INDEX_AT){
+      indexDownstream(u);
+    }
+  }
+
+  // Runtime Complexity: O(1) with an index, O(D) o/w
+  @Override
+  protected void removeDownstreamLink(String up, String id){
+    Integer u = numbers.get(up), d = numbers.get(id);
+    if (u == null || d == null){
+      return;
+    }
+    int[] list = editableDownstream(u);
+    int size = downSize[u];
+    int at = -1;
+    if (downIndex[u] != null){
+      Integer pos = downIndex[u].remove(d + 1L);
+      at = pos == null ? -1 : pos;
+    }
+    else{
+      for (int k = 0; k < size; k++){
+        if (list[k] == d){
+          at = k;
+          break;
+        }
+      }
+    }
+    if (at < 0){
+      return;
+    }
+    // the last entry fills the gap
+    int last = list[size - 1];
+    list[at] = last;
+    downSize[u] = size - 1;
+    if (downIndex[u] != null && at != size - 1){
+      downIndex[u].put(last + 1L, at);
+    }
+  }
+
+  // Return the overlay copy of the downstream list of node n, making
+  // it from the CSR arrays if there is none yet.
+  protected int[] editableDownstream(int n){
+    int[] list = downDelta[n];
+    if (list != null){
+      return list;
+    }
+    int size = downstreamCount(n);
+    list = new int[Math.max(4, size + size / 2)];
+    if (size > 0){
+      System.arraycopy(downEdges, downStart[n], list, 0, size);
+    }
+    downDelta[n] = list;
+    downSize[n] = size;
+    deltaNodes++;
+    if (size > INDEX_AT){
+      indexDownstream(n);
+    }
+    return list;
+  }
+
+  // Index the position of every downstream link of node n.
+  protected void indexDownstream(int n){
+    LongMap<Integer> index = new LongMap<Integer>(downSize[n] * 2);
+    for (int k = 0; k < downSize[n]; k++){
+      index.put(downDelta[n][k] + 1L, k);
+    }
+    downIndex[n] = index;
+  }
+
+  // Fold the overlay into new CSR arrays.
+  // Runtime Complexity: O(N + L)
+  //   N: numbered nodes, L: links
+  public void compact(){
+    int[] newUpStart = new int[count + 1];
+    int[] newDownStart = new int[count + 1];
+    for (int n = 0; n < count; n++){
+      newUpStart[n+1] = newUpStart[n] + upstreamCount(n);
+      newDownStart[n+1] = newDownStart[n] + downstreamCount(n);
+    }
+    int[] newUpEdges = new int[newUpStart[count]];
+    int[] newDownEdges = new int[newDownStart[count]];
+    for (int n = 0; n < count; n++){
+      int ups = upstreamCount(n);
+      for (int k = 0; k < ups; k++){
+        newUpEdges[newUpStart[n] + k] = upstreamAt(n, k);
+      }
+      int downs = downstreamCount(n);
+      for (int k = 0; k < downs; k++){
+        newDownEdges[newDownStart[n] + k] = downstreamAt(n, k);
+      }
+    }
+    upStart = newUpStart;
+    upEdges = newUpEdges;
+    downStart = newDownStart;
+    downEdges = newDownEdges;
+    compacted = count;
+    Arrays.fill(upDelta, null);
+    Arrays.fill(downDelta, null);
+    Arrays.fill(downSize, 0);
+    Arrays.fill(downIndex, null);
+    deltaNodes = 0;
+  }
+
+  // Return the number of nodes with links in the overlay.
+  public int deltaCount(){
+    return deltaNodes;
+  }
+
+  // Return the number of links stored.
+  public long linkCount(){
+    long links = 0;
+    for (int n = 0; n < count; n++){
+      links += upstreamCount(n);
+    }
+    return links;
+  }
+}
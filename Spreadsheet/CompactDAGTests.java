@@ -0,0 +1,173 @@
+// Tests of the CSR backed DAG
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class CompactDAGTests {
+  /*Main method runs tests in this file*/
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("CompactDAGTests");
+  }
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(5000);
+
+  public static Set<String> toSet(String... args){
+    return DAGTests.toSet(args);
+  }
+
+  // Check both DAGs store the same links for the given nodes
+  public static void assertSameLinks(DAG expect, CompactDAG actual, Collection<String> ids){
+    for(String id : ids){
+      assertEquals(id, expect.getUpstreamLinks(id), actual.getUpstreamLinks(id));
+      assertEquals(id, expect.getDownstreamLinks(id), actual.getDownstreamLinks(id));
+      assertEquals(id, new HashSet<String>(expect.getUpstreamLinks(id)),
+                   new HashSet<String>(actual.getUpstreamLinks(id)));
+      assertEquals(id, expect.hasNode(id), actual.hasNode(id));
+    }
+  }
+
+  @Test public void compact_basic1(){
+    CompactDAG dag = new CompactDAG();
+    dag.add("C1", toSet("A1", "B1"));
+    dag.add("D1", toSet("C1", "A1"));
+    assertEquals(toSet("A1", "B1"), dag.getUpstreamLinks("C1"));
+    assertEquals(toSet("C1", "D1"), dag.getDownstreamLinks("A1"));
+    assertEquals(toSet(), dag.getUpstreamLinks("Z9"));
+    assertTrue(dag.getDownstreamLinks("A1").contains("D1"));
+    assertFalse(dag.getDownstreamLinks("A1").contains("B1"));
+    int c = dag.nodeNumber("C1");
+    assertEquals(2, dag.upstreamCount(c));
+    assertEquals(toSet("A1", "B1"),
+                 toSet(dag.nodeName(dag.upstreamAt(c, 0)), dag.nodeName(dag.upstreamAt(c, 1))));
+    assertEquals(-1, dag.nodeNumber("Z9"));
+    dag.compact();
+    assertEquals(0, dag.deltaCount());
+    assertEquals(toSet("C1", "D1"), dag.getDownstreamLinks("A1"));
+    assertEquals(4, dag.linkCount());
+    try{
+      dag.add("A1", toSet("D1"));
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    assertEquals(toSet(), dag.getUpstreamLinks("A1"));
+    dag.remove("D1");
+    assertEquals(toSet("C1"), dag.getDownstreamLinks("A1"));
+    assertEquals(Arrays.asList("C1"), dag.getDownstreamOrder(toSet("C1")));
+  }
+
+  // Random edits leave both backends with the same links, cycles and
+  // orders, across many compactions
+  @Test public void compact_matches_dag1(){
+    Random rand = new Random(1022);
+    DAG expect = new DAG();
+    CompactDAG actual = new CompactDAG();
+    List<String> ids = new ArrayList<String>();
+    for(int i=0; i<400; i++){
+      ids.add("N" + i);
+    }
+    for(int step=0; step<6000; step++){
+      String id = ids.get(rand.nextInt(ids.size()));
+      int pick = rand.nextInt(10);
+      if(pick == 0){
+        expect.remove(id);
+        actual.remove(id);
+        continue;
+      }
+      if(pick == 1){
+        expect.forget(id);
+        actual.forget(id);
+        continue;
+      }
+      Set<String> ups = new HashSet<String>();
+      int n = rand.nextInt(4);
+      for(int k=0; k<n; k++){
+        // mostly lower numbers so few edits close cycles
+        ups.add(ids.get(rand.nextInt(ids.size())));
+      }
+      boolean failedExpect = false, failedActual = false;
+      if(pick == 2){
+        Map<String,Set<String>> batch = new HashMap<String,Set<String>>();
+        batch.put(id, ups);
+        batch.put(ids.get(rand.nextInt(ids.size())), new HashSet<String>());
+        List<String> o1 = null, o2 = null;
+        try{ o1 = expect.addAll(batch); } catch(DAG.CycleException e){ failedExpect = true; }
+        try{ o2 = actual.addAll(batch); } catch(DAG.CycleException e){ failedActual = true; }
+        if(o1 != null && o2 != null){
+          assertEquals(new HashSet<String>(o1), new HashSet<String>(o2));
+        }
+      }
+      else{
+        try{ expect.add(id, ups); } catch(DAG.CycleException e){ failedExpect = true; }
+        try{ actual.add(id, ups); } catch(DAG.CycleException e){ failedActual = true; }
+      }
+      assertEquals("step " + step, failedExpect, failedActual);
+      if(step % 500 == 0){
+        assertSameLinks(expect, actual, ids);
+      }
+      if(step % 700 == 0){
+        actual.compact();
+      }
+    }
+    assertSameLinks(expect, actual, ids);
+    actual.compact();
+    assertSameLinks(expect, actual, ids);
+  }
+
+  // Removing the readers of a widely read node one at a time stays
+  // linear
+  @Test public void compact_hub1(){
+    CompactDAG dag = new CompactDAG();
+    int n = 100000;
+    for(int i=0; i<n; i++){
+      dag.add("B" + i, toSet("A1"));
+    }
+    assertEquals(n, dag.getDownstreamLinks("A1").size());
+    dag.compact();
+    for(int i=0; i<n; i+=2){
+      dag.remove("B" + i);
+    }
+    assertEquals(n / 2, dag.getDownstreamLinks("A1").size());
+    assertTrue(dag.getDownstreamLinks("A1").contains("B1"));
+    assertFalse(dag.getDownstreamLinks("A1").contains("B2"));
+    assertEquals(n / 2, dag.linkCount());
+  }
+
+  // A sheet on the compact DAG, the default, behaves as a plain one
+  @Test public void compact_sheet1(){
+    Spreadsheet plain = new Spreadsheet(new DAG());
+    Spreadsheet compact = new Spreadsheet();
+    assertTrue(compact.dag instanceof CompactDAG);
+    assertTrue(new ConcurrentSpreadsheet().dag instanceof CompactDAG);
+    Random rand = new Random(22);
+    for(int step=0; step<3000; step++){
+      String id = "" + (char) ('A' + rand.nextInt(4)) + (1 + rand.nextInt(30));
+      String contents;
+      switch(rand.nextInt(4)){
+        case 0: contents = "" + rand.nextInt(9); break;
+        case 1: contents = ""; break;
+        case 2: contents = "=SUM(A1:B" + (1 + rand.nextInt(30)) + ")"; break;
+        default: contents = "=" + (char) ('A' + rand.nextInt(4)) + (1 + rand.nextInt(30)) + "+1";
+      }
+      String e1 = null, e2 = null;
+      try{ plain.setCell(id, contents); } catch(DAG.CycleException e){ e1 = "cycle"; }
+      try{ compact.setCell(id, contents); } catch(DAG.CycleException e){ e2 = "cycle"; }
+      assertEquals(e1, e2);
+    }
+    for(char col='A'; col<='D'; col++){
+      for(int row=1; row<=30; row++){
+        String id = "" + col + row;
+        assertEquals(id, plain.sheet.containsKey(id), compact.sheet.containsKey(id));
+        if(plain.sheet.containsKey(id)){
+          assertEquals(id, plain.getCellDisplayString(id), compact.getCellDisplayString(id));
+        }
+        assertEquals(id, plain.dag.getUpstreamLinks(id), compact.dag.getUpstreamLinks(id));
+        assertEquals(id, plain.dag.getDownstreamLinks(id), compact.dag.getDownstreamLinks(id));
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// CellStore which may be read by any number of threads while another
+// thread adds and removes cells. Cells are kept in ConcurrentHashMaps
+// keyed by packed address, which costs a boxed key per cell that the
+// single threaded LongMap of a PackedCellStore avoids.
+public class ConcurrentCellStore extends AbstractMap<String, Cell> implements CellStore {
+  protected ConcurrentHashMap<Long, Cell> byAddress;
+  protected ConcurrentHashMap<String, Cell> byName;
+  protected volatile RangeIndex ranges;
+  protected volatile long epoch;
+  // Cells by address and by name, the sheet's range aggregates and the
+  // current epoch, which only a writer holding the structure lock
+  // advances.
+
+  // Construct an empty store.
+  public ConcurrentCellStore(){
+    this.byAddress = new ConcurrentHashMap<Long, Cell>();
+    this.byName = new ConcurrentHashMap<String, Cell>();
+  }
+
+  @Override
+  public Cell getAt(long addr){
+    return byAddress.get(addr);
+  }
+
+  @Override
+  public long[] addresses(){
+    long[] out = new long[byAddress.size()];
+    int n = 0;
+    for (Long addr : byAddress.keySet()){
+      if (n == out.length){
+        out = Arrays.copyOf(out, n * 2 + 1);
+      }
+      out[n++] = addr;
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  public RangeIndex ranges(){
+    return ranges;
+  }
+
+  public void setRanges(RangeIndex ranges){
+    this.ranges = ranges;
+  }
+
+  public long epoch(){
+    return epoch;
+  }
+
+  public void advanceEpoch(){
+    epoch++;
+  }
+
+  @Override
+  public Cell get(Object key){
+    if (!(key instanceof String)){
+      return null;
+    }
+    long addr = CellAddress.encode((String) key);
+    return addr != CellAddress.NONE ? byAddress.get(addr) : byName.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key){
+    return get(key) != null;
+  }
+
+  @Override
+  public Cell put(String key, Cell cell){
+    long addr = CellAddress.encode(key);
+    return addr != CellAddress.NONE ? byAddress.put(addr, cell) : byName.put(key, cell);
+  }
+
+  @Override
+  public Cell remove(Object key){
+    if (!(key instanceof String)){
+      return null;
+    }
+    long addr = CellAddress.encode((String) key);
+    return addr != CellAddress.NONE ? byAddress.remove(addr) : byName.remove(key);
+  }
+
+  @Override
+  public int size(){
+    return byAddress.size() + byName.size();
+  }
+
+  @Override
+  public void clear(){
+    byAddress.clear();
+    byName.clear();
+  }
+
+  // Entries are built on the fly from a weakly consistent view of the
+  // maps. Removing through the iterator is not supported.
+  @Override
+  public Set<Map.Entry<String, Cell>> entrySet(){
+    return new AbstractSet<Map.Entry<String, Cell>>(){
+      public int size(){
+        return ConcurrentCellStore.this.size();
+      }
+      public Iterator<Map.Entry<String, Cell>> iterator(){
+        final Iterator<Map.Entry<Long, Cell>> cells = byAddress.entrySet().iterator();
+        final Iterator<Map.Entry<String, Cell>> rest = byName.entrySet().iterator();
+        return new Iterator<Map.Entry<String, Cell>>(){
+          public boolean hasNext(){
+            return cells.hasNext() || rest.hasNext();
+          }
+          public Map.Entry<String, Cell> next(){
+            if (cells.hasNext()){
+              Map.Entry<Long, Cell> e = cells.next();
+              return new AbstractMap.SimpleImmutableEntry<String, Cell>(
+                CellAddress.decode(e.getKey()), e.getValue());
+            }
+            return rest.next();
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,371 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Spreadsheet which any number of threads may edit and read at once.
+// Edits of unrelated parts of the sheet recalculate in parallel.
+//
+// The sheet is divided into regions of COLUMN_BLOCK columns by
+// ROW_BLOCK rows, and each region hashes to one of a fixed set of
+// stripe locks. An edit goes through two phases:
+//
+//   1. Holding the structure lock, it takes the stripes of every cell
+//      it will recalculate (the downstream closure of the edited
+//      cells) and of every cell its new formulas read, then changes
+//      the DAG and the store, and copies the downstream links of the
+//      closure. Nothing is evaluated here, so the structure lock is
+//      only held briefly.
+//   2. With the structure lock released, it evaluates the closure
+//      while still holding its stripes, following the copied links
+//      rather than the DAG, which other edits may be changing, then
+//      releases them. It touches only the cells of its stripes and
+//      the range index, which locks itself.
+//
+// A cell is only ever evaluated by the thread holding its stripe, and
+// any edit that changes a cell another edit reads also changes that
+// edit's cells, so two edits which depend on each other always share
+// a stripe and run one after the other. Stripes are taken in
+// ascending order, and only by a thread holding the structure lock,
+// while threads in phase 2 wait for nothing, so there is no deadlock.
+// Readers take just the stripe of the cell they read.
+//
+// Phase 1 appends the edit to the journal, if there is one, so the
+// journal sees edits in the order they were linked. A checkpoint that
+// comes due waits until phase 2 is over and the stripes are released,
+// then takes the structure lock and every stripe, so the snapshot
+// only ever holds recalculated values.
+//
+// Change listeners work as on a plain sheet. Each writer collects the
+// cells its own edit touched and queues their new states with the
+// feed before releasing its stripes, so a listener never sees a cell
+// go back to an older value; deliveries are scheduled once no lock is
+// held.
+//
+// Lazy evaluation, versions and the parallel recalculation pool are
+// not available, and the setters refuse to turn them on. Lazy cells
+// would be evaluated by readers holding only one stripe, versions
+// form a single chain of edits one after another, and the writers
+// already recalculate in parallel. A SpreadsheetServer, which edits a
+// ConcurrentSpreadsheet, has none of the three either.
+public class ConcurrentSpreadsheet extends Spreadsheet {
+  public static final int COLUMN_BLOCK = 16;
+  public static final int ROW_BLOCK = 256;
+
+  protected final ReentrantLock structure;
+  protected final ReentrantLock[] stripes;
+  // Guards the DAG, the store's contents and the ranges; region locks
+  // guarding the evaluation of the cells in them.
+
+  protected final ThreadLocal<Set<String>> touching;
+  // Cells the calling thread's edit has touched, while some listener
+  // is subscribed.
+
+  // Construct an empty sheet with 1024 stripes.
+  public ConcurrentSpreadsheet(){
+    this(1024);
+  }
+
+  // Construct an empty sheet with the given number of stripes.
+  public ConcurrentSpreadsheet(int stripeCount){
+    super(new ConcurrentCellStore());
+    this.structure = new ReentrantLock();
+    this.stripes = new ReentrantLock[stripeCount];
+    for (int i = 0; i < stripeCount; i++){
+      stripes[i] = new ReentrantLock();
+    }
+    this.touching = new ThreadLocal<Set<String>>();
+  }
+
+  @Override
+  public void setLazy(boolean lazy){
+    if (lazy){
+      throw new UnsupportedOperationException("ConcurrentSpreadsheet is never lazy");
+    }
+  }
+
+  @Override
+  public void setVersioned(boolean versioned){
+    if (versioned){
+      throw new UnsupportedOperationException("ConcurrentSpreadsheet has no versions");
+    }
+  }
+
+  @Override
+  public void setRecalcPool(java.util.concurrent.ForkJoinPool pool){
+    if (pool != null){
+      throw new UnsupportedOperationException("ConcurrentSpreadsheet recalculates on its writers");
+    }
+  }
+
+  // Return the change feed, making it on first use. Writers read it
+  // under the structure lock.
+  @Override
+  protected ChangeFeed feed(){
+    structure.lock();
+    try{
+      if (feed == null){
+        feed = new ChangeFeed(null);
+      }
+      return feed;
+    }
+    finally{
+      structure.unlock();
+    }
+  }
+
+  // Note a cell the calling thread's edit touched.
+  @Override
+  protected void touched(String id){
+    Set<String> mine = touching.get();
+    if (mine != null){
+      mine.add(id);
+    }
+  }
+
+  @Override
+  public void setJournal(EditJournal journal){
+    structure.lock();
+    try{
+      super.setJournal(journal);
+    }
+    finally{
+      structure.unlock();
+    }
+  }
+
+  @Override
+  public void setCell(String id, String contents){
+    setCells(Collections.singletonMap(id, contents));
+  }
+
+  @Override
+  public void deleteCell(String id){
+    setCells(Collections.singletonMap(id, ""));
+  }
+
+  // Apply a batch of edits as in Spreadsheet.setCells. Parsing happens
+  // before any lock is taken.
+  @Override
+  public void setCells(Map<String, String> contents){
+    Map<String, Cell> made = makeAll(contents);
+    try{
+      setCells(contents, made);
+    }
+    finally{
+      touching.remove();
+    }
+  }
+
+  // Link, log and recalculate parsed edits, then tell the listeners.
+  protected void setCells(Map<String, String> contents, Map<String, Cell> made){
+    BitSet held;
+    List<String> order;
+    Map<String, Collection<String>> links;
+    ChangeFeed listening;
+    List<ChangeFeed.Subscription> ready = null;
+    RuntimeException logFailure = null;
+    structure.lock();
+    try{
+      listening = feed;
+      if (listening != null){
+        touching.set(new LinkedHashSet<String>());
+      }
+      held = stripesFor(made);
+      lock(held);
+      try{
+        order = linkAll(made);
+        links = downstreamLinks(order);
+      }
+      catch(RuntimeException e){
+        unlock(held);
+        throw e;
+      }
+      // the journal must see edits in the order they were linked, but
+      // a checkpoint must wait until they are recalculated
+      try{
+        appendAll(contents);
+      }
+      catch(RuntimeException e){
+        logFailure = e;
+      }
+    }
+    finally{
+      structure.unlock();
+    }
+    try{
+      recalculate(order, made.keySet(), links);
+      // queued before the stripes go so a later edit of these cells
+      // queues its states after these
+      if (listening != null){
+        ready = listening.queue(changesOf(touching.get()));
+      }
+    }
+    finally{
+      unlock(held);
+    }
+    if (ready != null){
+      listening.deliver(ready);
+    }
+    if (logFailure != null){
+      throw logFailure;
+    }
+    if (journal != null){
+      structure.lock();
+      try{
+        checkpointIfDue();
+      }
+      finally{
+        structure.unlock();
+      }
+    }
+  }
+
+  @Override
+  public String getCellDisplayString(String id){
+    BitSet held = new BitSet(stripes.length);
+    addCell(id, held);
+    lock(held);
+    try{
+      return super.getCellDisplayString(id);
+    }
+    finally{
+      unlock(held);
+    }
+  }
+
+  @Override
+  public String toString(){
+    structure.lock();
+    try{
+      BitSet all = new BitSet(stripes.length);
+      all.set(0, stripes.length);
+      lock(all);
+      try{
+        return super.toString();
+      }
+      finally{
+        unlock(all);
+      }
+    }
+    finally{
+      structure.unlock();
+    }
+  }
+
+  // Write a snapshot while no edit is linking or recalculating.
+  @Override
+  public void save(java.nio.file.Path file) throws IOException{
+    structure.lock();
+    try{
+      checkpointFile(file);
+    }
+    finally{
+      structure.unlock();
+    }
+  }
+
+  // Save to the file holding every stripe. Called with the structure
+  // lock held.
+  protected void checkpointFile(java.nio.file.Path file) throws IOException{
+    BitSet all = new BitSet(stripes.length);
+    all.set(0, stripes.length);
+    lock(all);
+    try{
+      SheetSnapshot.save(this, file);
+    }
+    finally{
+      unlock(all);
+    }
+  }
+
+  // Take every stripe before writing a snapshot. Called while holding
+  // the structure lock, when all other stripe holders are evaluating
+  // and will release theirs without waiting on anything.
+  @Override
+  protected void checkpoint() throws IOException{
+    BitSet all = new BitSet(stripes.length);
+    all.set(0, stripes.length);
+    lock(all);
+    try{
+      super.checkpoint();
+    }
+    finally{
+      unlock(all);
+    }
+  }
+
+  // Return the stripes an edit must hold: those of every cell it will
+  // recalculate and of every cell or range its new formulas read. The
+  // downstream closure is the same before and after the edit since a
+  // cell's own formula never changes what lies downstream of it.
+  protected BitSet stripesFor(Map<String, Cell> made){
+    BitSet held = new BitSet(stripes.length);
+    for (String id : dag.getDownstreamOrder(made.keySet())){
+      if (!ranges.hasUpstream(id)){
+        addCell(id, held);
+      }
+    }
+    for (Cell cell : made.values()){
+      if (cell == null){
+        continue;
+      }
+      for (String up : cell.getUpstreamIDs()){
+        RangeIndex.Range r = RangeIndex.Range.parse(up);
+        if (r == null){
+          addCell(up, held);
+        }
+        else{
+          addRange(r, held);
+        }
+      }
+    }
+    return held;
+  }
+
+  // Add the stripe of one cell.
+  protected void addCell(String id, BitSet held){
+    long addr = CellAddress.encode(id);
+    if (addr == CellAddress.NONE){
+      held.set(Math.floorMod(id.hashCode(), stripes.length));
+    }
+    else{
+      held.set(stripeOf((CellAddress.column(addr) - 1) / COLUMN_BLOCK,
+                        (CellAddress.row(addr) - 1) / ROW_BLOCK));
+    }
+  }
+
+  // Add the stripes of every region a range overlaps.
+  protected void addRange(RangeIndex.Range r, BitSet held){
+    int c1 = (r.col1 - 1) / COLUMN_BLOCK, c2 = (r.col2 - 1) / COLUMN_BLOCK;
+    int r1 = (r.row1 - 1) / ROW_BLOCK, r2 = (r.row2 - 1) / ROW_BLOCK;
+    if ((long) (c2 - c1 + 1) * (r2 - r1 + 1) >= stripes.length){
+      held.set(0, stripes.length);
+      return;
+    }
+    for (int c = c1; c <= c2; c++){
+      for (int row = r1; row <= r2; row++){
+        held.set(stripeOf(c, row));
+      }
+    }
+  }
+
+  // Hash a region to a stripe.
+  protected int stripeOf(int columnBlock, int rowBlock){
+    int h = columnBlock * 0x9E3779B1 + rowBlock;
+    h ^= h >>> 16;
+    return Math.floorMod(h, stripes.length);
+  }
+
+  // Lock the given stripes in ascending order.
+  protected void lock(BitSet held){
+    for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)){
+      stripes[i].lock();
+    }
+  }
+
+  protected void unlock(BitSet held){
+    for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)){
+      stripes[i].unlock();
+    }
+  }
+}
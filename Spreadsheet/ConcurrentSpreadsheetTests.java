@@ -0,0 +1,183 @@
+// Tests of editing one sheet from many threads
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class ConcurrentSpreadsheetTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("ConcurrentSpreadsheetTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(10000); 
+
+  // Run each task on its own thread and wait for all of them,
+  // rethrowing the first failure
+  public static void runAll(List<Callable<Void>> tasks) throws Exception{
+    ExecutorService exec = Executors.newFixedThreadPool(tasks.size());
+    try{
+      for(Future<Void> f : exec.invokeAll(tasks)){
+        f.get();
+      }
+    }
+    finally{
+      exec.shutdown();
+    }
+  }
+
+  // Check every formula cell holds the value of its formula over the
+  // current values of the cells it reads
+  public static void checkConsistent(Spreadsheet sheet){
+    for(String id : sheet.sheet.keySet()){
+      Cell cell = sheet.sheet.get(id);
+      if(cell.kind().equals("formula")){
+        Double expect;
+        try{
+          expect = Cell.evalFormulaTree(cell.tree(), sheet.sheet);
+        }
+        catch(Cell.EvalFormulaException e){
+          expect = null;
+        }
+        assertEquals(id, expect, cell.numberValue());
+      }
+    }
+  }
+
+  // Writers in separate regions build and update their own chains
+  @Test public void disjoint_writers1() throws Exception{
+    final ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(int t=0; t<4; t++){
+      final String col = "" + (char)('A' + 5 * t);
+      tasks.add(new Callable<Void>(){
+        public Void call(){
+          sheet.setCell(col+"1","0");
+          for(int i=2; i<=200; i++){
+            sheet.setCell(col+i,"="+col+(i-1)+"+1");
+          }
+          for(int i=1; i<=50; i++){
+            sheet.setCell(col+"1",""+i);
+          }
+          return null;
+        }
+      });
+    }
+    runAll(tasks);
+    for(int t=0; t<4; t++){
+      String col = "" + (char)('A' + 5 * t);
+      assertEquals("249.0", sheet.getCellDisplayString(col+"200"));
+    }
+    checkConsistent(sheet);
+  }
+  // Writers whose edits feed each other's formulas stay consistent
+  @Test public void shared_writers1() throws Exception{
+    final ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet(16);
+    sheet.setCell("A1","1");
+    sheet.setCell("A2","2");
+    sheet.setCell("Z1","=SUM(A1:A400)");
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(int t=0; t<4; t++){
+      final int seed = t;
+      tasks.add(new Callable<Void>(){
+        public Void call(){
+          Random rand = new Random(seed);
+          for(int i=0; i<150; i++){
+            int row = 1 + rand.nextInt(400);
+            String id = "A" + row;
+            int r = rand.nextInt(5);
+            try{
+              if(r == 0){
+                sheet.deleteCell(id);
+              }
+              else if(r == 1){
+                sheet.setCell(id,"=A"+(1 + rand.nextInt(400))+"*2");
+              }
+              else{
+                sheet.setCell("B"+row,"=A"+row+"+Z1");
+                sheet.setCell(id,""+rand.nextInt(100));
+              }
+            }
+            catch(DAG.CycleException e){ }
+          }
+          return null;
+        }
+      });
+    }
+    runAll(tasks);
+    checkConsistent(sheet);
+  }
+  // Recalculation follows links copied under the structure lock, not
+  // the DAG other writers may be changing
+  @Test public void concurrent_links1(){
+    final int[] unlocked = new int[1];
+    ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet(){
+      @Override
+      protected Collection<String> downstreamOf(String id, Map<String, Collection<String>> links){
+        if(links == null && !structure.isHeldByCurrentThread()){
+          unlocked[0]++;
+        }
+        return super.downstreamOf(id, links);
+      }
+    };
+    sheet.setCell("A1","1");
+    sheet.setCell("A2","=A1*2");
+    sheet.setCell("A3","=SUM(A1:A2)");
+    sheet.setCell("B1","=A3+1");
+    sheet.setCell("A1","5");
+    sheet.deleteCell("A2");
+    assertEquals("6.0", sheet.getCellDisplayString("B1"));
+    assertEquals(0, unlocked[0]);
+  }
+  // A checkpoint waits for the edit's recalculation, so recovery sees
+  // dependent values as the live sheet does
+  @Test public void concurrent_checkpoint1() throws Exception{
+    java.nio.file.Path dir = EditJournalTests.tempDir();
+    EditJournal journal = new EditJournal(dir);
+    journal.setCheckpointRecords(3);
+    ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+    sheet.setJournal(journal);
+    sheet.setCell("A1","1");
+    sheet.setCell("B1","=A1*10");
+    sheet.setCell("A1","7");
+    assertEquals("70.0", sheet.getCellDisplayString("B1"));
+    journal.close();
+    EditJournal again = new EditJournal(dir);
+    Spreadsheet copy = again.recover();
+    assertEquals("7.0", copy.getCellDisplayString("A1"));
+    assertEquals("70.0", copy.getCellDisplayString("B1"));
+    again.close();
+    EditJournalTests.clean(dir);
+  }
+  @Test public void concurrent_cycle1(){
+    ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+    sheet.setCell("A1","=B1");
+    try{
+      sheet.setCell("B1","=A1+1");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    sheet.setCell("B1","3");
+    assertEquals("3.0", sheet.getCellDisplayString("A1"));
+    assertEquals("=B1", sheet.getCellContents("A1"));
+  }
+  @Test public void concurrent_unsupported1(){
+    ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+    try{
+      sheet.setLazy(true);
+      fail("Lazy mode accepted");
+    }
+    catch(UnsupportedOperationException e){ }
+    try{
+      sheet.setVersioned(true);
+      fail("Versions accepted");
+    }
+    catch(UnsupportedOperationException e){ }
+  }
+}
@@ -11,10 +11,49 @@ public class DAG{
   // Maps which allow the downstream and upstream links for a given
   // node to be retrieved.
 
+  public static final int RANK_LIMIT = Integer.MAX_VALUE / 2;
+
+  protected Map<String, Integer> rank;
+  protected int firstRank, nextRank;
+  // Position of each node in a topological order which is kept up to
+  // date as links are added, so new links only need to be checked
+  // against the nodes ranked between their two ends. Ranks grow in
+  // both directions from zero, and every bulk load hands out fresh
+  // ones, so once they pass RANK_LIMIT either way they are renumbered.
+
+  protected LinkSource implied;
+  // Optional source of links which are implied rather than stored,
+  // such as a range node depending on every cell inside the range.
+  // They take part in ordering and cycle checks like stored links but
+  // are not shown by toString or the get*Links methods.
+
+  protected Map<String, Set<String>> bulkOld;
+  protected Set<String> bulkKnown;
+  // During a bulk load, the upstream links each node added since
+  // beginBulkLoad had before it, and which of those nodes were already
+  // in the DAG, so a load closing a cycle can be undone. Null o/w.
+
+  protected long version;
+  protected Reachability reachability;
+  // Count of changes to the links, so answers worked out from them can
+  // tell when they are stale, and the transitive queries made so far.
+
+  public interface LinkSource {
+    // Nodes implicitly downstream of id.
+    Collection<String> downstreamOf(String id);
+    // Nodes implicitly upstream of id.
+    Collection<String> upstreamOf(String id);
+    // Whether id has any implied upstream nodes.
+    boolean hasUpstream(String id);
+  }
+
   // Construct an empty DAG
   public DAG(){
     this.downstreamLinks = new HashMap<String, Set<String>>();
     this.upstreamLinks = new HashMap<String, Set<String>>();
+    this.rank = new HashMap<String, Integer>();
+    this.firstRank = 0;
+    this.nextRank = 0;
   }
   
   // Produce a string representaton of the DAG which shows the
@@ -24,8 +63,8 @@ public class DAG{
     StringBuilder s = new StringBuilder();
     s.append("Upstream Links:\n");
     // iterate through all the ids in upstream
-    for (String cell: upstreamLinks.keySet()){
-      Set<String> temp = upstreamLinks.get(cell);
+    for (String cell: listed(upstreamKeys())){
+      Collection<String> temp = listed(getUpstreamLinks(cell));
       // make sure it's not empty set
       if (!temp.isEmpty()){
         // add in certain format
@@ -46,8 +85,8 @@ public class DAG{
     }
     // same thing but for downstreamLinks
     s.append("Downstream Links:\n");
-    for (String cell: downstreamLinks.keySet()){
-      Set<String> temp = downstreamLinks.get(cell);
+    for (String cell: listed(downstreamKeys())){
+      Collection<String> temp = listed(getDownstreamLinks(cell));
       if (!temp.isEmpty()){
         s.append(String.format("%4s : [", cell));
         int count = temp.size();
@@ -67,18 +106,20 @@ public class DAG{
     return s.toString(); 
   }
 
+  // Return ids in the order toString lists them, here as stored.
+  protected Collection<String> listed(Collection<String> ids){
+    return ids;
+  }
+
   // Return the upstream links associated with the given ID.  If there
-  // are no links associated with ID, return the empty set.
+  // are no links associated with ID, return the empty set. The set is
+  // the DAG's own and must not be changed.
   //
   // TARGET COMPLEXITY: O(1)
   public Set<String> getUpstreamLinks(String id){
-    Set<String> stream = new HashSet<String>();
-    // if upstreamLinks has the upstreamlinks of this id then update stream
-    if (upstreamLinks.containsKey(id)){
-      stream = upstreamLinks.get(id);
-    }
-    // otherwise it has no stream return empty set
-    return stream;
+    Set<String> stream = upstreamLinks.get(id);
+    // a node with no links shares the one immutable empty set
+    return stream == null ? Collections.<String>emptySet() : stream;
   }
   
   // Return the downstream links associated with the given ID.  If
@@ -87,79 +128,657 @@ public class DAG{
   // TARGET COMPLEXITY: O(1)
   public Set<String> getDownstreamLinks(String id){
     // same but for downstream
-    Set<String> stream = new HashSet<String>();
-    if (downstreamLinks.containsKey(id)){
-      stream = downstreamLinks.get(id);
+    Set<String> stream = downstreamLinks.get(id);
+    return stream == null ? Collections.<String>emptySet() : stream;
+  }
+
+  // Return the IDs of every node. The set is the DAG's own and must not
+  // be changed.
+  public Set<String> getNodes(){
+    return Collections.unmodifiableSet(rank.keySet());
+  }
+
+  // Use the given source of implied links, or none if null.
+  public void setLinkSource(LinkSource source){
+    this.implied = source;
+  }
+
+  // Return whether id has been added to the DAG or linked to.
+  public boolean hasNode(String id){
+    return rank.containsKey(id);
+  }
+
+  // Drop a node which nothing links to any more so it is ranked
+  // afresh if it comes back. Does nothing while id has downstream
+  // links.
+  public void forget(String id){
+    if (!getDownstreamLinks(id).isEmpty()){
+      return;
+    }
+    remove(id);
+    dropDownstream(id);
+    rank.remove(id);
+  }
+
+  // Return the number of times the links have changed.
+  public long version(){
+    return version;
+  }
+
+  // Return the transitive queries over this DAG, which cache their
+  // answers until the links next change.
+  public Reachability reachability(){
+    if (reachability == null){
+      reachability = new Reachability(this);
+    }
+    return reachability;
+  }
+
+  // Return every node id depends on through any chain of stored or
+  // implied links, excluding id. The set must not be changed.
+  public Set<String> getAllPrecedents(String id){
+    return reachability().precedents(id);
+  }
+
+  // Return every node depending on id through any chain of links,
+  // excluding id. The set must not be changed.
+  public Set<String> getAllDependents(String id){
+    return reachability().dependents(id);
+  }
+
+  // Return whether to depends on from through some chain of links.
+  public boolean reaches(String from, String to){
+    return reachability().reaches(from, to);
+  }
+
+  // Return a shortest chain of downstream links from from to to,
+  // listing both ends, or the empty list if to does not depend on
+  // from.
+  public List<String> findPath(String from, String to){
+    return reachability().path(from, to);
+  }
+
+  // Return the most links on any chain from id up to a node with no
+  // upstream links.
+  public int getDepth(String id){
+    return reachability().depth(id);
+  }
+
+  // Return the stored and implied downstream links of id.
+  public Collection<String> getEffectiveDownstream(String id){
+    Set<String> stored = getDownstreamLinks(id);
+    if (implied == null){
+      return stored;
+    }
+    Collection<String> extra = implied.downstreamOf(id);
+    if (extra.isEmpty()){
+      return stored;
+    }
+    List<String> all = new ArrayList<String>(stored);
+    all.addAll(extra);
+    return all;
+  }
+
+  // Return the stored and implied upstream links of id.
+  public Collection<String> getEffectiveUpstream(String id){
+    Set<String> stored = getUpstreamLinks(id);
+    if (implied == null || !implied.hasUpstream(id)){
+      return stored;
+    }
+    List<String> all = new ArrayList<String>(stored);
+    all.addAll(implied.upstreamOf(id));
+    return all;
+  }
+
+  // Return the given IDs and every node downstream of them ordered so
+  // that each node appears after all of its upstream nodes which are
+  // also in the list. Each node appears exactly once. Works
+  // iteratively so long chains do not exhaust the stack.
+  //
+  // TARGET COMPLEXITY: O(A + L_A)
+  //   A   : number of nodes reachable downstream from ids
+  //   L_A : number of links between those nodes
+  public List<String> getDownstreamOrder(Collection<String> ids){
+    // collect the affected region with an explicit stack
+    Set<String> affected = new HashSet<String>();
+    Deque<String> stack = new ArrayDeque<String>();
+    for (String id : ids){
+      if (affected.add(id)){
+        stack.push(id);
+      }
+    }
+    while (!stack.isEmpty()){
+      String cur = stack.pop();
+      for (String down : getEffectiveDownstream(cur)){
+        if (affected.add(down)){
+          stack.push(down);
+        }
+      }
+    }
+    // count the links into each node from inside the region; every
+    // downstream link of a region node stays inside the region
+    Map<String, Integer> pending = new HashMap<String, Integer>();
+    for (String id : affected){
+      pending.put(id, 0);
+    }
+    for (String id : affected){
+      for (String down : getEffectiveDownstream(id)){
+        pending.put(down, pending.get(down) + 1);
+      }
+    }
+    Deque<String> ready = new ArrayDeque<String>();
+    for (String id : affected){
+      if (pending.get(id) == 0){
+        ready.add(id);
+      }
+    }
+    // Kahn's algorithm: release a node once all its upstreams are placed
+    List<String> order = new ArrayList<String>(affected.size());
+    while (!ready.isEmpty()){
+      String cur = ready.poll();
+      order.add(cur);
+      for (String down : getEffectiveDownstream(cur)){
+        int left = pending.get(down) - 1;
+        pending.put(down, left);
+        if (left == 0){
+          ready.add(down);
+        }
+      }
     }
-    return stream;
+    return order;
   }
 
   public static class CycleException extends RuntimeException{
   // Class representing a cycle that is detected on adding to the
   // DAG. Raised in checkForCycles(..) and add(..).
 
+    protected final List<List<String>> cycles;
+    // Every cycle found, each listed from a node back to itself along
+    // upstream links; empty if the message is all there is.
+
     public CycleException(String msg){
       super(msg);
+      this.cycles = Collections.emptyList();
     }
     // Construct an exception with the given error message
 
+    public CycleException(List<List<String>> cycles){
+      super(cycleMessage(cycles));
+      this.cycles = cycles;
+    }
+    // Construct an exception for the given cycles, the message listing
+    // them separated by semicolons
+
+    // Return every cycle found.
+    public List<List<String>> getCycles(){
+      return cycles;
+    }
+
+    protected static String cycleMessage(List<List<String>> cycles){
+      StringBuilder s = new StringBuilder();
+      for (List<String> cycle : cycles){
+        if (s.length() > 0){
+          s.append("; ");
+        }
+        s.append(cycle);
+      }
+      return s.toString();
+    }
   }
 
   // Add a node to the DAG with the provided set of upstream links.
-  // TARGET RUNTIME COMPLEXITY: O(N + L)
-  // MEMORY OVERHEAD: O(P)
-  //   N : number of nodes in the DAG
-  //   L : number of upstream links in the DAG
-  //   P : longest path in the DAG starting from node id
+  // Each new link is checked against the maintained topological
+  // order so only the region ranked between its two ends is searched.
+  // TARGET RUNTIME COMPLEXITY: O(U * (R + L_R) log R)
+  // MEMORY OVERHEAD: O(R)
+  //   U   : number of upstream links given for id
+  //   R   : nodes ranked between the ends of a link that is out of order
+  //   L_R : links touching those nodes
   public void add(String id, Set<String> upstreamIDs){
-    // Retrieve the current upstream links associated with id and save them in a local variable
-    Set<String> currUpStream = new HashSet<String>();
-    if (upstreamLinks.containsKey(id)){
-      Set<String> temp = upstreamLinks.get(id);
-      // copies it into local var
-      for(String p : temp){
-        currUpStream.add(p);
+    if (bulkOld != null){
+      if (!bulkOld.containsKey(id)){
+        bulkOld.put(id, new HashSet<String>(getUpstreamLinks(id)));
+        if (hasNode(id)){
+          bulkKnown.add(id);
+        }
       }
+      relink(id, upstreamIDs);
+      return;
     }
+    renumberIfNeeded(upstreamIDs.size() + 1);
+    // Retrieve the current upstream links associated with id and save them in a local variable
+    Set<String> currUpStream = new HashSet<String>(getUpstreamLinks(id));
+    boolean known = hasNode(id);
     remove(id); //Remove id from the DAG
-    upstreamLinks.put(id, upstreamIDs); //change upstreamlink associated with id 
+    putUpstream(id, upstreamIDs); //change upstreamlink associated with id 
     
     //For each of the nodes in newUpstreamLinks, add id to its downstream links
     for(String s : upstreamIDs){
-      // if downstream already has the key then just add the id to the already existing set
-      if(downstreamLinks.containsKey(s)){
-        downstreamLinks.get(s).add(id);
-      }     
-      // if downstream doesn't contain the key then add a new set with the just the id
-      else{
-        Set<String> temp = new HashSet<String>();
-        temp.add(id);
-        downstreamLinks.put(s, temp);
-       }
-    } 
-    
-    // Make path that holds the new added id that will be passed into cycles method
-    List<String> path = new ArrayList<String>();
-    path.add(id);
-    // if there is a cycle then remove the id (undo it) and add the id again with the old up stream
-    if (checkForCycles(upstreamLinks, path) == true){
+      addDownstreamLink(s, id);
+    }
+    rankOf(id);
+
+    // place each new link in the order; a failure means a cycle
+    List<String> path = null;
+    for(String s : upstreamIDs){
+      path = reorderForLink(s, id);
+      if (path != null){
+        break;
+      }
+    }
+    // a node placed for the first time must also precede the nodes it
+    // is implicitly upstream of
+    if (path == null && implied != null){
+      for(String d : implied.downstreamOf(id)){
+        path = reorderForLink(id, d);
+        if (path != null){
+          // reported from d; start from id instead
+          path = new ArrayList<String>(path.subList(1, path.size()));
+          path.add(id);
+          break;
+        }
+      }
+    }
+    if (path != null){
+      // undo by putting back the old links, which cannot form a cycle
       remove(id);
-      add(id, currUpStream);
-      // Make error message for cycle exception
-      StringBuilder s = new StringBuilder();
-      s.append("[");
-      int i = 1; //help keep track of where last elem is
-      for (String elem : path){
-        if (i < path.size()){
-          s.append(elem + ", ");
-          i++;
+      putUpstream(id, currUpStream);
+      if (!known){
+        rank.remove(id);
+      }
+      for(String p : currUpStream){
+        addDownstreamLink(p, id);
+        reorderForLink(p, id);
+      }
+      throw new CycleException(path.toString());
+    }
+  }
+
+  // Replace the upstream links of several nodes at once. All the new
+  // links are put in place first and checked for cycles together, so
+  // a batch may rearrange dependencies in ways that would be cyclic if
+  // applied one node at a time. On a cycle every node keeps its old
+  // links and a CycleException names a cycle through one of the
+  // changed nodes. Returns the changed nodes and everything downstream
+  // of them in topological order.
+  // TARGET RUNTIME COMPLEXITY: O(A + L_A)
+  //   A   : number of nodes reachable downstream from the changed ones
+  //   L_A : number of links between those nodes
+  public List<String> addAll(Map<String, Set<String>> links){
+    beginBulkLoad();
+    for (Map.Entry<String, Set<String>> e : links.entrySet()){
+      add(e.getKey(), e.getValue());
+    }
+    return endBulkLoad();
+  }
+
+  // Start a bulk load: until endBulkLoad, add puts links in place
+  // without checking them, so loading N nodes costs O(N + L) rather
+  // than a cycle search per node. Nothing but add may change the DAG
+  // during the load.
+  public void beginBulkLoad(){
+    if (bulkOld != null){
+      throw new IllegalStateException("Bulk load already in progress");
+    }
+    bulkOld = new HashMap<String, Set<String>>();
+    bulkKnown = new HashSet<String>();
+  }
+
+  // Return whether a bulk load is in progress.
+  public boolean isBulkLoading(){
+    return bulkOld != null;
+  }
+
+  // Finish a bulk load with a single pass of Kahn's algorithm over the
+  // added nodes and everything downstream of them, and return that
+  // region in topological order, ready for recalculation. If the load
+  // closed any cycles, every added node gets its old links back and a
+  // CycleException lists one cycle through each group of nodes caught
+  // on cycles.
+  // TARGET RUNTIME COMPLEXITY: O(A + L_A) as for addAll
+  public List<String> endBulkLoad(){
+    if (bulkOld == null){
+      throw new IllegalStateException("No bulk load in progress");
+    }
+    Map<String, Set<String>> old = bulkOld;
+    Set<String> known = bulkKnown;
+    bulkOld = null;
+    bulkKnown = null;
+    // nodes on a cycle are never released by Kahn's algorithm and any
+    // new cycle must pass through an added node
+    List<String> order = getDownstreamOrder(old.keySet());
+    Set<String> placed = new HashSet<String>(order);
+    if (placed.containsAll(old.keySet())){
+      // anything reaching the region is outside it and already ranked,
+      // so fresh ranks in Kahn order keep the whole order valid
+      renumberIfNeeded(order.size());
+      for (String id : order){
+        rank.put(id, nextRank++);
+      }
+      return order;
+    }
+    List<List<String>> cycles = findCycles(placed, old.keySet());
+    for (Map.Entry<String, Set<String>> e : old.entrySet()){
+      relink(e.getKey(), e.getValue());
+    }
+    // ranks handed to new nodes may disagree with their implied links
+    for (String id : old.keySet()){
+      if (!known.contains(id)){
+        rank.remove(id);
+      }
+    }
+    throw new CycleException(cycles);
+  }
+
+  // Put the given upstream links in place for id without any checks.
+  protected void relink(String id, Set<String> upstreamIDs){
+    remove(id);
+    putUpstream(id, upstreamIDs);
+    for (String s : upstreamIDs){
+      addDownstreamLink(s, id);
+      rankNewUpstream(s);
+    }
+    rankOf(id);
+  }
+
+  // Find the nodes on cycles among those downstream of starts which
+  // Kahn's algorithm could not place. They are grouped into strongly
+  // connected components with an iterative Tarjan search along
+  // upstream links, and one cycle is reported for each group of more
+  // than one node or node linked to itself; the rest were only stuck
+  // downstream of a cycle. Each cycle starts and ends at one of the
+  // starts, following upstream links.
+  // Runtime Complexity: O(S + L_S)
+  //   S   : nodes downstream of starts
+  //   L_S : links between them
+  protected List<List<String>> findCycles(Set<String> placed, Set<String> starts){
+    Set<String> region = new HashSet<String>(starts);
+    Deque<String> stack = new ArrayDeque<String>(starts);
+    while (!stack.isEmpty()){
+      for (String down : getEffectiveDownstream(stack.pop())){
+        if (region.add(down)){
+          stack.push(down);
+        }
+      }
+    }
+    Set<String> stuck = new HashSet<String>();
+    for (String id : region){
+      if (!placed.contains(id)){
+        stuck.add(id);
+      }
+    }
+    List<List<String>> cycles = new ArrayList<List<String>>();
+    Map<String, Integer> index = new HashMap<String, Integer>();
+    Map<String, Integer> low = new HashMap<String, Integer>();
+    Deque<String> members = new ArrayDeque<String>();
+    Set<String> onStack = new HashSet<String>();
+    Deque<String> path = new ArrayDeque<String>();
+    Deque<Iterator<String>> next = new ArrayDeque<Iterator<String>>();
+    for (String root : stuck){
+      if (index.containsKey(root)){
+        continue;
+      }
+      visit(root, index, low, members, onStack, path, next);
+      while (!path.isEmpty()){
+        String v = path.peek();
+        Iterator<String> it = next.peek();
+        if (it.hasNext()){
+          String w = it.next();
+          if (!stuck.contains(w)){
+            continue;
+          }
+          if (!index.containsKey(w)){
+            visit(w, index, low, members, onStack, path, next);
+          }
+          else if (onStack.contains(w)){
+            low.put(v, Math.min(low.get(v), index.get(w)));
+          }
+          continue;
+        }
+        path.pop();
+        next.pop();
+        if (!path.isEmpty()){
+          String p = path.peek();
+          low.put(p, Math.min(low.get(p), low.get(v)));
+        }
+        if (low.get(v).equals(index.get(v))){
+          Set<String> group = new HashSet<String>();
+          String w;
+          do{
+            w = members.pop();
+            onStack.remove(w);
+            group.add(w);
+          } while (!w.equals(v));
+          if (group.size() > 1 || getEffectiveUpstream(v).contains(v)){
+            cycles.add(cycleThrough(group, starts));
+          }
+        }
+      }
+    }
+    return cycles;
+  }
+
+  // Number a node for the Tarjan search and start on its links.
+  protected void visit(String id, Map<String, Integer> index, Map<String, Integer> low,
+                       Deque<String> members, Set<String> onStack,
+                       Deque<String> path, Deque<Iterator<String>> next){
+    int i = index.size();
+    index.put(id, i);
+    low.put(id, i);
+    members.push(id);
+    onStack.add(id);
+    path.push(id);
+    next.push(getEffectiveUpstream(id).iterator());
+  }
+
+  // Return the shortest cycle within a strongly connected group through
+  // one of its starts, or any node if it has none, found breadth first
+  // along upstream links.
+  protected List<String> cycleThrough(Set<String> group, Set<String> starts){
+    String first = null;
+    for (String id : starts){
+      if (group.contains(id)){
+        first = id;
+        break;
+      }
+    }
+    if (first == null){
+      first = group.iterator().next();
+    }
+    Map<String, String> parent = new HashMap<String, String>();
+    Deque<String> queue = new ArrayDeque<String>();
+    queue.add(first);
+    while (!queue.isEmpty()){
+      String cur = queue.poll();
+      for (String up : getEffectiveUpstream(cur)){
+        if (up.equals(first)){
+          List<String> cycle = new ArrayList<String>();
+          for (String p = cur; p != null; p = parent.get(p)){
+            cycle.add(p);
+          }
+          Collections.reverse(cycle);
+          cycle.add(first);
+          return cycle;
+        }
+        if (group.contains(up) && !parent.containsKey(up)){
+          parent.put(up, cur);
+          queue.add(up);
+        }
+      }
+    }
+    throw new IllegalStateException("No cycle through " + first);
+  }
+
+  // Nodes with upstream and with downstream links, for toString.
+  protected Collection<String> upstreamKeys(){
+    return upstreamLinks.keySet();
+  }
+
+  protected Collection<String> downstreamKeys(){
+    return downstreamLinks.keySet();
+  }
+
+  // Store the upstream links of id, which must have none stored, but
+  // not the matching downstream links.
+  protected void putUpstream(String id, Set<String> upstreamIDs){
+    upstreamLinks.put(id, upstreamIDs);
+  }
+
+  // Drop the stored upstream or downstream links of id, leaving the
+  // other side of each link alone.
+  protected void dropUpstream(String id){
+    upstreamLinks.remove(id);
+  }
+
+  protected void dropDownstream(String id){
+    downstreamLinks.remove(id);
+  }
+
+  // Stop recording id as downstream of up.
+  protected void removeDownstreamLink(String up, String id){
+    downstreamLinks.get(up).remove(id);
+  }
+
+  // Record id as downstream of up.
+  protected void addDownstreamLink(String up, String id){
+    Set<String> temp = downstreamLinks.get(up);
+    // if downstream doesn't contain the key then add a new set
+    if (temp == null){
+      temp = new HashSet<String>();
+      downstreamLinks.put(up, temp);
+    }
+    temp.add(id);
+  }
+
+  // Renumber the ranks if handing out another extra of them might pass
+  // RANK_LIMIT.
+  protected void renumberIfNeeded(int extra){
+    if (nextRank > RANK_LIMIT - extra || firstRank < -RANK_LIMIT + extra){
+      renumber();
+    }
+  }
+
+  // Give the nodes the ranks 0 to N-1 in their present order.
+  // Runtime Complexity: O(N log N)
+  //   N: ranked nodes
+  protected void renumber(){
+    List<Map.Entry<String, Integer>> all = new ArrayList<Map.Entry<String, Integer>>(rank.entrySet());
+    Collections.sort(all, new Comparator<Map.Entry<String, Integer>>(){
+      public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b){
+        return Integer.compare(a.getValue(), b.getValue());
+      }
+    });
+    int next = 0;
+    for (Map.Entry<String, Integer> e : all){
+      e.setValue(next++);
+    }
+    firstRank = 0;
+    nextRank = next;
+  }
+
+  // Return the position of id in the topological order, giving it the
+  // last position if it has not been seen before.
+  protected int rankOf(String id){
+    Integer r = rank.get(id);
+    if (r == null){
+      r = nextRank++;
+      rank.put(id, r);
+    }
+    return r;
+  }
+
+  // Rank a node first seen as an upstream link. With no links of its
+  // own it can go ahead of everything, which keeps sheets built
+  // bottom-up cheap; a node with implied upstream links goes last.
+  protected void rankNewUpstream(String id){
+    if (!rank.containsKey(id)){
+      boolean fed = implied != null && implied.hasUpstream(id);
+      rank.put(id, fed ? nextRank++ : --firstRank);
+    }
+  }
+
+  // Restore the topological order after the link up -> down was
+  // added (Pearce-Kelly). Returns null on success or the cycle that
+  // the link closes, listed from down along upstream links back to
+  // down, in which case the order is left untouched.
+  protected List<String> reorderForLink(String up, String down){
+    if (up.equals(down)){
+      return new ArrayList<String>(Arrays.asList(down, down));
+    }
+    rankNewUpstream(up);
+    int upper = rankOf(up);
+    int lower = rankOf(down);
+    if (lower > upper){
+      return null; // already in order
+    }
+
+    // search downstream of down for nodes ranked no later than up
+    Map<String, String> parent = new HashMap<String, String>();
+    List<String> forward = new ArrayList<String>();
+    Deque<String> stack = new ArrayDeque<String>();
+    parent.put(down, null);
+    stack.push(down);
+    while (!stack.isEmpty()){
+      String cur = stack.pop();
+      forward.add(cur);
+      for (String next : getEffectiveDownstream(cur)){
+        if (next.equals(up)){
+          // walk the parents back to down to report the cycle
+          List<String> path = new ArrayList<String>();
+          path.add(down);
+          path.add(up);
+          for (String p = cur; p != null; p = parent.get(p)){
+            path.add(p);
+          }
+          return path;
+        }
+        if (!parent.containsKey(next) && rankOf(next) < upper){
+          parent.put(next, cur);
+          stack.push(next);
         }
-        else{
-          s.append(elem + "]");
+      }
+    }
+
+    // search upstream of up for nodes ranked no earlier than down
+    Set<String> seen = new HashSet<String>();
+    List<String> backward = new ArrayList<String>();
+    seen.add(up);
+    stack.push(up);
+    while (!stack.isEmpty()){
+      String cur = stack.pop();
+      backward.add(cur);
+      for (String prev : getEffectiveUpstream(cur)){
+        if (!seen.contains(prev) && rankOf(prev) > lower){
+          seen.add(prev);
+          stack.push(prev);
         }
       }
-      throw new CycleException(s.toString());
     }
+
+    // hand the pooled positions to the upstream side first
+    Comparator<String> byRank = new Comparator<String>(){
+      public int compare(String a, String b){
+        return Integer.compare(rank.get(a), rank.get(b));
+      }
+    };
+    Collections.sort(backward, byRank);
+    Collections.sort(forward, byRank);
+    List<Integer> slots = new ArrayList<Integer>();
+    for (String n : backward){
+      slots.add(rank.get(n));
+    }
+    for (String n : forward){
+      slots.add(rank.get(n));
+    }
+    Collections.sort(slots);
+    int i = 0;
+    for (String n : backward){
+      rank.put(n, slots.get(i++));
+    }
+    for (String n : forward){
+      rank.put(n, slots.get(i++));
+    }
+    return null;
   }
   
   // Determine if there is a cycle in the graph represented in the
@@ -196,15 +815,12 @@ public class DAG{
   // TARGET COMPLEXITY: O(L_i)
   //   L_i : number of upstream links node id has
   public void remove(String id){
-    // make sure id is in upstream
-    if(upstreamLinks.containsKey(id)){
-      Set<String> stream = upstreamLinks.get(id);
-      // eliminates id from all the downstreams it was connected to
-      for(String s : stream){
-        downstreamLinks.get(s).remove(id);
-      }
+    version++;
+    // eliminates id from all the downstreams it was connected to
+    for(String s : getUpstreamLinks(id)){
+      removeDownstreamLink(s, id);
     }
     // remove from the upstream
-    upstreamLinks.remove(id);
+    dropUpstream(id);
   }
 }
@@ -1624,4 +1624,241 @@ public class DAGTests {
     checkDAGCycle(additions,expectS,expectHasCycle,expectCycles);
   } 
  
+  // Check that downstream ordering visits each node once, upstreams first
+  @Test public void dag_downstream_order_diamond(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    dag.add("C1",toSet("A1"));
+    dag.add("D1",toSet("B1","C1"));
+    dag.add("E1",toSet("D1","A1"));
+    List<String> order = dag.getDownstreamOrder(toSet("A1"));
+    assertEquals(5, order.size());
+    assertEquals(toSet("A1","B1","C1","D1","E1"), new HashSet<String>(order));
+    assertEquals("A1", order.get(0));
+    assertTrue(order.indexOf("B1") < order.indexOf("D1"));
+    assertTrue(order.indexOf("C1") < order.indexOf("D1"));
+    assertTrue(order.indexOf("D1") < order.indexOf("E1"));
+  }
+  @Test public void dag_downstream_order_unlinked(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    List<String> order = dag.getDownstreamOrder(toSet("Z9"));
+    assertEquals(Arrays.asList("Z9"), order);
+  }
+
+  // Links added against the maintained order must still find cycles
+  // and report the path from the new node back to itself
+  @Test public void dag_rank_reorder_cycle(){
+    DAG dag = new DAG();
+    dag.add("D1",toSet("C1"));
+    dag.add("C1",toSet("B1"));
+    dag.add("B1",toSet("A1"));
+    List<String> order = dag.getDownstreamOrder(toSet("A1"));
+    assertEquals(Arrays.asList("A1","B1","C1","D1"), order);
+    try{
+      dag.add("A1",toSet("D1"));
+      fail("Expected a cycle");
+    }
+    catch(DAG.CycleException e){
+      assertEquals("[A1, D1, C1, B1, A1]", e.getMessage());
+    }
+    assertEquals(EMPTY_SET, dag.getUpstreamLinks("A1"));
+    assertEquals(toSet("C1"), dag.getDownstreamLinks("B1"));
+  }
+
+  // Batches are checked once after all links change
+  @Test public void dag_addAll_swap(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    dag.add("C1",toSet("B1"));
+    Map<String,Set<String>> batch = new HashMap<String,Set<String>>();
+    batch.put("A1",toSet("B1"));
+    batch.put("B1",toSet());
+    List<String> order = dag.addAll(batch);
+    assertEquals(toSet("B1"), dag.getUpstreamLinks("A1"));
+    assertEquals(EMPTY_SET, dag.getUpstreamLinks("B1"));
+    assertEquals(toSet("A1","B1","C1"), new HashSet<String>(order));
+    assertTrue(order.indexOf("B1") < order.indexOf("A1"));
+    // the order stays valid for later single adds
+    try{
+      dag.add("B1",toSet("A1"));
+      fail("Expected a cycle");
+    }
+    catch(DAG.CycleException e){
+      assertEquals("[B1, A1, B1]", e.getMessage());
+    }
+  }
+  @Test public void dag_addAll_cycle_rollback(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    dag.add("C1",toSet("B1"));
+    String before = sortedLines(dag.toString());
+    Map<String,Set<String>> batch = new HashMap<String,Set<String>>();
+    batch.put("A1",toSet("C1"));
+    batch.put("D1",toSet("A1"));
+    try{
+      dag.addAll(batch);
+      fail("Expected a cycle");
+    }
+    catch(DAG.CycleException e){
+      assertEquals("[A1, C1, B1, A1]", e.getMessage());
+    }
+    assertEquals(before, sortedLines(dag.toString()));
+  }
+
+  // A bulk load checks everything once and hands back the order
+  @Test public void dag_bulk_load1(){
+    DAG dag = new DAG();
+    int n = 50000;
+    dag.beginBulkLoad();
+    assertTrue(dag.isBulkLoading());
+    for(int i=n; i>=2; i--){
+      dag.add("A" + i, toSet("A" + (i-1)));
+    }
+    List<String> order = dag.endBulkLoad();
+    assertFalse(dag.isBulkLoading());
+    assertEquals(n-1, order.size());
+    assertEquals("A2", order.get(0));
+    assertEquals("A" + n, order.get(n-2));
+    try{
+      dag.add("A1", toSet("A" + n));
+      fail("Expected a cycle");
+    }
+    catch(DAG.CycleException e){ }
+  }
+
+  // Every separate cycle a bulk load closes is reported, and the load
+  // is undone
+  @Test public void dag_bulk_load_cycles1(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    String before = sortedLines(dag.toString());
+    dag.beginBulkLoad();
+    dag.add("A1",toSet("B1"));
+    dag.add("C1",toSet("D1","A1"));
+    dag.add("D1",toSet("E1"));
+    dag.add("E1",toSet("C1"));
+    dag.add("F1",toSet("F1"));
+    dag.add("G1",toSet("C1"));
+    try{
+      dag.endBulkLoad();
+      fail("Expected cycles");
+    }
+    catch(DAG.CycleException e){
+      List<List<String>> cycles = e.getCycles();
+      assertEquals(3, cycles.size());
+      Set<String> found = new HashSet<String>();
+      for(List<String> cycle : cycles){
+        assertEquals(cycle.get(0), cycle.get(cycle.size()-1));
+        found.add(sortList(cycle.subList(1, cycle.size()).toString()));
+      }
+      assertEquals(toSet("[A1, B1]", "[C1, D1, E1]", "[F1]"), found);
+    }
+    assertEquals(before, sortedLines(dag.toString()));
+    assertFalse(dag.isBulkLoading());
+    assertEquals(EMPTY_SET, dag.getUpstreamLinks("C1"));
+  }
+
+  // Transitive queries follow every chain of links
+  @Test public void dag_reachability1(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    dag.add("C1",toSet("B1","A1"));
+    dag.add("D1",toSet("C1"));
+    dag.add("E1",toSet("X1"));
+    assertEquals(toSet("A1","B1","C1"), dag.getAllPrecedents("D1"));
+    assertEquals(toSet("B1","C1","D1"), dag.getAllDependents("A1"));
+    assertEquals(EMPTY_SET, dag.getAllPrecedents("A1"));
+    assertEquals(EMPTY_SET, dag.getAllDependents("Q1"));
+    assertTrue(dag.reaches("A1","D1"));
+    assertFalse(dag.reaches("D1","A1"));
+    assertFalse(dag.reaches("X1","D1"));
+    assertEquals(Arrays.asList("A1","C1","D1"), dag.findPath("A1","D1"));
+    assertEquals(Arrays.asList("B1"), dag.findPath("B1","B1"));
+    assertEquals(new ArrayList<String>(), dag.findPath("E1","D1"));
+    assertEquals(3, dag.getDepth("D1"));
+    assertEquals(0, dag.getDepth("A1"));
+    assertEquals(1, dag.getDepth("E1"));
+  }
+
+  // Cached answers do not outlive a change to the links
+  @Test public void dag_reachability_stale1(){
+    DAG dag = new DAG();
+    dag.add("B1",toSet("A1"));
+    dag.add("C1",toSet("B1"));
+    assertEquals(toSet("A1","B1"), dag.getAllPrecedents("C1"));
+    assertEquals(2, dag.getDepth("C1"));
+    assertTrue(dag.reaches("A1","C1"));
+    dag.add("B1",toSet("Z1"));
+    assertEquals(toSet("Z1","B1"), dag.getAllPrecedents("C1"));
+    assertEquals(EMPTY_SET, dag.getAllDependents("A1"));
+    assertFalse(dag.reaches("A1","C1"));
+    dag.add("Z1",toSet("Y1"));
+    assertEquals(3, dag.getDepth("C1"));
+    dag.remove("C1");
+    assertEquals(EMPTY_SET, dag.getAllPrecedents("C1"));
+  }
+
+  // Searches pruned by rank agree with plain searches on random DAGs,
+  // on both kinds of DAG
+  @Test public void dag_reachability_random1(){
+    Random rand = new Random(24);
+    for(DAG dag : new DAG[]{ new DAG(), new CompactDAG() }){
+      int n = 60;
+      for(int e=0; e<150; e++){
+        int a = rand.nextInt(n), b = rand.nextInt(n);
+        String down = "A" + (a+1);
+        Set<String> ups = new HashSet<String>(dag.getUpstreamLinks(down));
+        ups.add("A" + (b+1));
+        try{
+          dag.add(down, ups);
+        }
+        catch(DAG.CycleException ex){ }
+      }
+      for(int a=1; a<=n; a++){
+        String from = "A" + a;
+        Set<String> plain = new HashSet<String>();
+        Deque<String> stack = new ArrayDeque<String>();
+        stack.push(from);
+        while(!stack.isEmpty()){
+          for(String d : dag.getDownstreamLinks(stack.pop())){
+            if(plain.add(d)){
+              stack.push(d);
+            }
+          }
+        }
+        if(dag.hasNode(from)){
+          assertEquals(plain, dag.getAllDependents(from));
+        }
+        for(int b=1; b<=n; b++){
+          String to = "A" + b;
+          if(a == b){
+            continue;
+          }
+          assertEquals(from+" "+to, plain.contains(to), dag.reaches(from, to));
+          List<String> path = dag.findPath(from, to);
+          assertEquals(plain.contains(to), !path.isEmpty());
+          for(int i=1; i<path.size(); i++){
+            assertTrue(dag.getUpstreamLinks(path.get(i)).contains(path.get(i-1)));
+          }
+        }
+      }
+    }
+  }
+
+  // A long chain answers by rank alone in the wrong direction and has
+  // no trouble with depth
+  @Test public void dag_reachability_chain1(){
+    DAG dag = new DAG();
+    int n = 20000;
+    for(int i=2; i<=n; i++){
+      dag.add("A" + i, toSet("A" + (i-1)));
+    }
+    assertEquals(n-1, dag.getDepth("A" + n));
+    for(int i=0; i<100000; i++){
+      assertFalse(dag.reaches("A" + n, "A1"));
+    }
+    assertTrue(dag.reaches("A1", "A" + n));
+    assertEquals(n, dag.findPath("A1", "A" + n).size());
+  }
 }
@@ -0,0 +1,315 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Redo journal of spreadsheet edits kept in a directory next to a
+// SheetSnapshot. Each successful setCell, deleteCell or setCells on a
+// sheet with the journal attached appends one record per cell once the
+// edit has been applied, so edits rejected as cycles or bad formulas
+// are never logged. Records are buffered and forced to disk together
+// (group commit) once groupRecords are waiting or the oldest of them
+// is groupNanos old, so a burst of edits costs one fsync instead of
+// one each. An append commits when it fills the group; otherwise a
+// daemon timer commits when the oldest record comes due, so a lone
+// edit is not left in the buffer. Edits since the last commit are lost
+// in a crash; call commit() where an edit must be durable before going
+// on. A failed timed commit is thrown by the next append or commit.
+//
+// A checkpoint writes a fresh snapshot and empties the journal, so
+// recovery loads the snapshot and replays only the edits after it.
+// Replay keeps the last contents of each cell and applies them with a
+// single setCells, so the sheet is recalculated once however long the
+// tail is. Every record sets absolute contents, so replaying edits the
+// snapshot already holds (a crash between the two steps of a
+// checkpoint) gives the same sheet.
+//
+// Record layout: int payload length, int CRC32 of the payload, then
+// the payload of two strings, the cell ID and its contents ("" for a
+// delete), each an int byte length followed by UTF-8 bytes. A record
+// that is cut short or fails its checksum ends the journal; it and
+// anything after it are discarded when the journal is opened.
+public class EditJournal implements Closeable {
+  public static final String SNAPSHOT = "snapshot.ack";
+  public static final String JOURNAL = "journal.log";
+
+  protected final Path dir;
+  protected FileChannel channel;
+  protected ByteBuffer pending;
+  protected int pendingRecords;
+  protected long pendingSince;
+  // Journal file open for appending and the records not yet written.
+
+  protected int groupRecords = 256;
+  protected long groupNanos = 5000000L;
+  // Commit once this many records wait or the oldest has waited this
+  // long.
+
+  protected int checkpointRecords = 100000;
+  protected int sinceCheckpoint;
+  // Records after which a checkpoint is due and the count so far.
+
+  protected long commits;
+  // Number of times the journal has been forced to disk.
+
+  protected ScheduledExecutorService timer;
+  protected ScheduledFuture<?> flush;
+  protected IOException failure;
+  // Thread committing records which come due between appends, started
+  // on first use, the commit it has scheduled, if any, and the error
+  // of a timed commit not yet reported.
+
+  // Open the journal in the given directory, creating both if needed
+  // and cutting off any torn record left by a crash.
+  public EditJournal(Path dir) throws IOException{
+    this.dir = dir;
+    Files.createDirectories(dir);
+    this.channel = FileChannel.open(dir.resolve(JOURNAL), StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long good = scan(channel, null);
+    channel.truncate(good);
+    channel.position(good);
+    this.pending = ByteBuffer.allocate(1 << 16);
+  }
+
+  // Set when buffered records are forced to disk.
+  public synchronized void setGroupCommit(int records, long nanos){
+    this.groupRecords = records;
+    this.groupNanos = nanos;
+  }
+
+  // Set how many records make a checkpoint due.
+  public synchronized void setCheckpointRecords(int records){
+    this.checkpointRecords = records;
+  }
+
+  // Return the number of group commits made.
+  public synchronized long getCommitCount(){
+    return commits;
+  }
+
+  // Rebuild the sheet as of the last commit: the snapshot if there is
+  // one, then the journal tail applied as one batch.
+  public synchronized Spreadsheet recover() throws IOException{
+    Path snap = dir.resolve(SNAPSHOT);
+    Spreadsheet sheet = Files.exists(snap) ? SheetSnapshot.load(snap) : new Spreadsheet();
+    Map<String, String> tail = new HashMap<String, String>();
+    channel.position(0);
+    scan(channel, tail);
+    channel.position(channel.size());
+    if (!tail.isEmpty()){
+      sheet.setCells(tail);
+    }
+    return sheet;
+  }
+
+  // Record that a cell now has the given contents, "" or null for a
+  // deleted cell, and commit if the group is full or old enough, or
+  // else schedule a commit for when it will be.
+  public synchronized void append(String id, String contents) throws IOException{
+    reportFailure();
+    byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+    byte[] textBytes = (contents == null ? "" : contents).getBytes(StandardCharsets.UTF_8);
+    int length = 8 + idBytes.length + textBytes.length;
+    if (pending.remaining() < 8 + length){
+      write();
+      if (pending.capacity() < 8 + length){
+        pending = ByteBuffer.allocate(8 + length);
+      }
+    }
+    int start = pending.position();
+    pending.putInt(length);
+    pending.putInt(0);
+    pending.putInt(idBytes.length).put(idBytes);
+    pending.putInt(textBytes.length).put(textBytes);
+    CRC32 crc = new CRC32();
+    crc.update(pending.array(), start + 8, length);
+    pending.putInt(start + 4, (int) crc.getValue());
+    if (pendingRecords++ == 0){
+      pendingSince = System.nanoTime();
+    }
+    sinceCheckpoint++;
+    long age = System.nanoTime() - pendingSince;
+    if (pendingRecords >= groupRecords || age >= groupNanos){
+      commit();
+    }
+    else if (flush == null){
+      flush = timer().schedule(new Runnable(){
+        public void run(){
+          timedCommit();
+        }
+      }, groupNanos - age, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  // Write buffered records and force them to disk.
+  public synchronized void commit() throws IOException{
+    reportFailure();
+    if (flush != null){
+      flush.cancel(false);
+      flush = null;
+    }
+    if (pendingRecords == 0 && pending.position() == 0){
+      return;
+    }
+    write();
+    channel.force(false);
+    pendingRecords = 0;
+    commits++;
+  }
+
+  // Return whether enough records have been appended since the last
+  // checkpoint that one should be taken.
+  public synchronized boolean checkpointDue(){
+    return sinceCheckpoint >= checkpointRecords;
+  }
+
+  // Snapshot the sheet and empty the journal. The snapshot is written
+  // to a temporary file and moved into place so a crash leaves either
+  // the old or the new one. The directory is forced after the move so
+  // the journal is never emptied while the rename could still be lost.
+  public synchronized void checkpoint(Spreadsheet sheet) throws IOException{
+    commit();
+    Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING)){
+      SheetSnapshot.write(sheet, out);
+      out.force(true);
+    }
+    Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory();
+    channel.truncate(0);
+    channel.position(0);
+    channel.force(true);
+    sinceCheckpoint = 0;
+  }
+
+  // Commit anything buffered, stop the timer and close the journal
+  // file.
+  public synchronized void close() throws IOException{
+    try{
+      commit();
+    }
+    finally{
+      if (timer != null){
+        timer.shutdownNow();
+        timer = null;
+      }
+      channel.close();
+    }
+  }
+
+  // Return the timer thread, starting it if need be.
+  protected ScheduledExecutorService timer(){
+    if (timer == null){
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+        public Thread newThread(Runnable r){
+          Thread thread = new Thread(r, "sheet-journal");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  // Commit the records whose time has come, keeping any error for the
+  // next caller as there is no one to throw it to here.
+  protected synchronized void timedCommit(){
+    flush = null;
+    if (!channel.isOpen()){
+      return;
+    }
+    try{
+      commit();
+    }
+    catch(IOException e){
+      failure = e;
+    }
+  }
+
+  // Throw the error of a failed timed commit, once.
+  protected void reportFailure() throws IOException{
+    if (failure != null){
+      IOException e = failure;
+      failure = null;
+      throw new IOException("Journal commit failed", e);
+    }
+  }
+
+  // Force the directory so a rename in it survives a crash. Windows
+  // cannot open a directory as a channel and orders its renames
+  // itself, so there the error is ignored.
+  protected void syncDirectory() throws IOException{
+    try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)){
+      d.force(true);
+    }
+    catch(IOException e){
+      if (!System.getProperty("os.name").startsWith("Windows")){
+        throw e;
+      }
+    }
+  }
+
+  // Move the buffered records into the file without forcing them.
+  protected void write() throws IOException{
+    pending.flip();
+    while (pending.hasRemaining()){
+      channel.write(pending);
+    }
+    pending.clear();
+  }
+
+  // Read records from the channel's position, putting each into edits
+  // if it is not null, and return the file offset just past the last
+  // intact record.
+  protected static long scan(FileChannel ch, Map<String, String> edits) throws IOException{
+    long good = ch.position();
+    InputStream raw = Channels.newInputStream(ch);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16));
+    byte[] payload = new byte[256];
+    CRC32 crc = new CRC32();
+    while (true){
+      int length, sum;
+      try{
+        length = in.readInt();
+        sum = in.readInt();
+        // a torn length can claim more than the file holds
+        if (length < 8 || length > ch.size() - good - 8){
+          return good;
+        }
+        if (payload.length < length){
+          payload = new byte[length];
+        }
+        in.readFully(payload, 0, length);
+      }
+      catch(EOFException e){
+        return good;
+      }
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != sum){
+        return good;
+      }
+      ByteBuffer rec = ByteBuffer.wrap(payload, 0, length);
+      int idLength = rec.getInt();
+      if (idLength < 0 || idLength > length - 8){
+        return good;
+      }
+      String id = new String(payload, 4, idLength, StandardCharsets.UTF_8);
+      String contents = new String(payload, 8 + idLength, length - 8 - idLength,
+                                   StandardCharsets.UTF_8);
+      // later edits of a cell replace earlier ones
+      if (edits != null){
+        edits.put(id, contents);
+      }
+      good += 8 + length;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+// Tests of journaling edits and recovering from them
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class EditJournalTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("EditJournalTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(2000); 
+
+  // Make an empty directory which is removed when the tests finish
+  public static Path tempDir() throws IOException{
+    Path dir = Files.createTempDirectory("journal");
+    dir.toFile().deleteOnExit();
+    return dir;
+  }
+
+  // Remove the journal directory after a test
+  public static void clean(Path dir) throws IOException{
+    for(String name : new String[]{EditJournal.JOURNAL, EditJournal.SNAPSHOT}){
+      Files.deleteIfExists(dir.resolve(name));
+    }
+    Files.deleteIfExists(dir);
+  }
+
+  @Test public void journal_recover1() throws IOException{
+    Path dir = tempDir();
+    EditJournal journal = new EditJournal(dir);
+    Spreadsheet sheet = journal.recover();
+    sheet.setJournal(journal);
+    sheet.setCell("A1","2");
+    sheet.setCell("B1","=A1*3");
+    sheet.setCell("C1","=B1+A1");
+    sheet.setCell("A1","5");
+    sheet.deleteCell("C1");
+    sheet.setCell("D1","=SUM(A1:B1)");
+    try{
+      sheet.setCell("A1","=D1");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    journal.commit();
+    String expect = sheet.toString();
+    // reopen without closing, as after a crash
+    EditJournal again = new EditJournal(dir);
+    Spreadsheet copy1 = again.recover();
+    assertEquals(expect, copy1.toString());
+    again.close();
+    journal.close();
+    clean(dir);
+  }
+  // Records are only forced to disk in groups
+  @Test public void journal_group_commit1() throws IOException{
+    Path dir = tempDir();
+    EditJournal journal = new EditJournal(dir);
+    journal.setGroupCommit(100, Long.MAX_VALUE);
+    Spreadsheet sheet = journal.recover();
+    sheet.setJournal(journal);
+    for(int i=1; i<=250; i++){
+      sheet.setCell("A"+i,""+i);
+    }
+    assertEquals(2, journal.getCommitCount());
+    Map<String,String> edits = new HashMap<String,String>();
+    edits.put("B1","=A1+A250");
+    edits.put("B2","=B1*2");
+    sheet.setCells(edits);
+    journal.close();
+    assertEquals(3, journal.getCommitCount());
+    EditJournal again = new EditJournal(dir);
+    assertEquals("502.0", again.recover().getCellDisplayString("B2"));
+    again.close();
+    clean(dir);
+  }
+  // A lone edit is committed by the timer without another append
+  @Test public void journal_group_commit2() throws Exception{
+    Path dir = tempDir();
+    EditJournal journal = new EditJournal(dir);
+    journal.setGroupCommit(100, 20000000L);
+    Spreadsheet sheet = journal.recover();
+    sheet.setJournal(journal);
+    sheet.setCell("A1","=6*7");
+    assertEquals(0, journal.getCommitCount());
+    for(int i=0; i<100 && journal.getCommitCount() == 0; i++){
+      Thread.sleep(10);
+    }
+    assertEquals(1, journal.getCommitCount());
+    assertEquals(1, countRecords(dir));
+    // reopen without closing, as after a crash
+    EditJournal again = new EditJournal(dir);
+    assertEquals("42.0", again.recover().getCellDisplayString("A1"));
+    again.close();
+    journal.close();
+    assertEquals(1, journal.getCommitCount());
+    clean(dir);
+  }
+  @Test public void journal_checkpoint1() throws IOException{
+    Path dir = tempDir();
+    EditJournal journal = new EditJournal(dir);
+    journal.setCheckpointRecords(10);
+    Spreadsheet sheet = journal.recover();
+    sheet.setJournal(journal);
+    sheet.setCell("A1","1");
+    for(int i=2; i<=25; i++){
+      sheet.setCell("A"+i,"=A"+(i-1)+"+1");
+    }
+    journal.commit();
+    assertTrue(Files.exists(dir.resolve(EditJournal.SNAPSHOT)));
+    // only the edits since the last checkpoint remain
+    assertEquals(5, countRecords(dir));
+    sheet.setCell("A1","100");
+    journal.close();
+    EditJournal again = new EditJournal(dir);
+    Spreadsheet copy1 = again.recover();
+    assertEquals("124.0", copy1.getCellDisplayString("A25"));
+    assertEquals(sheet.toString(), copy1.toString());
+    again.close();
+    clean(dir);
+  }
+  // A torn or corrupt record ends the journal
+  @Test public void journal_torn1() throws IOException{
+    Path dir = tempDir();
+    EditJournal journal = new EditJournal(dir);
+    journal.append("A1","1");
+    journal.append("B1","=A1+1");
+    journal.append("C1","=B1+1");
+    journal.close();
+    Path file = dir.resolve(EditJournal.JOURNAL);
+    byte [] data = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(data, data.length - 2));
+    EditJournal again = new EditJournal(dir);
+    Spreadsheet copy1 = again.recover();
+    assertEquals("2.0", copy1.getCellDisplayString("B1"));
+    assertFalse(copy1.sheet.containsKey("C1"));
+    again.append("C1","=B1*10");
+    again.close();
+    // the torn record was cut off so the new one follows cleanly
+    assertEquals(3, countRecords(dir));
+    data = Files.readAllBytes(file);
+    data[20] ^= 1;
+    Files.write(file, data);
+    again = new EditJournal(dir);
+    assertEquals(1, countRecords(dir));
+    again.close();
+    clean(dir);
+  }
+
+  // Count the intact records in the journal file
+  public static int countRecords(Path dir) throws IOException{
+    long end;
+    try(FileChannel ch = FileChannel.open(dir.resolve(EditJournal.JOURNAL))){
+      end = EditJournal.scan(ch, null);
+    }
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(EditJournal.JOURNAL)));
+    int count = 0;
+    for(int pos = 0; pos < end; pos += 8 + data.getInt(pos)){
+      count++;
+    }
+    return count;
+  }
+}
@@ -15,6 +15,11 @@ public class FNode {
   //   TokenType.Negate
   //   TokenType.CellID
   //   TokenType.Number
+  //   TokenType.Function
+  //   TokenType.Range
+  // A Function node holds the function name and has a single Range
+  // child whose data is the canonical range such as "A1:B10". Only the
+  // hand-written FNodeParser produces these.
   public TokenType type;
 
   // Raw data for this node. May be a number, operator, or an id for
@@ -144,9 +149,21 @@ public class FNode {
   }
 
 
+  // Which parser parseFormulaString uses. The hand-written
+  // FNodeParser is the default; set to true to go through ANTLR.
+  public static boolean useAntlr = false;
+
   // Construct a tree based on the provided formula string. Primary
   // means to construct trees.
   public static FNode parseFormulaString(String formulaStr){
+    if(useAntlr){
+      return parseFormulaStringAntlr(formulaStr);
+    }
+    return FNodeParser.parse(formulaStr);
+  }
+
+  // Construct a tree using the ANTLR generated lexer and parser.
+  public static FNode parseFormulaStringAntlr(String formulaStr){
     ANTLRInputStream input = new ANTLRInputStream(formulaStr);
     FormulaLexer lexer = new BailFormulaLexer(input);
     CommonTokenStream tokens = new CommonTokenStream(lexer);
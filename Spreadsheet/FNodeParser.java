@@ -0,0 +1,226 @@
+// Hand-written parser for the formula grammar which builds the same
+// FNode trees as the ANTLR generated FormulaParser without creating a
+// lexer, token stream, parser and visitor for every formula.
+//
+// Grammar, matching Formula.g4 plus aggregate functions over ranges
+// which the ANTLR grammar does not have:
+//   input       : '=' plusOrMinus '\n'? EOF
+//   plusOrMinus : plusOrMinus ('+'|'-') multOrDiv | multOrDiv
+//   multOrDiv   : multOrDiv ('*'|'/') negate | negate
+//   negate      : '-' negate | atom
+//   atom        : NUMBER | CELLID | function | '(' plusOrMinus ')'
+//   function    : NAME '(' CELLID (':' CELLID)? ')'
+//   NAME        : 'SUM' | 'AVG' | 'MIN' | 'MAX' | 'COUNT'
+//   NUMBER      : [0-9]+ ('.' [0-9]+)?
+//   CELLID      : [A-Z_]+ [1-9] [0-9]*
+//   WS          : [ \t\r]+ -> skip
+public class FNodeParser {
+  protected final String text;
+  protected int pos;
+  // Formula being parsed and the index of the next unread character.
+
+  protected FNodeParser(String text){
+    this.text = text;
+    this.pos = 0;
+  }
+
+  // Parse the given formula string into a tree. Throws a
+  // RuntimeException describing the position of any syntax error.
+  // Runtime Complexity: O(S)
+  //   S: the length of the formula string
+  public static FNode parse(String formulaStr){
+    FNodeParser p = new FNodeParser(formulaStr);
+    p.expect('=');
+    FNode root = p.plusOrMinus();
+    p.skipSpace();
+    if (p.pos < p.text.length() && p.text.charAt(p.pos) == '\n'){
+      p.pos++;
+      p.skipSpace();
+    }
+    if (p.pos < p.text.length()){
+      throw p.error("Unexpected input");
+    }
+    return root;
+  }
+
+  // Left associative sums and differences.
+  protected FNode plusOrMinus(){
+    FNode left = multOrDiv();
+    while (true){
+      int c = peek();
+      if (c == '+'){
+        pos++;
+        left = new FNode(TokenType.Plus, left, multOrDiv());
+      }
+      else if (c == '-'){
+        pos++;
+        left = new FNode(TokenType.Minus, left, multOrDiv());
+      }
+      else{
+        return left;
+      }
+    }
+  }
+
+  // Left associative products and quotients.
+  protected FNode multOrDiv(){
+    FNode left = negate();
+    while (true){
+      int c = peek();
+      if (c == '*'){
+        pos++;
+        left = new FNode(TokenType.Multiply, left, negate());
+      }
+      else if (c == '/'){
+        pos++;
+        left = new FNode(TokenType.Divide, left, negate());
+      }
+      else{
+        return left;
+      }
+    }
+  }
+
+  // Any number of unary minus signs followed by an atom. Counted in a
+  // loop so long runs of signs do not recurse.
+  protected FNode negate(){
+    int count = 0;
+    while (peek() == '-'){
+      pos++;
+      count++;
+    }
+    FNode node = atom();
+    for (int i = 0; i < count; i++){
+      node = new FNode(TokenType.Negate, node, null);
+    }
+    return node;
+  }
+
+  // A number, a cell ID, or a parenthesized expression.
+  protected FNode atom(){
+    int c = peek();
+    if (c == '('){
+      pos++;
+      FNode inner = plusOrMinus();
+      expect(')');
+      return inner;
+    }
+    if (isDigit(c)){
+      return number();
+    }
+    if (isIDLetter(c)){
+      int start = pos;
+      while (pos < text.length() && isIDLetter(text.charAt(pos))){
+        pos++;
+      }
+      boolean call = peek() == '(';
+      pos = start;
+      return call ? function() : cellID();
+    }
+    throw error(c < 0 ? "Unexpected end of formula" : "Unexpected input");
+  }
+
+  protected FNode number(){
+    int start = pos;
+    while (pos < text.length() && isDigit(text.charAt(pos))){
+      pos++;
+    }
+    // the fraction needs at least one digit after the point
+    if (pos + 1 < text.length() && text.charAt(pos) == '.'
+        && isDigit(text.charAt(pos + 1))){
+      pos++;
+      while (pos < text.length() && isDigit(text.charAt(pos))){
+        pos++;
+      }
+    }
+    return new FNode(TokenType.Number, text.substring(start, pos), null, null);
+  }
+
+  protected FNode cellID(){
+    int start = pos;
+    while (pos < text.length() && isIDLetter(text.charAt(pos))){
+      pos++;
+    }
+    if (pos >= text.length() || text.charAt(pos) < '1' || text.charAt(pos) > '9'){
+      pos = start;
+      throw error("Bad cell ID");
+    }
+    while (pos < text.length() && isDigit(text.charAt(pos))){
+      pos++;
+    }
+    return new FNode(TokenType.CellID, text.substring(start, pos), null, null);
+  }
+
+  // An aggregate over a range, or over a single cell as a one cell
+  // range. The range is stored in canonical form with its corners
+  // ordered.
+  protected FNode function(){
+    int start = pos;
+    while (isIDLetter(text.charAt(pos))){
+      pos++;
+    }
+    String name = text.substring(start, pos);
+    if (RangeIndex.functionCode(name) < 0){
+      pos = start;
+      throw error("Unknown function " + name);
+    }
+    expect('(');
+    skipSpace();
+    String from = cellID().data;
+    String to = from;
+    if (peek() == ':'){
+      pos++;
+      skipSpace();
+      to = cellID().data;
+    }
+    expect(')');
+    RangeIndex.Range range = RangeIndex.Range.parse(from + ":" + to);
+    if (range == null && CellAddress.encode(from) != CellAddress.NONE &&
+        CellAddress.encode(to) != CellAddress.NONE){
+      throw error("Range past " + CellAddress.columnName(RangeIndex.MAX_COLUMNS) +
+                  RangeIndex.MAX_ROWS);
+    }
+    if (range == null){
+      throw error("Bad range");
+    }
+    FNode arg = new FNode(TokenType.Range, range.id, null, null);
+    return new FNode(TokenType.Function, name, arg, null);
+  }
+
+  // Skip whitespace and return the next character without consuming
+  // it, or -1 at the end of the text.
+  protected int peek(){
+    skipSpace();
+    return pos < text.length() ? text.charAt(pos) : -1;
+  }
+
+  protected void expect(char c){
+    if (peek() != c){
+      throw error("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  protected void skipSpace(){
+    while (pos < text.length()){
+      char c = text.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\r'){
+        return;
+      }
+      pos++;
+    }
+  }
+
+  protected RuntimeException error(String msg){
+    return new RuntimeException(String.format("Parse Error: %s at position %d in '%s'",
+                                              msg, pos, text));
+  }
+
+  protected static boolean isDigit(int c){
+    return c >= '0' && c <= '9';
+  }
+
+  protected static boolean isIDLetter(int c){
+    return (c >= 'A' && c <= 'Z') || c == '_';
+  }
+}
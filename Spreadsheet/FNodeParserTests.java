@@ -0,0 +1,89 @@
+// Tests that FNodeParser builds the same trees as the ANTLR parser
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class FNodeParserTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("FNodeParserTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(1000); 
+
+  // Check that both parsers produce the same tree for formula
+  public static void checkSame(String formula){
+    String expect = FNode.parseFormulaStringAntlr(formula).toString();
+    String actual = FNodeParser.parse(formula).toString();
+    String msg = String.format("Trees differ for '%s'\\nExpect:\\n%s\\nActual:\\n%s\\n",
+                               formula,expect,actual);
+    assertEquals(msg,expect,actual);
+  }
+
+  // Check that both parsers reject formula
+  public static void checkBothFail(String formula){
+    boolean antlrFailed = false, handFailed = false;
+    try{ FNode.parseFormulaStringAntlr(formula); }
+    catch(RuntimeException e){ antlrFailed = true; }
+    try{ FNodeParser.parse(formula); }
+    catch(RuntimeException e){ handFailed = true; }
+    assertTrue("ANTLR should reject '"+formula+"'", antlrFailed);
+    assertTrue("FNodeParser should reject '"+formula+"'", handFailed);
+  }
+
+  @Test public void parse_same_arithmetic(){
+    checkSame("=8+1");
+    checkSame("=8.5 +  1.75");
+    checkSame("=1-2-3");
+    checkSame("=8/4/2");
+    checkSame("=1-2*3");
+    checkSame("=17 / 8.5 + 2.5 * (2+1)");
+    checkSame("= -( 5 + 8 / 4 * (7+1) - 1) + 5");
+    checkSame("=007.50");
+  }
+  @Test public void parse_same_refs(){
+    checkSame("=A1 + -5.23 *(2+3+A4) / ZD11");
+    checkSame("=A1+ -B2*C3");
+    checkSame("=(100 + A2) - 10 / (CX5 * BB8)");
+    checkSame("=A__1 + _1 * A_B1");
+  }
+  @Test public void parse_same_negate(){
+    checkSame("=--1");
+    checkSame("=-(-1)");
+    checkSame("=-A1*-B2");
+  }
+  @Test public void parse_same_whitespace(){
+    checkSame("= 1");
+    checkSame("=\t1 +\r2");
+    checkSame("=A1\r\n");
+    checkSame("=1 \n");
+    checkSame("  =1\n  ");
+  }
+  @Test public void parse_both_fail(){
+    checkBothFail("=");
+    checkBothFail("1");
+    checkBothFail("==1");
+    checkBothFail("=()");
+    checkBothFail("=A1 +");
+    checkBothFail("=1 2");
+    checkBothFail("=1+2)");
+    checkBothFail("=(1+2");
+    checkBothFail("=A");
+    checkBothFail("=A0");
+    checkBothFail("=A01");
+    checkBothFail("=a1");
+    checkBothFail("=1.");
+    checkBothFail("=.5");
+    checkBothFail("=1.5.2");
+    checkBothFail("=1e5");
+    checkBothFail("=A1_2");
+    checkBothFail("=1\n\n");
+    checkBothFail("=\n1");
+    checkBothFail("=1+\n2");
+  }
+}
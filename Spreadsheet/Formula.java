@@ -0,0 +1,464 @@
+import java.lang.invoke.MethodHandle;
+import java.util.*;
+
+// Compiled form of a formula tree. The FNode tree is flattened once
+// into a postfix instruction array with number literals already
+// parsed and cell references replaced by slot numbers, so evaluating
+// is a single loop over an int array with a small operand stack
+// instead of a recursive walk over the tree.
+public class Formula {
+  // Instruction opcodes. PUSH_CONST and PUSH_REF are followed in the
+  // code array by an operand: the index into constants or refs.
+  public static final int PUSH_CONST = 0;
+  public static final int PUSH_REF   = 1;
+  public static final int ADD        = 2;
+  public static final int SUB        = 3;
+  public static final int MUL        = 4;
+  public static final int DIV        = 5;
+  public static final int NEG        = 6;
+
+  // Outcomes of tryEvaluate. Anything but OK means the value is an
+  // error and the cell displays ERROR.
+  public static final int OK          = 0;
+  public static final int MISSING_REF = 1;
+  public static final int INVALID_REF = 2;
+  public static final int RANGE_ERROR = 3;
+  protected static final String[] STATUS_MESSAGES =
+    {"OK", "Can't find", "Invalid", "Error in range"};
+
+  protected int[] code;
+  // Instructions in postfix order.
+
+  protected double[] constants;
+  // Number literals appearing in the formula, already parsed.
+
+  protected String[] refs;
+  protected long[] refAddrs;
+  // Distinct cell IDs referenced by the formula and their packed
+  // CellAddress (NONE for names that do not encode). The slot of a
+  // reference is its index in these arrays.
+
+  protected RangeIndex.Range[] ranges;
+  protected int[] functions;
+  // Aggregate calls in the formula. The value of call k is computed
+  // before running and placed in slot refs.length + k, so the
+  // instructions only ever see plain slots.
+
+  protected FormulaPool.Shared[] shared;
+  // Subexpressions shared with other formulas of the sheet, read from
+  // their memos into the slots after the aggregates.
+
+  protected String[] links;
+  protected String[] rangeLinks;
+  // Every cell and range the formula reads, including those only read
+  // inside shared subexpressions, with one range entry per call.
+
+  protected int sourceNodes;
+  // Size of the tree as parsed, before FormulaPool.simplify.
+
+  protected double[] slots;
+  protected double[] stack;
+  // Scratch space for evaluation, sized at compile time. A formula
+  // belongs to a single cell so it is never evaluated twice at once.
+
+  protected int status;
+  // Outcome of the last tryEvaluate.
+
+  protected int runs;
+  protected boolean tiered;
+  protected MethodHandle jitted;
+  // Interpreted run count, whether FormulaJit has been consulted, and
+  // the handle it produced if any.
+
+  // Flatten the given formula tree.
+  // Runtime Complexity: O(T)
+  //   T: the number of nodes in the formula tree
+  public static Formula compile(FNode root){
+    return compile(root, null, null);
+  }
+
+  // Flatten a tree whose nodes belong to the given pool, reading any
+  // subtree the pool shares from its memo instead of computing it.
+  // Runtime Complexity: O(T)
+  public static Formula compile(FNode root, FormulaPool pool){
+    return compile(root, pool, null);
+  }
+
+  // Flatten the body of a shared subexpression, which must not read
+  // its own memo.
+  protected static Formula compileBody(FNode root, FormulaPool pool){
+    return compile(root, pool, root);
+  }
+
+  protected static Formula compile(FNode root, FormulaPool pool, FNode body){
+    Builder b = new Builder();
+    b.pool = pool;
+    b.body = body;
+    b.emit(root, 0);
+    Formula f = new Formula();
+    f.code = Arrays.copyOf(b.code, b.codeSize);
+    f.constants = Arrays.copyOf(b.constants, b.constSize);
+    f.refs = b.refs.keySet().toArray(new String[0]);
+    f.refAddrs = new long[f.refs.length];
+    for (int i = 0; i < f.refs.length; i++){
+      f.refAddrs[i] = CellAddress.encode(f.refs[i]);
+    }
+    f.ranges = b.ranges.toArray(new RangeIndex.Range[0]);
+    f.functions = new int[f.ranges.length];
+    for (int k = 0; k < f.ranges.length; k++){
+      f.functions[k] = b.functions.get(k);
+    }
+    f.shared = b.shared.toArray(new FormulaPool.Shared[0]);
+    // aggregate slots follow the reference slots, shared ones follow those
+    for (int pc : b.aggregateOperands){
+      f.code[pc] += f.refs.length;
+    }
+    for (int pc : b.sharedOperands){
+      f.code[pc] += f.refs.length + f.ranges.length;
+    }
+    f.links = b.links.toArray(new String[0]);
+    f.rangeLinks = b.rangeLinks.toArray(new String[0]);
+    f.slots = new double[f.refs.length + f.ranges.length + f.shared.length];
+    f.stack = new double[Math.max(1, b.maxDepth)];
+    return f;
+  }
+
+  // Return the IDs of the cells this formula reads.
+  public String[] refs(){
+    return links;
+  }
+
+  // Return the canonical IDs of the ranges this formula aggregates.
+  public String[] rangeNames(){
+    return rangeLinks.clone();
+  }
+
+  // Look up every referenced cell once and evaluate the formula.
+  // Throws Cell.EvalFormulaException if a referenced cell is missing
+  // or has no numeric value, or an aggregate is in error.
+  // Runtime Complexity: O(R + A + S + C)
+  //   R: the number of distinct references
+  //   A: the cost of the aggregates, O(w log n) each from a sheet's
+  //      RangeIndex and O(w h) otherwise
+  //   S: the shared subexpressions, O(1) each once computed since the
+  //      sheet last changed
+  //   C: the length of the instruction array
+  public double evaluate(Map<String,Cell> cellMap){
+    double value = tryEvaluate(cellMap);
+    if (status != OK){
+      throw new Cell.EvalFormulaException(STATUS_MESSAGES[status]);
+    }
+    return value;
+  }
+
+  // Evaluate as evaluate does but report errors as data: the outcome
+  // is left in status() and the returned value is only meaningful when
+  // it is OK. Recalculation goes through here so a sheet full of error
+  // cells costs no more to recalculate than one without.
+  // Runtime Complexity: O(R + A + S + C)
+  public double tryEvaluate(Map<String,Cell> cellMap){
+    // a CellStore can be probed with the addresses decoded at compile time
+    CellStore store = cellMap instanceof CellStore ? (CellStore) cellMap : null;
+    for (int i = 0; i < refs.length; i++){
+      Cell cell;
+      if (store != null && refAddrs[i] != CellAddress.NONE){
+        cell = store.getAt(refAddrs[i]);
+      }
+      else{
+        cell = cellMap.get(refs[i]);
+      }
+      if (cell == null){
+        status = MISSING_REF;
+        return 0.0;
+      }
+      if (!cell.hasNumber()){
+        status = INVALID_REF;
+        return 0.0;
+      }
+      slots[i] = cell.value;
+    }
+    for (int k = 0; k < ranges.length; k++){
+      RangeIndex.Totals t;
+      if (store != null && store.ranges() != null){
+        t = store.ranges().totals(ranges[k]);
+      }
+      else{
+        t = RangeIndex.totals(cellMap, ranges[k]);
+      }
+      if (t.failed(functions[k])){
+        status = RANGE_ERROR;
+        return 0.0;
+      }
+      slots[refs.length + k] = t.value(functions[k]);
+    }
+    for (int k = 0; k < shared.length; k++){
+      FormulaPool.Memo m = shared[k].evaluate(cellMap, store);
+      if (m.status != OK){
+        status = m.status;
+        return 0.0;
+      }
+      slots[refs.length + ranges.length + k] = m.value;
+    }
+    status = OK;
+    return execute(slots);
+  }
+
+  // Return the number of slots and the operand stack depth needed to
+  // run the formula.
+  public int slotCount(){
+    return slots.length;
+  }
+
+  public int stackSize(){
+    return stack.length;
+  }
+
+  // Return the outcome of the last tryEvaluate.
+  public int status(){
+    return status;
+  }
+
+  // Run the formula in whichever tier it has reached, moving it to
+  // the compiled tier once it has been run often enough.
+  public double execute(double[] slotValues){
+    return execute(slotValues, stack);
+  }
+
+  // Execute with caller supplied scratch space for the operand stack,
+  // which must be at least stackSize() long. A formula shared by many
+  // cells runs this way so threads never share a stack.
+  public double execute(double[] slotValues, double[] stack){
+    if (jitted != null){
+      try{
+        return (double) jitted.invokeExact(slotValues);
+      }
+      catch(Throwable t){
+        throw new RuntimeException(t);
+      }
+    }
+    if (!tiered){
+      int threshold = FormulaJit.getThreshold();
+      if (threshold >= 0 && ++runs > threshold){
+        tiered = true;
+        jitted = FormulaJit.compile(this);
+      }
+    }
+    return run(slotValues, stack);
+  }
+
+  // Execute the instructions with the given values for the slots.
+  public double run(double[] slotValues){
+    return run(slotValues, stack);
+  }
+
+  public double run(double[] slotValues, double[] stack){
+    int[] code = this.code;
+    int sp = 0;
+    int pc = 0;
+    while (pc < code.length){
+      switch (code[pc++]){
+        case PUSH_CONST:
+          stack[sp++] = constants[code[pc++]];
+          break;
+        case PUSH_REF:
+          stack[sp++] = slotValues[code[pc++]];
+          break;
+        case ADD:
+          sp--;
+          stack[sp-1] = stack[sp-1] + stack[sp];
+          break;
+        case SUB:
+          sp--;
+          stack[sp-1] = stack[sp-1] - stack[sp];
+          break;
+        case MUL:
+          sp--;
+          stack[sp-1] = stack[sp-1] * stack[sp];
+          break;
+        case DIV:
+          sp--;
+          stack[sp-1] = stack[sp-1] / stack[sp];
+          break;
+        case NEG:
+          stack[sp-1] = 0.0 - stack[sp-1];
+          break;
+        default:
+          throw new RuntimeException("Bad opcode " + code[pc-1]);
+      }
+    }
+    return stack[0];
+  }
+
+  // Run the instructions once for each of the first n rows, the value
+  // of slot s in row i being slotColumns[s][i], and return the column
+  // of results. stack must hold stackSize() columns of at least n.
+  // Each instruction is one loop over the rows, simple enough for the
+  // JIT to compile to SIMD instructions, doing exactly the arithmetic
+  // run does so every row gets the bits run would give it.
+  // Runtime Complexity: O(n * C)
+  //   C: the number of instructions
+  public double[] runColumns(double[][] slotColumns, int n, double[][] stack){
+    int[] code = this.code;
+    int sp = 0;
+    int pc = 0;
+    while (pc < code.length){
+      switch (code[pc++]){
+        case PUSH_CONST:
+          Arrays.fill(stack[sp++], 0, n, constants[code[pc++]]);
+          break;
+        case PUSH_REF:
+          System.arraycopy(slotColumns[code[pc++]], 0, stack[sp++], 0, n);
+          break;
+        case ADD: {
+          sp--;
+          double[] a = stack[sp-1], b = stack[sp];
+          for (int i = 0; i < n; i++){
+            a[i] = a[i] + b[i];
+          }
+          break;
+        }
+        case SUB: {
+          sp--;
+          double[] a = stack[sp-1], b = stack[sp];
+          for (int i = 0; i < n; i++){
+            a[i] = a[i] - b[i];
+          }
+          break;
+        }
+        case MUL: {
+          sp--;
+          double[] a = stack[sp-1], b = stack[sp];
+          for (int i = 0; i < n; i++){
+            a[i] = a[i] * b[i];
+          }
+          break;
+        }
+        case DIV: {
+          sp--;
+          double[] a = stack[sp-1], b = stack[sp];
+          for (int i = 0; i < n; i++){
+            a[i] = a[i] / b[i];
+          }
+          break;
+        }
+        case NEG: {
+          double[] a = stack[sp-1];
+          for (int i = 0; i < n; i++){
+            a[i] = 0.0 - a[i];
+          }
+          break;
+        }
+        default:
+          throw new RuntimeException("Bad opcode " + code[pc-1]);
+      }
+    }
+    return stack[0];
+  }
+
+  // Accumulates instructions while walking the tree.
+  protected static class Builder {
+    int[] code = new int[16];
+    int codeSize = 0;
+    double[] constants = new double[4];
+    int constSize = 0;
+    Map<String, Integer> refs = new LinkedHashMap<String, Integer>();
+    List<RangeIndex.Range> ranges = new ArrayList<RangeIndex.Range>();
+    List<Integer> functions = new ArrayList<Integer>();
+    List<Integer> aggregateOperands = new ArrayList<Integer>();
+    List<FormulaPool.Shared> shared = new ArrayList<FormulaPool.Shared>();
+    List<Integer> sharedOperands = new ArrayList<Integer>();
+    Set<String> links = new LinkedHashSet<String>();
+    List<String> rangeLinks = new ArrayList<String>();
+    FormulaPool pool;
+    FNode body;
+    int maxDepth = 0;
+
+    void add(int x){
+      if (codeSize == code.length){
+        code = Arrays.copyOf(code, codeSize * 2);
+      }
+      code[codeSize++] = x;
+    }
+
+    // Emit the instructions for node given that depth values are
+    // already on the stack.
+    void emit(FNode node, int depth){
+      maxDepth = Math.max(maxDepth, depth + 1);
+      FormulaPool.Shared s = pool == null || node == body ? null : pool.sharedFor(node);
+      if (s != null){
+        // the slot number is fixed up once the aggregates are known
+        add(PUSH_REF);
+        sharedOperands.add(codeSize);
+        add(shared.size());
+        shared.add(s);
+        link(node);
+        return;
+      }
+      switch (node.type){
+        case Number:
+          if (constSize == constants.length){
+            constants = Arrays.copyOf(constants, constSize * 2);
+          }
+          constants[constSize] = Double.parseDouble(node.data);
+          add(PUSH_CONST);
+          add(constSize++);
+          break;
+        case CellID:
+          Integer slot = refs.get(node.data);
+          if (slot == null){
+            slot = refs.size();
+            refs.put(node.data, slot);
+          }
+          links.add(node.data);
+          add(PUSH_REF);
+          add(slot);
+          break;
+        case Negate:
+          emit(node.left, depth);
+          add(NEG);
+          break;
+        case Function:
+          // the slot number is fixed up once the references are known
+          add(PUSH_REF);
+          aggregateOperands.add(codeSize);
+          add(ranges.size());
+          ranges.add(RangeIndex.Range.parse(node.left.data));
+          functions.add(RangeIndex.functionCode(node.data));
+          rangeLinks.add(node.left.data);
+          break;
+        default:
+          emit(node.left, depth);
+          emit(node.right, depth + 1);
+          add(opcode(node.type));
+      }
+    }
+
+    // Note the cells and ranges read inside a shared subtree.
+    void link(FNode node){
+      if (node == null){
+        return;
+      }
+      if (node.type == TokenType.CellID){
+        links.add(node.data);
+      }
+      else if (node.type == TokenType.Function){
+        rangeLinks.add(node.left.data);
+        return;
+      }
+      link(node.left);
+      link(node.right);
+    }
+  }
+
+  // Map a binary token type to its opcode.
+  protected static int opcode(TokenType type){
+    switch (type){
+      case Plus:     return ADD;
+      case Minus:    return SUB;
+      case Multiply: return MUL;
+      case Divide:   return DIV;
+      default:
+        throw new RuntimeException("Error with TokenType '" + type + "'");
+    }
+  }
+}
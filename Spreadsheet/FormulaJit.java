@@ -0,0 +1,142 @@
+import java.lang.invoke.*;
+
+// Second execution tier for formulas. Once a Formula has been run
+// more than threshold times its postfix instructions are turned into
+// a tree of MethodHandles taking the slot values and returning the
+// result, which HotSpot can inline into straight-line arithmetic.
+// Formulas that stay cold keep using the Formula interpreter loop.
+public class FormulaJit {
+  // Runs before a formula is compiled. Set to a negative value to
+  // turn the tier off.
+  protected static volatile int threshold = 1000;
+
+  // Formulas longer than this many instructions are left in the
+  // interpreter since very deep handle trees nest deeply when invoked.
+  protected static int maxCodeLength = 512;
+
+  protected static long compiledCount = 0;
+  protected static long failedCount = 0;
+  protected static long compileNanos = 0;
+  // Counters reporting the work done by this tier.
+
+  protected static final MethodHandle ADD, SUB, MUL, DIV, NEG, SLOT;
+  static {
+    try{
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+      ADD = lookup.findStatic(FormulaJit.class, "add", binary);
+      SUB = lookup.findStatic(FormulaJit.class, "sub", binary);
+      MUL = lookup.findStatic(FormulaJit.class, "mul", binary);
+      DIV = lookup.findStatic(FormulaJit.class, "div", binary);
+      NEG = lookup.findStatic(FormulaJit.class, "neg",
+                              MethodType.methodType(double.class, double.class));
+      SLOT = MethodHandles.arrayElementGetter(double[].class);
+    }
+    catch(ReflectiveOperationException e){
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static double add(double a, double b){ return a + b; }
+  private static double sub(double a, double b){ return a - b; }
+  private static double mul(double a, double b){ return a * b; }
+  private static double div(double a, double b){ return a / b; }
+  private static double neg(double a){ return 0.0 - a; }
+
+  // Set the number of interpreted runs before a formula is compiled.
+  public static void setThreshold(int runs){
+    threshold = runs;
+  }
+
+  public static int getThreshold(){
+    return threshold;
+  }
+
+  // Number of formulas compiled to handles so far.
+  public static synchronized long compiledCount(){
+    return compiledCount;
+  }
+
+  // Number of formulas that could not be compiled and stay interpreted.
+  public static synchronized long failedCount(){
+    return failedCount;
+  }
+
+  // Total time spent building handles in nanoseconds.
+  public static synchronized long compileNanos(){
+    return compileNanos;
+  }
+
+  // Reset all counters to zero.
+  public static synchronized void resetCounters(){
+    compiledCount = 0;
+    failedCount = 0;
+    compileNanos = 0;
+  }
+
+  // Build a handle of type (double[])double computing the formula from
+  // its slot values, or return null if the formula is not suitable.
+  // Runtime Complexity: O(C)
+  //   C: the length of the instruction array
+  public static MethodHandle compile(Formula f){
+    long start = System.nanoTime();
+    MethodHandle result = null;
+    if (f.code.length <= maxCodeLength){
+      result = build(f);
+    }
+    long elapsed = System.nanoTime() - start;
+    synchronized (FormulaJit.class){
+      compileNanos += elapsed;
+      if (result != null){
+        compiledCount++;
+      }
+      else{
+        failedCount++;
+      }
+    }
+    return result;
+  }
+
+  // Replay the postfix instructions on a stack of handles.
+  protected static MethodHandle build(Formula f){
+    MethodHandle[] stack = new MethodHandle[f.stack.length];
+    int sp = 0;
+    int[] code = f.code;
+    int pc = 0;
+    while (pc < code.length){
+      int op = code[pc++];
+      switch (op){
+        case Formula.PUSH_CONST:
+          MethodHandle c = MethodHandles.constant(double.class, f.constants[code[pc++]]);
+          stack[sp++] = MethodHandles.dropArguments(c, 0, double[].class);
+          break;
+        case Formula.PUSH_REF:
+          stack[sp++] = MethodHandles.insertArguments(SLOT, 1, code[pc++]);
+          break;
+        case Formula.NEG:
+          stack[sp-1] = MethodHandles.filterReturnValue(stack[sp-1], NEG);
+          break;
+        default:
+          MethodHandle right = stack[--sp];
+          MethodHandle left = stack[--sp];
+          // (double[], double[])double, then feed the one array to both
+          MethodHandle both = MethodHandles.filterArguments(binary(op), 0, left, right);
+          stack[sp++] = MethodHandles.permuteArguments(both,
+                          MethodType.methodType(double.class, double[].class), 0, 0);
+      }
+    }
+    return stack[0];
+  }
+
+  // Handle for a binary opcode.
+  protected static MethodHandle binary(int op){
+    switch (op){
+      case Formula.ADD: return ADD;
+      case Formula.SUB: return SUB;
+      case Formula.MUL: return MUL;
+      case Formula.DIV: return DIV;
+      default:
+        throw new RuntimeException("Bad opcode " + op);
+    }
+  }
+}
@@ -0,0 +1,456 @@
+import java.util.*;
+
+// Optimizes formula trees and shares what the formulas of one sheet
+// have in common.
+//
+// simplify rewrites a parsed tree before it is compiled: constant
+// subtrees are folded to a single number and the identities x*1, 1*x,
+// x/1 and x-0 are dropped. Each rewrite gives bit for bit the value
+// the original tree would, -0.0 and NaN included, so --x becomes x+0
+// (which turns -0.0 into 0.0 just as the two negations do) and x+0 is
+// left alone.
+//
+// A sheet's pool hash-conses the trees of its linked formulas so each
+// distinct subtree is stored once however many cells contain it. A
+// subtree found in more than one place which is worth computing once,
+// an aggregate or anything of at least MIN_SHARED_NODES nodes reading
+// other cells, is compiled into a Shared body of its own. Formulas
+// then read its value from a memo tagged with the store's epoch, which
+// the sheet bumps on every edit, so it is computed once per edit no
+// matter how many cells use it.
+//
+// The pool also keeps a FormulaTemplate for each formula shape it has
+// seen, so make can turn further formulas of that shape, such as a
+// column filled down, into TemplateCells without parsing them.
+//
+// The pool is only changed while linking, which a ConcurrentSpreadsheet
+// does under its structure lock, but its methods are synchronized
+// anyway so a report may be asked for from any thread.
+public class FormulaPool {
+  public static final int MIN_SHARED_NODES = 5;
+
+  protected Map<Key, Entry> nodes;
+  // Canonical node of every distinct subtree of the linked formulas
+  // with the number of times it occurs in them.
+
+  protected long formulas, parsedNodes, simplifiedNodes;
+  // Number of formulas in the pool and the total size of their trees
+  // as parsed and after simplify.
+
+  protected Map<String, FormulaTemplate> templates;
+  protected long templateCells;
+  // Template of each shape some linked cell has, and the number of
+  // linked TemplateCells.
+
+  // Construct an empty pool.
+  public FormulaPool(){
+    this.nodes = new HashMap<Key, Entry>();
+    this.templates = new HashMap<String, FormulaTemplate>();
+  }
+
+  // Make a cell for the given contents at id, as Cell.make does, but
+  // without parsing if a linked cell already has the formula's shape.
+  // Runtime Complexity: O(S) with a template, O(S + T) o/w
+  public Cell make(String id, String contents){
+    return make(id, contents, null);
+  }
+
+  // Make a cell as above, also using and adding to batch, the templates
+  // of shapes first seen among cells made together but not yet linked.
+  public Cell make(String id, String contents, Map<String, FormulaTemplate> batch){
+    long anchor = CellAddress.encode(id);
+    String shape = null;
+    if (anchor != CellAddress.NONE && contents.contains("=")){
+      shape = FormulaTemplate.shape(contents.trim(), anchor);
+      if (shape != null){
+        FormulaTemplate t;
+        synchronized (this){
+          t = templates.get(shape);
+        }
+        if (t == null && batch != null){
+          t = batch.get(shape);
+        }
+        if (t != null){
+          return new TemplateCell(t, anchor);
+        }
+      }
+    }
+    Cell cell = Cell.make(contents);
+    if (shape != null && batch != null && cell.kind == Cell.FORMULA){
+      FormulaTemplate t = FormulaTemplate.make(cell.contents, anchor, cell.compiled);
+      if (t != null){
+        batch.put(shape, t);
+      }
+    }
+    return cell;
+  }
+
+  // Identity of a subtree whose children are already canonical.
+  protected static final class Key {
+    final TokenType type;
+    final String data;
+    final FNode left, right;
+
+    Key(FNode node){
+      this.type = node.type;
+      this.data = node.data;
+      this.left = node.left;
+      this.right = node.right;
+    }
+
+    public boolean equals(Object o){
+      if (!(o instanceof Key)){
+        return false;
+      }
+      Key k = (Key) o;
+      return type == k.type && data.equals(k.data) && left == k.left && right == k.right;
+    }
+
+    public int hashCode(){
+      int h = type.hashCode() * 31 + data.hashCode();
+      h = h * 31 + System.identityHashCode(left);
+      return h * 31 + System.identityHashCode(right);
+    }
+  }
+
+  // A canonical node, how often it occurs, and its shared body once
+  // one has been made.
+  protected static final class Entry {
+    final FNode node;
+    int uses;
+    Shared shared;
+
+    Entry(FNode node){
+      this.node = node;
+    }
+  }
+
+  // A subexpression computed once per edit for all formulas using it.
+  public static final class Shared {
+    protected final Formula body;
+    protected volatile Memo memo;
+    protected long runs;
+    // Compiled subexpression, its last result, and how many times it
+    // has actually been evaluated.
+
+    protected Shared(Formula body){
+      this.body = body;
+    }
+
+    // Return the value of the subexpression, computing it unless it
+    // was already computed since the store last changed. Without a
+    // store there is nothing to tag a memo with, so it always runs.
+    protected Memo evaluate(Map<String,Cell> cellMap, CellStore store){
+      long epoch = store == null ? -1 : store.epoch();
+      Memo m = memo;
+      if (m != null && epoch >= 0 && m.epoch == epoch){
+        return m;
+      }
+      // the body's scratch space allows only one evaluation at a time
+      synchronized (this){
+        m = memo;
+        if (m != null && epoch >= 0 && m.epoch == epoch){
+          return m;
+        }
+        double value = body.tryEvaluate(cellMap);
+        m = new Memo(epoch, value, body.status());
+        memo = m;
+        runs++;
+        return m;
+      }
+    }
+
+    // Return how many times the subexpression has been evaluated.
+    public synchronized long runs(){
+      return runs;
+    }
+  }
+
+  // Result of a shared subexpression at one epoch.
+  protected static final class Memo {
+    final long epoch;
+    final double value;
+    final int status;
+
+    Memo(long epoch, double value, int status){
+      this.epoch = epoch;
+      this.value = value;
+      this.status = status;
+    }
+  }
+
+  // Return the number of nodes in a tree.
+  // Runtime Complexity: O(T)
+  public static int size(FNode node){
+    return node == null ? 0 : 1 + size(node.left) + size(node.right);
+  }
+
+  // Return a tree computing exactly what node does with constant
+  // subtrees folded and identities removed. Nodes which need no change
+  // are reused, and node itself is never modified.
+  // Runtime Complexity: O(T)
+  public static FNode simplify(FNode node){
+    switch (node.type){
+      case Negate: {
+        FNode x = simplify(node.left);
+        if (x.type == TokenType.Number){
+          return number(0.0 - value(x));
+        }
+        if (x.type == TokenType.Negate){
+          return new FNode(TokenType.Plus, x.left, number(0.0));
+        }
+        return x == node.left ? node : new FNode(node.type, node.data, x, null);
+      }
+      case Plus:
+      case Minus:
+      case Multiply:
+      case Divide: {
+        FNode l = simplify(node.left);
+        FNode r = simplify(node.right);
+        boolean lnum = l.type == TokenType.Number, rnum = r.type == TokenType.Number;
+        if (lnum && rnum){
+          return number(apply(node.type, value(l), value(r)));
+        }
+        if (node.type == TokenType.Multiply && rnum && value(r) == 1.0){
+          return l;
+        }
+        if (node.type == TokenType.Multiply && lnum && value(l) == 1.0){
+          return r;
+        }
+        if (node.type == TokenType.Divide && rnum && value(r) == 1.0){
+          return l;
+        }
+        // only +0.0 leaves every x, including -0.0, unchanged
+        if (node.type == TokenType.Minus && rnum &&
+            Double.doubleToRawLongBits(value(r)) == 0L){
+          return l;
+        }
+        if (l == node.left && r == node.right){
+          return node;
+        }
+        return new FNode(node.type, node.data, l, r);
+      }
+      default:
+        return node;
+    }
+  }
+
+  // Apply a binary operator as Formula does.
+  protected static double apply(TokenType type, double l, double r){
+    switch (type){
+      case Plus:     return l + r;
+      case Minus:    return l - r;
+      case Multiply: return l * r;
+      case Divide:   return l / r;
+      default:
+        throw new RuntimeException("Error with TokenType '" + type + "'");
+    }
+  }
+
+  protected static double value(FNode number){
+    return Double.parseDouble(number.data);
+  }
+
+  protected static FNode number(double value){
+    return new FNode(TokenType.Number, Double.toString(value), null, null);
+  }
+
+  // Put a formula cell linked at id into the pool: count its template,
+  // or else intern its tree, recompile it so it reads shared
+  // subexpressions from their memos, and make its shape's template if
+  // there is none yet. Cells restored from a snapshot and not yet
+  // parsed stay out of the pool.
+  // Runtime Complexity: O(T)
+  public synchronized void acquire(String id, Cell cell){
+    if (cell instanceof TemplateCell){
+      // a template made for a batch becomes its shape's if none is yet
+      FormulaTemplate t = ((TemplateCell) cell).template;
+      if (!templates.containsKey(t.shape)){
+        templates.put(t.shape, t);
+      }
+      t.uses++;
+      templateCells++;
+      return;
+    }
+    if (cell.kind != Cell.FORMULA || cell.compiled == null || cell.pooled){
+      return;
+    }
+    Formula plain = cell.compiled;
+    int parsed = plain.sourceNodes;
+    cell.formulaTree = intern(cell.formulaTree);
+    cell.compiled = Formula.compile(cell.formulaTree, this);
+    cell.compiled.sourceNodes = parsed;
+    cell.pooled = true;
+    formulas++;
+    parsedNodes += parsed;
+    simplifiedNodes += size(cell.formulaTree);
+    // the formula compiled before sharing becomes the template's body
+    long anchor = CellAddress.encode(id);
+    if (anchor != CellAddress.NONE){
+      FormulaTemplate t = templateOf(cell.contents, anchor);
+      if (t == null){
+        t = FormulaTemplate.make(cell.contents, anchor, plain);
+        if (t != null){
+          templates.put(t.shape, t);
+        }
+      }
+      if (t != null){
+        t.uses++;
+      }
+    }
+  }
+
+  // Take a cell linked at id back out of the pool when it leaves the
+  // sheet.
+  // Runtime Complexity: O(T)
+  public synchronized void release(String id, Cell cell){
+    if (cell instanceof TemplateCell){
+      FormulaTemplate t = ((TemplateCell) cell).template;
+      templateCells--;
+      if (--t.uses == 0 && templates.get(t.shape) == t){
+        templates.remove(t.shape);
+      }
+      return;
+    }
+    if (!cell.pooled){
+      return;
+    }
+    release(cell.formulaTree);
+    formulas--;
+    parsedNodes -= cell.compiled.sourceNodes;
+    simplifiedNodes -= size(cell.formulaTree);
+    long anchor = CellAddress.encode(id);
+    FormulaTemplate t = anchor == CellAddress.NONE ? null : templateOf(cell.contents, anchor);
+    if (t != null && --t.uses == 0){
+      templates.remove(t.shape);
+    }
+  }
+
+  // Return the template of the shape of contents at anchor, or null.
+  protected FormulaTemplate templateOf(String contents, long anchor){
+    String shape = FormulaTemplate.shape(contents, anchor);
+    return shape == null ? null : templates.get(shape);
+  }
+
+  // Return the canonical copy of a tree, counting one more use of
+  // every node in it.
+  protected FNode intern(FNode node){
+    if (node == null){
+      return null;
+    }
+    FNode l = intern(node.left);
+    FNode r = intern(node.right);
+    FNode candidate = l == node.left && r == node.right ? node : new FNode(node.type, node.data, l, r);
+    Key key = new Key(candidate);
+    Entry e = nodes.get(key);
+    if (e == null){
+      e = new Entry(candidate);
+      nodes.put(key, e);
+    }
+    e.uses++;
+    return e.node;
+  }
+
+  // Count one less use of every node in a canonical tree.
+  protected void release(FNode node){
+    if (node == null){
+      return;
+    }
+    Key key = new Key(node);
+    Entry e = nodes.get(key);
+    if (e != null && --e.uses == 0){
+      nodes.remove(key);
+    }
+    release(node.left);
+    release(node.right);
+  }
+
+  // Return the shared body of a canonical subtree, making it if the
+  // subtree occurs more than once and is worth sharing, or null.
+  protected synchronized Shared sharedFor(FNode node){
+    Entry e = nodes.get(new Key(node));
+    if (e == null || e.uses < 2){
+      return null;
+    }
+    if (e.shared == null){
+      if (!worthSharing(node)){
+        return null;
+      }
+      e.shared = new Shared(Formula.compileBody(node, this));
+    }
+    return e.shared;
+  }
+
+  // Aggregates are always worth computing once; other subtrees if they
+  // read some cell and are big enough to cost more than a memo check.
+  protected static boolean worthSharing(FNode node){
+    if (node.type == TokenType.Function){
+      return true;
+    }
+    if (node.type == TokenType.Number || node.type == TokenType.CellID){
+      return false;
+    }
+    return size(node) >= MIN_SHARED_NODES && readsCells(node);
+  }
+
+  protected static boolean readsCells(FNode node){
+    if (node == null){
+      return false;
+    }
+    if (node.type == TokenType.CellID || node.type == TokenType.Function){
+      return true;
+    }
+    return readsCells(node.left) || readsCells(node.right);
+  }
+
+  // Return the number of formulas in the pool.
+  public synchronized long formulaCount(){
+    return formulas;
+  }
+
+  // Return the total nodes of the pooled formulas as parsed.
+  public synchronized long parsedNodeCount(){
+    return parsedNodes;
+  }
+
+  // Return the total nodes of the pooled formulas after simplify.
+  public synchronized long simplifiedNodeCount(){
+    return simplifiedNodes;
+  }
+
+  // Return the number of distinct nodes actually stored.
+  public synchronized long distinctNodeCount(){
+    return nodes.size();
+  }
+
+  // Return the number of subexpressions with a shared body.
+  public synchronized int sharedCount(){
+    int n = 0;
+    for (Entry e : nodes.values()){
+      if (e.shared != null){
+        n++;
+      }
+    }
+    return n;
+  }
+
+  // Return the number of distinct formula shapes with a template.
+  public synchronized int templateCount(){
+    return templates.size();
+  }
+
+  // Return the number of linked cells using a template in place of a
+  // formula of their own.
+  public synchronized long templateCellCount(){
+    return templateCells;
+  }
+
+  // Summarize the node counts.
+  public synchronized String report(){
+    return String.format("%d formulas: %d nodes parsed, %d after folding, " +
+                         "%d distinct after sharing, %d shared subexpressions; " +
+                         "%d more cells use %d formula shapes",
+                         formulas, parsedNodes, simplifiedNodes, nodes.size(), sharedCount(),
+                         templateCells, templates.size());
+  }
+}
@@ -0,0 +1,314 @@
+// Tests of formula simplification and sharing
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class FormulaPoolTests {
+  /*Main method runs tests in this file*/
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("FormulaPoolTests");
+  }
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(5000);
+
+  public static FNode simplified(String formula){
+    return FormulaPool.simplify(FNode.parseFormulaString(formula));
+  }
+
+  // Evaluate a tree to its exact bits, or null if it is an error. All
+  // NaNs count as the same value, as nothing in a sheet can tell them
+  // apart.
+  public static Long bits(FNode root, Map<String,Cell> cellMap){
+    try{
+      return Double.doubleToLongBits(Cell.evalFormulaTree(root, cellMap));
+    }
+    catch(Cell.EvalFormulaException e){
+      return null;
+    }
+  }
+
+  // Constant subtrees fold to one number
+  @Test public void simplify_fold1(){
+    FNode parsed = FNode.parseFormulaString("=A1*(2+3)*(2+3)");
+    FNode root = FormulaPool.simplify(parsed);
+    assertEquals(9, FormulaPool.size(parsed));
+    assertEquals(5, FormulaPool.size(root));
+    assertEquals(Double.valueOf(50.0),
+                 Cell.evalFormulaTree(root, CellTests.cellMap("A1","2")));
+    assertEquals(1, FormulaPool.size(simplified("=-(2*3)/4-1")));
+    assertEquals("-2.5", simplified("=-(2*3)/4-1").data);
+  }
+
+  // x*1, 1*x, x/1 and x-0 reduce to x; --x to x+0; x+0 stays
+  @Test public void simplify_identities1(){
+    for(String f : new String[]{"=A1*1", "=1*A1", "=A1/1", "=A1-0", "=(A1*(3-2))/(2-1)"}){
+      FNode root = simplified(f);
+      assertEquals(f, TokenType.CellID, root.type);
+    }
+    FNode neg = simplified("=--A1");
+    assertEquals(TokenType.Plus, neg.type);
+    assertEquals(3, FormulaPool.size(simplified("=A1+0")));
+    assertEquals(3, FormulaPool.size(simplified("=A1-(0*(-1))")));
+  }
+
+  // Simplified trees give exactly the same bits, signed zeros and
+  // errors included
+  @Test public void simplify_exact1(){
+    String[] values = {"-0", "0", "1", "-2.5", "1e308", "NaN", "Infinity", "text"};
+    String[] formulas = {"=--A1", "=A1*1", "=1*A1", "=A1/1", "=A1-0", "=A1+0",
+                         "=-(-(-A1))", "=(2-2)*A1", "=A1*(0-0)", "=A1-(1-1)",
+                         "=A1/(3-3)", "=-(0)+A1", "=A1*(1/1)*1", "=B9*1"};
+    for(String v : values){
+      Map<String,Cell> cellMap = CellTests.cellMap("A1", v);
+      for(String f : formulas){
+        FNode parsed = FNode.parseFormulaString(f);
+        assertEquals(f + " with " + v, bits(parsed, cellMap),
+                     bits(FormulaPool.simplify(parsed), cellMap));
+      }
+    }
+  }
+
+  // Random formulas simplify to the same values
+  @Test public void simplify_random1(){
+    Random rand = new Random(18);
+    Map<String,Cell> cellMap = CellTests.cellMap("A1","-0","A2","3","A3","0.5");
+    for(int i=0; i<500; i++){
+      String f = "=" + randomExpr(rand, 4);
+      FNode parsed = FNode.parseFormulaString(f);
+      FNode root = FormulaPool.simplify(parsed);
+      assertEquals(f, bits(parsed, cellMap), bits(root, cellMap));
+      assertTrue(f, FormulaPool.size(root) <= FormulaPool.size(parsed));
+    }
+  }
+
+  public static String randomExpr(Random rand, int depth){
+    int pick = rand.nextInt(depth <= 0 ? 2 : 7);
+    switch(pick){
+      case 0: return new String[]{"0","1","2","0.5"}[rand.nextInt(4)];
+      case 1: return "A" + (1 + rand.nextInt(3));
+      case 2: return "-(" + randomExpr(rand, depth-1) + ")";
+      default:
+        String op = new String[]{"+","-","*","/"}[pick - 3];
+        return "(" + randomExpr(rand, depth-1) + op + randomExpr(rand, depth-1) + ")";
+    }
+  }
+
+  // Identical subtrees across cells are stored once and counted
+  @Test public void pool_counts1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "1");
+    for(int i=1; i<=10; i++){
+      sheet.setCell("B" + i, "=(A1+2*3)*(A1+2*3)");
+    }
+    FormulaPool pool = sheet.getFormulaPool();
+    assertEquals(10, pool.formulaCount());
+    assertEquals(10 * 11, pool.parsedNodeCount());
+    assertEquals(10 * 7, pool.simplifiedNodeCount());
+    assertEquals(4, pool.distinctNodeCount());
+    assertEquals("49.0", sheet.getCellDisplayString("B10"));
+    for(int i=1; i<=10; i++){
+      sheet.deleteCell("B" + i);
+    }
+    assertEquals(0, pool.formulaCount());
+    assertEquals(0, pool.distinctNodeCount());
+    assertEquals(0, pool.simplifiedNodeCount());
+  }
+
+  // A shared aggregate is computed once per edit, not once per cell
+  @Test public void pool_shared_once1(){
+    Spreadsheet sheet = new Spreadsheet();
+    for(int i=1; i<=20; i++){
+      sheet.setCell("A" + i, "" + i);
+    }
+    for(int i=1; i<=50; i++){
+      sheet.setCell("C" + i, "=SUM(A1:A20)*B" + i);
+      sheet.setCell("B" + i, "" + i);
+    }
+    FNode sum = sheet.sheet.get("C7").formulaTree.left;
+    assertEquals(TokenType.Function, sum.type);
+    FormulaPool.Shared shared = sheet.getFormulaPool().sharedFor(sum);
+    assertNotNull(shared);
+    long before = shared.runs();
+    sheet.setCell("A3", "103");
+    assertEquals(before + 1, shared.runs());
+    assertEquals("" + (310.0 * 7), sheet.getCellDisplayString("C7"));
+    assertEquals("" + (310.0 * 50), sheet.getCellDisplayString("C50"));
+    sheet.setCell("A4", "oops");
+    assertEquals("306.0", sheet.getCellDisplayString("C1"));
+  }
+
+  // Shared subexpressions in error make every user an error, and
+  // recover with them
+  @Test public void pool_shared_error1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "2");
+    sheet.setCell("A2", "3");
+    for(int i=1; i<=5; i++){
+      sheet.setCell("B" + i, "=(A1*A2+A1)-" + i);
+    }
+    assertEquals("3.0", sheet.getCellDisplayString("B5"));
+    sheet.deleteCell("A2");
+    for(int i=1; i<=5; i++){
+      assertEquals("ERROR", sheet.getCellDisplayString("B" + i));
+    }
+    sheet.setCell("A2", "4");
+    assertEquals("9.0", sheet.getCellDisplayString("B1"));
+    assertEquals("5.0", sheet.getCellDisplayString("B5"));
+    assertTrue(sheet.getFormulaPool().sharedCount() > 0);
+  }
+
+  // Lazy and eager sheets sharing subexpressions agree after edits
+  @Test public void pool_lazy_matches_eager1(){
+    Spreadsheet eager = new Spreadsheet();
+    Spreadsheet lazy = new Spreadsheet();
+    lazy.setLazy(true);
+    Random rand = new Random(1018);
+    for(int step=0; step<300; step++){
+      String id, contents;
+      if(rand.nextInt(3) == 0){
+        id = "A" + (1 + rand.nextInt(5));
+        contents = rand.nextInt(8) == 0 ? "" : "" + rand.nextInt(10);
+      }
+      else{
+        id = "B" + (1 + rand.nextInt(8));
+        contents = "=(A1*A2+SUM(A1:A5))/" + (1 + rand.nextInt(3)) + "+A" + (1 + rand.nextInt(5));
+      }
+      eager.setCell(id, contents);
+      lazy.setCell(id, contents);
+      for(int i=1; i<=8; i++){
+        String b = "B" + i;
+        if(eager.sheet.containsKey(b) && rand.nextInt(2) == 0){
+          assertEquals(b, eager.getCellDisplayString(b), lazy.getCellDisplayString(b));
+        }
+      }
+    }
+    assertEquals(eager.toString(), lazy.toString());
+    assertEquals(eager.formulaReport(), lazy.formulaReport());
+  }
+
+  // A column filled down is parsed once and rebuilds each cell's text
+  @Test public void template_fill_down1(){
+    Spreadsheet sheet = new Spreadsheet();
+    for(int i=1; i<=100; i++){
+      sheet.setCell("A" + i, "" + i);
+      sheet.setCell("B" + i, "2");
+      sheet.setCell("C" + i, "=A" + i + " * B" + i + "+0.5");
+    }
+    FormulaPool pool = sheet.getFormulaPool();
+    assertEquals(1, pool.templateCount());
+    assertEquals(99, pool.templateCellCount());
+    assertEquals(1, pool.formulaCount());
+    assertFalse(sheet.sheet.get("C1") instanceof TemplateCell);
+    assertTrue(sheet.sheet.get("C57") instanceof TemplateCell);
+    assertEquals("=A57 * B57+0.5", sheet.getCellContents("C57"));
+    assertEquals("114.5", sheet.getCellDisplayString("C57"));
+    sheet.setCell("B57", "3");
+    assertEquals("171.5", sheet.getCellDisplayString("C57"));
+    sheet.setCell("A57", "x");
+    assertEquals("ERROR", sheet.getCellDisplayString("C57"));
+    assertEquals("116.5", sheet.getCellDisplayString("C58"));
+  }
+
+  // Ranges and references to cells above shift with the cell
+  @Test public void template_ranges1(){
+    Spreadsheet sheet = new Spreadsheet();
+    for(int i=1; i<=20; i++){
+      sheet.setCell("A" + i, "" + i);
+    }
+    for(int i=2; i<=19; i++){
+      sheet.setCell("B" + i, "=SUM(A" + (i-1) + ":A" + (i+1) + ")/COUNT(A" + (i-1) + ":A" + (i+1) + ")+B" + (i-1));
+    }
+    sheet.setCell("B1", "100");
+    assertEquals(17, sheet.getFormulaPool().templateCellCount());
+    assertEquals("=SUM(A9:A11)/COUNT(A9:A11)+B9", sheet.getCellContents("B10"));
+    assertEquals("154.0", sheet.getCellDisplayString("B10"));
+    sheet.setCell("A11", "14");
+    assertEquals("155.0", sheet.getCellDisplayString("B10"));
+    assertEquals("167.0", sheet.getCellDisplayString("B11"));
+    assertEquals("180.0", sheet.getCellDisplayString("B12"));
+    try{
+      sheet.setCell("A12", "=B12");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+  }
+
+  // Template cells agree with parsing every formula on its own
+  @Test public void template_matches_parse1(){
+    Random rand = new Random(1019);
+    Spreadsheet sheet = new Spreadsheet();
+    for(int i=1; i<=30; i++){
+      sheet.setCell("A" + i, rand.nextInt(6) == 0 ? "n/a" : "" + rand.nextInt(9));
+    }
+    String[] shapes = {"=A%d*A%d", "=(A%d-A%d)/2", "=MAX(A%d:A%d)-1"};
+    for(int i=1; i<=29; i++){
+      String f = String.format(shapes[i % 3], i, i+1);
+      sheet.setCell("B" + i, f);
+      sheet.setCell("C" + i, String.format(shapes[0], i, i+1));
+    }
+    for(int step=0; step<50; step++){
+      sheet.setCell("A" + (1 + rand.nextInt(30)), "" + rand.nextInt(9));
+      for(int i=1; i<=29; i++){
+        for(String col : new String[]{"B", "C"}){
+          Cell cell = sheet.sheet.get(col + i);
+          FNode root = FNode.parseFormulaString(sheet.getCellContents(col + i));
+          Long expect = bits(root, sheet.sheet);
+          String shown = sheet.getCellDisplayString(col + i);
+          assertEquals(col + i, expect == null ? "ERROR" : "" + Double.longBitsToDouble(expect), shown);
+        }
+      }
+    }
+  }
+
+  // Templates live as long as some cell uses them
+  @Test public void template_release1(){
+    Spreadsheet sheet = new Spreadsheet();
+    for(int i=1; i<=5; i++){
+      sheet.setCell("B" + i, "=A" + i + "+1");
+    }
+    FormulaPool pool = sheet.getFormulaPool();
+    assertEquals(1, pool.templateCount());
+    sheet.deleteCell("B1");
+    assertEquals(1, pool.templateCount());
+    for(int i=2; i<=5; i++){
+      sheet.setCell("B" + i, "=A" + i + "+2");
+    }
+    assertEquals(1, pool.templateCount());
+    assertEquals(3, pool.templateCellCount());
+    sheet.setCell("A3", "4");
+    assertEquals("6.0", sheet.getCellDisplayString("B3"));
+    for(int i=2; i<=5; i++){
+      sheet.deleteCell("B" + i);
+    }
+    assertEquals(0, pool.templateCount());
+    assertEquals(0, pool.templateCellCount());
+    assertEquals(0, pool.formulaCount());
+  }
+
+  // Bulk edits, snapshots and concurrent sheets keep the text
+  @Test public void template_roundtrip1() throws Exception{
+    ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet(4);
+    Map<String,String> edits = new LinkedHashMap<String,String>();
+    for(int i=1; i<=40; i++){
+      edits.put("A" + i, "" + i);
+      edits.put("B" + i, "=A" + i + "*A" + i);
+    }
+    sheet.setCells(edits);
+    sheet.setCell("B41", "=A41*A41");
+    assertTrue(sheet.getFormulaPool().templateCellCount() >= 39);
+    assertEquals("1600.0", sheet.getCellDisplayString("B40"));
+    Spreadsheet copy1 = SheetSnapshotTests.copy(sheet);
+    for(int i=1; i<=41; i++){
+      assertEquals(sheet.getCellContents("B" + i), copy1.getCellContents("B" + i));
+      assertEquals(sheet.getCellDisplayString("B" + i), copy1.getCellDisplayString("B" + i));
+    }
+    copy1.setCell("A40", "3");
+    assertEquals("9.0", copy1.getCellDisplayString("B40"));
+    assertEquals("=A41*A41", copy1.getCellContents("B41"));
+  }
+}
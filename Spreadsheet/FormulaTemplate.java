@@ -0,0 +1,337 @@
+import java.util.*;
+
+// One compiled formula shared by every cell whose formula has the same
+// shape: the same text once each cell reference is written relative to
+// the cell holding it, R1C1 style. Filling =A1*B1 down column C gives
+// =A2*B2, =A3*B3 and so on, which all have the shape
+// =R[0]C[-2]*R[0]C[-1], so the column needs one parse and one compiled
+// body however many rows it has. Each of those cells is a TemplateCell
+// holding just the template and its own address; its references,
+// ranges and contents text are worked out from the offsets when asked
+// for.
+//
+// Only formulas whose references are all well formed IDs have a shape.
+// Shapes are found by a scan which tokenizes numbers and IDs as
+// FNodeParser does, so two formulas of one shape parse to trees that
+// differ only in their references, shifted by the distance between the
+// cells.
+public class FormulaTemplate {
+  protected final String shape;
+  // Canonical relative text of the formula.
+
+  protected final String[] pieces;
+  protected final int[] tokenCols, tokenRows;
+  // Text between references and the offset of each reference, for
+  // rebuilding a cell's contents.
+
+  protected final Formula body;
+  protected final int[] refCols, refRows;
+  protected final int[][] rangeOffsets;
+  // Formula compiled for the first cell of the shape, and the offsets
+  // from the cell of each reference slot and of the corners col1, row1,
+  // col2, row2 of each range slot.
+
+  public static final int BLOCK_ROWS = 1024;
+  // Most cells evaluated as one column block, so its columns stay in
+  // cache.
+
+  protected final boolean columnar;
+  // Whether the formula reads nothing in its own column, so cells of
+  // the template in one column never read one another directly.
+
+  protected int uses;
+  // Number of linked cells with this shape, counted by the FormulaPool.
+
+  protected final ThreadLocal<double[][]> scratch;
+  // Slots and operand stack per evaluating thread, as many cells on
+  // different threads may run the one body at once.
+
+  protected FormulaTemplate(String shape, String[] pieces, int[] tokenCols, int[] tokenRows,
+                            Formula body, int[] refCols, int[] refRows, int[][] rangeOffsets){
+    this.shape = shape;
+    this.pieces = pieces;
+    this.tokenCols = tokenCols;
+    this.tokenRows = tokenRows;
+    this.body = body;
+    this.refCols = refCols;
+    this.refRows = refRows;
+    this.rangeOffsets = rangeOffsets;
+    boolean columnar = true;
+    for (int dc : refCols){
+      columnar &= dc != 0;
+    }
+    for (int[] o : rangeOffsets){
+      columnar &= o[0] > 0 || o[2] < 0;
+    }
+    this.columnar = columnar;
+    final int slotCount = body.slotCount(), stackSize = body.stackSize();
+    this.scratch = new ThreadLocal<double[][]>(){
+      protected double[][] initialValue(){
+        return new double[][]{ new double[slotCount], new double[stackSize] };
+      }
+    };
+  }
+
+  // Scan result: the shape of some contents, and the references found
+  // in them with their offsets.
+  protected static class Scan {
+    String shape;
+    List<String> pieces = new ArrayList<String>();
+    List<String> tokens = new ArrayList<String>();
+    int[] cols = new int[4], rows = new int[4];
+    int count;
+
+    void add(String token, int col, int row){
+      if (count == cols.length){
+        cols = Arrays.copyOf(cols, count * 2);
+        rows = Arrays.copyOf(rows, count * 2);
+      }
+      tokens.add(token);
+      cols[count] = col;
+      rows[count] = row;
+      count++;
+    }
+  }
+
+  // Return the shape of the trimmed contents of a formula in the cell
+  // at anchor, or null if it has none.
+  // Runtime Complexity: O(S)
+  //   S: the length of the contents
+  public static String shape(String contents, long anchor){
+    Scan scan = scan(contents, anchor);
+    return scan == null ? null : scan.shape;
+  }
+
+  // Split contents into literal text and references relative to anchor.
+  // Returns null if some ID is not well formed or the text holds the
+  // brackets the shape itself uses.
+  protected static Scan scan(String contents, long anchor){
+    int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+    Scan scan = new Scan();
+    StringBuilder shape = new StringBuilder(contents.length() + 16);
+    int n = contents.length();
+    int last = 0;
+    int i = 0;
+    while (i < n){
+      char c = contents.charAt(i);
+      if (c == '[' || c == ']'){
+        return null;
+      }
+      if (c >= '0' && c <= '9'){
+        // numbers are copied whole so their digits are never read as rows
+        while (i < n && contents.charAt(i) >= '0' && contents.charAt(i) <= '9'){
+          i++;
+        }
+        if (i + 1 < n && contents.charAt(i) == '.' &&
+            contents.charAt(i + 1) >= '0' && contents.charAt(i + 1) <= '9'){
+          i++;
+          while (i < n && contents.charAt(i) >= '0' && contents.charAt(i) <= '9'){
+            i++;
+          }
+        }
+        continue;
+      }
+      if ((c >= 'A' && c <= 'Z') || c == '_'){
+        int start = i;
+        while (i < n && ((contents.charAt(i) >= 'A' && contents.charAt(i) <= 'Z') ||
+                         contents.charAt(i) == '_')){
+          i++;
+        }
+        if (i == n || contents.charAt(i) < '0' || contents.charAt(i) > '9'){
+          continue; // a function name
+        }
+        while (i < n && contents.charAt(i) >= '0' && contents.charAt(i) <= '9'){
+          i++;
+        }
+        String token = contents.substring(start, i);
+        long addr = CellAddress.encode(token);
+        if (addr == CellAddress.NONE){
+          return null;
+        }
+        int dc = CellAddress.column(addr) - col0, dr = CellAddress.row(addr) - row0;
+        String piece = contents.substring(last, start);
+        scan.pieces.add(piece);
+        shape.append(piece).append("R[").append(dr).append("]C[").append(dc).append(']');
+        scan.add(token, dc, dr);
+        last = i;
+        continue;
+      }
+      i++;
+    }
+    String tail = contents.substring(last);
+    scan.pieces.add(tail);
+    shape.append(tail);
+    scan.shape = shape.toString();
+    return scan;
+  }
+
+  // Make the template of the formula compiled from contents for the
+  // cell at anchor, or return null if it has no shape or its compiled
+  // references do not match the ones the scan found.
+  protected static FormulaTemplate make(String contents, long anchor, Formula body){
+    Scan scan = scan(contents, anchor);
+    if (scan == null || body.shared.length > 0){
+      return null;
+    }
+    int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+    Set<String> found = new HashSet<String>(scan.tokens);
+    Set<String> compiled = new HashSet<String>();
+    int[] refCols = new int[body.refs.length], refRows = new int[body.refs.length];
+    for (int i = 0; i < body.refs.length; i++){
+      if (body.refAddrs[i] == CellAddress.NONE){
+        return null;
+      }
+      refCols[i] = CellAddress.column(body.refAddrs[i]) - col0;
+      refRows[i] = CellAddress.row(body.refAddrs[i]) - row0;
+      compiled.add(body.refs[i]);
+    }
+    int[][] rangeOffsets = new int[body.ranges.length][];
+    for (int k = 0; k < body.ranges.length; k++){
+      RangeIndex.Range r = body.ranges[k];
+      rangeOffsets[k] = new int[]{ r.col1 - col0, r.row1 - row0, r.col2 - col0, r.row2 - row0 };
+      compiled.add(CellAddress.decode(CellAddress.pack(r.col1, r.row1)));
+      compiled.add(CellAddress.decode(CellAddress.pack(r.col2, r.row2)));
+    }
+    if (!found.equals(compiled)){
+      return null;
+    }
+    return new FormulaTemplate(scan.shape, scan.pieces.toArray(new String[0]),
+                               Arrays.copyOf(scan.cols, scan.count),
+                               Arrays.copyOf(scan.rows, scan.count),
+                               body, refCols, refRows, rangeOffsets);
+  }
+
+  // Return the shape.
+  public String shape(){
+    return shape;
+  }
+
+  // Rebuild the contents of the cell at anchor.
+  // Runtime Complexity: O(S)
+  public String contents(long anchor){
+    int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < tokenCols.length; i++){
+      sb.append(pieces[i]);
+      sb.append(CellAddress.decode(CellAddress.pack(col0 + tokenCols[i], row0 + tokenRows[i])));
+    }
+    sb.append(pieces[pieces.length - 1]);
+    return sb.toString();
+  }
+
+  // Return the IDs the cell at anchor reads.
+  public String[] refs(long anchor){
+    int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+    String[] out = new String[refCols.length];
+    for (int i = 0; i < out.length; i++){
+      out[i] = CellAddress.decode(CellAddress.pack(col0 + refCols[i], row0 + refRows[i]));
+    }
+    return out;
+  }
+
+  // Return the range of slot k for the cell at anchor.
+  public RangeIndex.Range range(int k, long anchor){
+    int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+    int[] o = rangeOffsets[k];
+    return new RangeIndex.Range(col0 + o[0], row0 + o[1], col0 + o[2], row0 + o[3]);
+  }
+
+  // Return the canonical IDs of the ranges the cell at anchor
+  // aggregates, one per call.
+  public String[] rangeNames(long anchor){
+    String[] out = new String[rangeOffsets.length];
+    for (int k = 0; k < out.length; k++){
+      out[k] = range(k, anchor).id;
+    }
+    return out;
+  }
+
+  // Evaluate the formula for a cell of this template, setting its
+  // value or marking it in error.
+  // Runtime Complexity: O(R + A + C) as for Formula.evaluate
+  protected void update(TemplateCell cell, Map<String,Cell> cellMap){
+    CellStore store = cellMap instanceof CellStore ? (CellStore) cellMap : null;
+    long anchor = cell.anchor;
+    int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+    double[][] space = scratch.get();
+    double[] slots = space[0];
+    for (int i = 0; i < refCols.length; i++){
+      long addr = CellAddress.pack(col0 + refCols[i], row0 + refRows[i]);
+      Cell ref = store != null ? store.getAt(addr) : cellMap.get(CellAddress.decode(addr));
+      if (ref == null || !ref.hasNumber()){
+        cell.error = true;
+        return;
+      }
+      slots[i] = ref.value;
+    }
+    for (int k = 0; k < rangeOffsets.length; k++){
+      RangeIndex.Range r = range(k, anchor);
+      RangeIndex.Totals t;
+      if (store != null && store.ranges() != null){
+        t = store.ranges().totals(r);
+      }
+      else{
+        t = RangeIndex.totals(cellMap, r);
+      }
+      if (t.failed(body.functions[k])){
+        cell.error = true;
+        return;
+      }
+      slots[refCols.length + k] = t.value(body.functions[k]);
+    }
+    cell.error = false;
+    cell.value = body.execute(slots, space[1]);
+  }
+
+  // Evaluate cells[lo] to cells[hi-1], all cells of this template, as
+  // one block: their inputs are gathered into a column per slot and the
+  // body run over the columns at once by Formula.runColumns. The cells
+  // may not read one another. Each cell ends up exactly as update
+  // would leave it.
+  // Runtime Complexity: O(n * (R + A + C))
+  //   n: hi - lo
+  protected void updateBlock(TemplateCell[] cells, int lo, int hi, Map<String,Cell> cellMap){
+    CellStore store = cellMap instanceof CellStore ? (CellStore) cellMap : null;
+    int n = hi - lo;
+    double[][] columns = new double[body.slotCount()][n];
+    boolean[] failed = new boolean[n];
+    for (int i = 0; i < n; i++){
+      long anchor = cells[lo + i].anchor;
+      int col0 = CellAddress.column(anchor), row0 = CellAddress.row(anchor);
+      for (int s = 0; s < refCols.length && !failed[i]; s++){
+        long addr = CellAddress.pack(col0 + refCols[s], row0 + refRows[s]);
+        Cell ref = store != null ? store.getAt(addr) : cellMap.get(CellAddress.decode(addr));
+        if (ref == null || !ref.hasNumber()){
+          failed[i] = true;
+        }
+        else{
+          columns[s][i] = ref.value;
+        }
+      }
+      for (int k = 0; k < rangeOffsets.length && !failed[i]; k++){
+        RangeIndex.Range r = range(k, anchor);
+        RangeIndex.Totals t;
+        if (store != null && store.ranges() != null){
+          t = store.ranges().totals(r);
+        }
+        else{
+          t = RangeIndex.totals(cellMap, r);
+        }
+        if (t.failed(body.functions[k])){
+          failed[i] = true;
+        }
+        else{
+          columns[refCols.length + k][i] = t.value(body.functions[k]);
+        }
+      }
+    }
+    double[] out = body.runColumns(columns, n, new double[body.stackSize()][n]);
+    for (int i = 0; i < n; i++){
+      TemplateCell cell = cells[lo + i];
+      cell.error = failed[i];
+      if (!failed[i]){
+        cell.value = out[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+import java.util.*;
+
+// Open addressing hash map from primitive long keys to values. Keys
+// and values live in two parallel arrays probed linearly, so there is
+// no entry object or boxed key per mapping. The key 0 is reserved to
+// mark empty slots and cannot be stored.
+public class LongMap<V> {
+  protected long[] keys;
+  protected Object[] values;
+  protected int size;
+  protected int mask;
+  // Slot arrays whose length is always a power of two, the number of
+  // mappings, and length-1 for reducing hashes to slots.
+
+  // Construct an empty map.
+  public LongMap(){
+    this(16);
+  }
+
+  // Construct an empty map with room for about expected mappings
+  // before it has to grow.
+  public LongMap(int expected){
+    int cap = 16;
+    while (cap * 3 / 4 < expected){
+      cap <<= 1;
+    }
+    keys = new long[cap];
+    values = new Object[cap];
+    mask = cap - 1;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  public boolean isEmpty(){
+    return size == 0;
+  }
+
+  // Spread the bits of key so nearby addresses land in distant slots.
+  protected static int hash(long key){
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  // Return the slot holding key or -1.
+  protected int find(long key){
+    int i = hash(key) & mask;
+    while (keys[i] != 0){
+      if (keys[i] == key){
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  // Return the value for key or null.
+  // Runtime Complexity: O(1) expected
+  @SuppressWarnings("unchecked")
+  public V get(long key){
+    int i = find(key);
+    return i < 0 ? null : (V) values[i];
+  }
+
+  public boolean containsKey(long key){
+    return find(key) >= 0;
+  }
+
+  // Associate value with key and return the previous value or null.
+  // Runtime Complexity: O(1) amortized
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value){
+    if (key == 0){
+      throw new IllegalArgumentException("LongMap cannot store key 0");
+    }
+    int i = hash(key) & mask;
+    while (keys[i] != 0){
+      if (keys[i] == key){
+        V old = (V) values[i];
+        values[i] = value;
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    size++;
+    if (size > keys.length * 3 / 4){
+      resize(keys.length * 2);
+    }
+    return null;
+  }
+
+  // Remove key and return its value or null. Later entries of the
+  // probe run are shifted back so lookups never need tombstones.
+  // Runtime Complexity: O(1) expected
+  @SuppressWarnings("unchecked")
+  public V remove(long key){
+    int i = find(key);
+    if (i < 0){
+      return null;
+    }
+    V old = (V) values[i];
+    int gap = i;
+    int j = (i + 1) & mask;
+    while (keys[j] != 0){
+      int home = hash(keys[j]) & mask;
+      // move j into the gap unless its home lies cyclically in (gap, j]
+      if (((j - home) & mask) >= ((j - gap) & mask)){
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+      j = (j + 1) & mask;
+    }
+    keys[gap] = 0;
+    values[gap] = null;
+    size--;
+    return old;
+  }
+
+  public void clear(){
+    Arrays.fill(keys, 0);
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  // Return the stored keys in slot order.
+  public long[] keys(){
+    long[] out = new long[size];
+    int n = 0;
+    for (int i = 0; i < keys.length; i++){
+      if (keys[i] != 0){
+        out[n++] = keys[i];
+      }
+    }
+    return out;
+  }
+
+  protected void resize(int cap){
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[cap];
+    values = new Object[cap];
+    mask = cap - 1;
+    for (int i = 0; i < oldKeys.length; i++){
+      long k = oldKeys[i];
+      if (k != 0){
+        int j = hash(k) & mask;
+        while (keys[j] != 0){
+          j = (j + 1) & mask;
+        }
+        keys[j] = k;
+        values[j] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+import java.util.*;
+
+// Map from cell IDs to cells which keys well formed IDs by their
+// packed CellAddress in a LongMap, so a stored cell costs two array
+// slots instead of a hash entry plus a key string. IDs that do not
+// encode (odd names the formula grammar still allows, such as "A_B1")
+// go to an ordinary HashMap. Callers that already hold an address can
+// skip decoding with getAt. This is the store of a plain Spreadsheet.
+public class PackedCellStore extends AbstractMap<String, Cell> implements CellStore {
+  protected LongMap<Cell> cells;
+  protected Map<String, Cell> others;
+  protected RangeIndex ranges;
+  protected volatile long epoch;
+  // Cells by address and by name, the sheet's range aggregates and the
+  // current epoch.
+
+  // Construct an empty store.
+  public PackedCellStore(){
+    this.cells = new LongMap<Cell>();
+    this.others = new HashMap<String, Cell>();
+  }
+
+  // Runtime Complexity: O(1)
+  public Cell getAt(long addr){
+    return cells.get(addr);
+  }
+
+  public long[] addresses(){
+    return cells.keys();
+  }
+
+  public RangeIndex ranges(){
+    return ranges;
+  }
+
+  public void setRanges(RangeIndex ranges){
+    this.ranges = ranges;
+  }
+
+  public long epoch(){
+    return epoch;
+  }
+
+  public void advanceEpoch(){
+    epoch++;
+  }
+
+  @Override
+  public Cell get(Object key){
+    if (!(key instanceof String)){
+      return null;
+    }
+    long addr = CellAddress.encode((String) key);
+    return addr != CellAddress.NONE ? cells.get(addr) : others.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key){
+    return get(key) != null;
+  }
+
+  @Override
+  public Cell put(String key, Cell cell){
+    long addr = CellAddress.encode(key);
+    return addr != CellAddress.NONE ? cells.put(addr, cell) : others.put(key, cell);
+  }
+
+  @Override
+  public Cell remove(Object key){
+    if (!(key instanceof String)){
+      return null;
+    }
+    long addr = CellAddress.encode((String) key);
+    return addr != CellAddress.NONE ? cells.remove(addr) : others.remove(key);
+  }
+
+  @Override
+  public int size(){
+    return cells.size() + others.size();
+  }
+
+  @Override
+  public void clear(){
+    cells.clear();
+    others.clear();
+  }
+
+  // Entries are built on the fly while iterating. Removing through
+  // the iterator is not supported.
+  @Override
+  public Set<Map.Entry<String, Cell>> entrySet(){
+    return new AbstractSet<Map.Entry<String, Cell>>(){
+      public int size(){
+        return PackedCellStore.this.size();
+      }
+      public Iterator<Map.Entry<String, Cell>> iterator(){
+        final long[] addrs = cells.keys();
+        final Iterator<Map.Entry<String, Cell>> rest = others.entrySet().iterator();
+        return new Iterator<Map.Entry<String, Cell>>(){
+          int i = 0;
+          public boolean hasNext(){
+            return i < addrs.length || rest.hasNext();
+          }
+          public Map.Entry<String, Cell> next(){
+            if (i < addrs.length){
+              long addr = addrs[i++];
+              return new AbstractMap.SimpleImmutableEntry<String, Cell>(
+                CellAddress.decode(addr), cells.get(addr));
+            }
+            return rest.next();
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,245 @@
+import java.util.*;
+
+// Immutable hash array mapped trie. Adding or removing a key copies
+// only the nodes on the path to it, O(log32 n) of them, and shares the
+// rest with the old map, so keeping every old version is cheap and any
+// version can be read from any thread without locking.
+//
+// Each inner node holds a 32 bit bitmap of which of its 32 child
+// positions are used and a packed array with one entry per set bit.
+// An entry is either a key and value pair or a child node, told apart
+// by whether the key slot is null. Keys whose hashes agree in every
+// bit share a collision node holding them all.
+public final class PersistentMap<K, V> {
+  protected static final Object[] NO_ENTRIES = new Object[0];
+
+  protected final Node root;
+  protected final int size;
+
+  protected static final PersistentMap<Object, Object> EMPTY =
+    new PersistentMap<Object, Object>(new Node(0, NO_ENTRIES), 0);
+
+  protected PersistentMap(Node root, int size){
+    this.root = root;
+    this.size = size;
+  }
+
+  // Return the empty map.
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty(){
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  public boolean isEmpty(){
+    return size == 0;
+  }
+
+  // Return the value for key or null.
+  // Runtime Complexity: O(log32 n)
+  @SuppressWarnings("unchecked")
+  public V get(Object key){
+    return (V) root.find(spread(key.hashCode()), 0, key);
+  }
+
+  public boolean containsKey(Object key){
+    return get(key) != null;
+  }
+
+  // Return a map with key bound to value. Null values are not allowed.
+  // Runtime Complexity: O(log32 n)
+  public PersistentMap<K, V> plus(K key, V value){
+    if (value == null){
+      throw new NullPointerException("PersistentMap cannot store null");
+    }
+    boolean[] added = new boolean[1];
+    Node next = root.put(spread(key.hashCode()), 0, key, value, added);
+    if (next == root){
+      return this;
+    }
+    return new PersistentMap<K, V>(next, added[0] ? size + 1 : size);
+  }
+
+  // Return a map without key.
+  // Runtime Complexity: O(log32 n)
+  public PersistentMap<K, V> minus(Object key){
+    Node next = root.remove(spread(key.hashCode()), 0, key);
+    if (next == root){
+      return this;
+    }
+    return new PersistentMap<K, V>(next == null ? new Node(0, NO_ENTRIES) : next, size - 1);
+  }
+
+  // Return the keys in trie order.
+  @SuppressWarnings("unchecked")
+  public List<K> keys(){
+    List<Object> out = new ArrayList<Object>(size);
+    root.collect(out);
+    return (List<K>) out;
+  }
+
+  protected static int spread(int h){
+    return h ^ (h >>> 16);
+  }
+
+  // Position of hash within a node at the given shift.
+  protected static int bit(int hash, int shift){
+    return 1 << ((hash >>> shift) & 31);
+  }
+
+  // An inner node. entries holds key and value pairs, with a null key
+  // meaning the value is a child Node. Keys stored past the last level
+  // (shift >= 32) all share one hash and sit in a single collision
+  // node whose bitmap is unused.
+  protected static final class Node {
+    final int bitmap;
+    final Object[] entries;
+
+    Node(int bitmap, Object[] entries){
+      this.bitmap = bitmap;
+      this.entries = entries;
+    }
+
+    int index(int bit){
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    Object find(int hash, int shift, Object key){
+      if (shift >= 32){
+        for (int i = 0; i < entries.length; i += 2){
+          if (entries[i].equals(key)){
+            return entries[i + 1];
+          }
+        }
+        return null;
+      }
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0){
+        return null;
+      }
+      int i = index(bit);
+      Object k = entries[i];
+      if (k == null){
+        return ((Node) entries[i + 1]).find(hash, shift + 5, key);
+      }
+      return k.equals(key) ? entries[i + 1] : null;
+    }
+
+    Node put(int hash, int shift, Object key, Object value, boolean[] added){
+      if (shift >= 32){
+        for (int i = 0; i < entries.length; i += 2){
+          if (entries[i].equals(key)){
+            return entries[i + 1] == value ? this : new Node(0, with(entries, i + 1, value));
+          }
+        }
+        added[0] = true;
+        Object[] grown = Arrays.copyOf(entries, entries.length + 2);
+        grown[entries.length] = key;
+        grown[entries.length + 1] = value;
+        return new Node(0, grown);
+      }
+      int bit = bit(hash, shift);
+      int i = index(bit);
+      if ((bitmap & bit) == 0){
+        added[0] = true;
+        Object[] grown = new Object[entries.length + 2];
+        System.arraycopy(entries, 0, grown, 0, i);
+        grown[i] = key;
+        grown[i + 1] = value;
+        System.arraycopy(entries, i, grown, i + 2, entries.length - i);
+        return new Node(bitmap | bit, grown);
+      }
+      Object k = entries[i];
+      if (k == null){
+        Node child = (Node) entries[i + 1];
+        Node next = child.put(hash, shift + 5, key, value, added);
+        return next == child ? this : new Node(bitmap, with(entries, i + 1, next));
+      }
+      if (k.equals(key)){
+        return entries[i + 1] == value ? this : new Node(bitmap, with(entries, i + 1, value));
+      }
+      // two keys meet here: push both down into a new child
+      added[0] = true;
+      Node child = pair(spread(k.hashCode()), k, entries[i + 1], hash, key, value, shift + 5);
+      Object[] copy = with(entries, i + 1, child);
+      copy[i] = null;
+      return new Node(bitmap, copy);
+    }
+
+    static Node pair(int h1, Object k1, Object v1, int h2, Object k2, Object v2, int shift){
+      if (shift >= 32){
+        return new Node(0, new Object[]{k1, v1, k2, v2});
+      }
+      int b1 = bit(h1, shift), b2 = bit(h2, shift);
+      if (b1 == b2){
+        return new Node(b1, new Object[]{null, pair(h1, k1, v1, h2, k2, v2, shift + 5)});
+      }
+      Object[] e = ((h1 >>> shift) & 31) < ((h2 >>> shift) & 31)
+        ? new Object[]{k1, v1, k2, v2} : new Object[]{k2, v2, k1, v1};
+      return new Node(b1 | b2, e);
+    }
+
+    // Return the node without key, this if key is absent, or null if
+    // the node would be empty.
+    Node remove(int hash, int shift, Object key){
+      if (shift >= 32){
+        for (int i = 0; i < entries.length; i += 2){
+          if (entries[i].equals(key)){
+            return entries.length == 2 ? null : new Node(0, without(entries, i));
+          }
+        }
+        return this;
+      }
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0){
+        return this;
+      }
+      int i = index(bit);
+      Object k = entries[i];
+      if (k == null){
+        Node child = (Node) entries[i + 1];
+        Node next = child.remove(hash, shift + 5, key);
+        if (next == child){
+          return this;
+        }
+        if (next != null){
+          return new Node(bitmap, with(entries, i + 1, next));
+        }
+      }
+      else if (!k.equals(key)){
+        return this;
+      }
+      if (bitmap == bit){
+        return null;
+      }
+      return new Node(bitmap & ~bit, without(entries, i));
+    }
+
+    void collect(List<Object> out){
+      for (int i = 0; i < entries.length; i += 2){
+        if (entries[i] == null){
+          ((Node) entries[i + 1]).collect(out);
+        }
+        else{
+          out.add(entries[i]);
+        }
+      }
+    }
+
+    static Object[] with(Object[] entries, int i, Object x){
+      Object[] copy = entries.clone();
+      copy[i] = x;
+      return copy;
+    }
+
+    static Object[] without(Object[] entries, int i){
+      Object[] copy = new Object[entries.length - 2];
+      System.arraycopy(entries, 0, copy, 0, i);
+      System.arraycopy(entries, i + 2, copy, i, entries.length - i - 2);
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,616 @@
+import java.util.*;
+
+// Support for range references such as A1:B100 used by the aggregate
+// functions SUM, AVG, MIN, MAX and COUNT.
+//
+// Every range used by some formula is registered here under its
+// canonical ID and appears in the DAG as a single node. Rather than
+// one stored link per cell, the DAG asks this index (as its
+// LinkSource) for the implied links: each cell inside a range is
+// upstream of the range node. Columns touched by any range keep a
+// search tree over the rows holding numbers or errors, each subtree
+// carrying the sum, count, min, max and error count of its cells, so
+// changing one cell updates an aggregate in O(log n) and evaluating
+// one costs O(w log n) for a range w columns wide. The trees grow with
+// the cells in them, not with the rows the ranges span, and the
+// implied links are found from the cells and nodes that exist, so a
+// range covering a whole column costs no more than one over the
+// cells actually in it.
+//
+// Ranges may only reach MAX_ROWS rows and MAX_COLUMNS columns down
+// and across the sheet; the parser rejects a formula using a larger
+// one.
+//
+// Only numbers and formula values take part. Empty and text cells are
+// skipped, while any formula in error makes the aggregate an error.
+// AVG of no numbers is an error; MIN and MAX of no numbers are 0.
+//
+// The public methods are synchronized so a ConcurrentSpreadsheet can
+// update the trees from several recalculating threads at once.
+public class RangeIndex implements DAG.LinkSource {
+  // Aggregate function codes.
+  public static final int SUM = 0;
+  public static final int AVG = 1;
+  public static final int MIN = 2;
+  public static final int MAX = 3;
+  public static final int COUNT = 4;
+  public static final String[] FUNCTIONS = {"SUM", "AVG", "MIN", "MAX", "COUNT"};
+
+  public static final int MAX_ROWS = 1 << 24;
+  public static final int MAX_COLUMNS = 1 << 14;
+  // Last row and column a range may reach.
+
+  protected CellStore sheet;
+  protected DAG dag;
+  // Cells whose values are aggregated, and the DAG whose nodes inside a
+  // range are reported as its implied upstream links.
+
+  protected Map<String, Range> ranges;
+  // Registered ranges by canonical ID.
+
+  protected Map<Integer, List<Range>> byColumn;
+  protected Map<Integer, ColumnTree> trees;
+  // Ranges touching each column and the aggregate tree of each column
+  // touched by at least one range.
+
+  // Construct an index over the given sheet and DAG.
+  public RangeIndex(CellStore sheet, DAG dag){
+    this.sheet = sheet;
+    this.dag = dag;
+    this.ranges = new HashMap<String, Range>();
+    this.byColumn = new HashMap<Integer, List<Range>>();
+    this.trees = new HashMap<Integer, ColumnTree>();
+  }
+
+  // Return the code of the named aggregate function or -1.
+  public static int functionCode(String name){
+    for (int i = 0; i < FUNCTIONS.length; i++){
+      if (FUNCTIONS[i].equals(name)){
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // A rectangular block of cells given by its inclusive corners.
+  public static class Range {
+    public final int col1, row1, col2, row2;
+    public final String id;
+    protected int uses;
+
+    public Range(int col1, int row1, int col2, int row2){
+      this.col1 = Math.min(col1, col2);
+      this.col2 = Math.max(col1, col2);
+      this.row1 = Math.min(row1, row2);
+      this.row2 = Math.max(row1, row2);
+      this.id = CellAddress.decode(CellAddress.pack(this.col1, this.row1)) + ":" +
+                CellAddress.decode(CellAddress.pack(this.col2, this.row2));
+    }
+
+    public boolean contains(int col, int row){
+      return col >= col1 && col <= col2 && row >= row1 && row <= row2;
+    }
+
+    // Return the number of cells in the range.
+    public long area(){
+      return (long) (col2 - col1 + 1) * (row2 - row1 + 1);
+    }
+
+    // Parse a range such as "B10:A1", returning null if either corner
+    // is not a well formed cell ID or lies past MAX_ROWS or
+    // MAX_COLUMNS.
+    public static Range parse(String text){
+      int colon = text.indexOf(':');
+      if (colon < 0){
+        return null;
+      }
+      long a = CellAddress.encode(text.substring(0, colon));
+      long b = CellAddress.encode(text.substring(colon + 1));
+      if (a == CellAddress.NONE || b == CellAddress.NONE){
+        return null;
+      }
+      if (Math.max(CellAddress.column(a), CellAddress.column(b)) > MAX_COLUMNS ||
+          Math.max(CellAddress.row(a), CellAddress.row(b)) > MAX_ROWS){
+        return null;
+      }
+      return new Range(CellAddress.column(a), CellAddress.row(a),
+                       CellAddress.column(b), CellAddress.row(b));
+    }
+  }
+
+  // Note one more formula using the range with the given ID. Columns
+  // the range is the first to touch get a tree of their cells.
+  // Runtime Complexity: O(w + N log n) the first time, O(1) after
+  //   N: cells in the sheet, n: cells in the range's new columns
+  public synchronized void register(String id){
+    Range r = ranges.get(id);
+    if (r == null){
+      r = Range.parse(id);
+      if (r == null){
+        throw new RuntimeException("Bad range " + id);
+      }
+      ranges.put(r.id, r);
+      Map<Integer, ColumnTree> fresh = new HashMap<Integer, ColumnTree>();
+      for (int col = r.col1; col <= r.col2; col++){
+        List<Range> list = byColumn.get(col);
+        if (list == null){
+          list = new ArrayList<Range>();
+          byColumn.put(col, list);
+        }
+        list.add(r);
+        if (!trees.containsKey(col)){
+          ColumnTree tree = new ColumnTree();
+          trees.put(col, tree);
+          fresh.put(col, tree);
+        }
+      }
+      if (!fresh.isEmpty()){
+        fillTrees(fresh);
+      }
+    }
+    r.uses++;
+  }
+
+  // Note one formula fewer using the range with the given ID,
+  // forgetting the range when nothing uses it.
+  public synchronized void unregister(String id){
+    Range r = ranges.get(id);
+    if (r == null || --r.uses > 0){
+      return;
+    }
+    ranges.remove(id);
+    dag.forget(id);
+    for (int col = r.col1; col <= r.col2; col++){
+      List<Range> list = byColumn.get(col);
+      list.remove(r);
+      if (list.isEmpty()){
+        byColumn.remove(col);
+        trees.remove(col);
+      }
+    }
+  }
+
+  public void registerAll(String[] ids){
+    for (String id : ids){
+      register(id);
+    }
+  }
+
+  public void unregisterAll(String[] ids){
+    for (String id : ids){
+      unregister(id);
+    }
+  }
+
+  // Return whether any range is registered.
+  public synchronized boolean isEmpty(){
+    return ranges.isEmpty();
+  }
+
+  // Record the current value of the cell with the given ID, which is
+  // null if the cell was deleted.
+  // Runtime Complexity: O(log n) in a tracked column, O(1) otherwise
+  public synchronized void cellChanged(String id, Cell cell){
+    if (trees.isEmpty()){
+      return;
+    }
+    long addr = CellAddress.encode(id);
+    if (addr == CellAddress.NONE){
+      return;
+    }
+    ColumnTree tree = trees.get(CellAddress.column(addr));
+    if (tree != null){
+      tree.set(CellAddress.row(addr), cell);
+    }
+  }
+
+  // Put the cells of the sheet into the given new trees by column in
+  // one pass over the sheet.
+  protected void fillTrees(Map<Integer, ColumnTree> fresh){
+    for (long addr : sheet.addresses()){
+      ColumnTree tree = fresh.get(CellAddress.column(addr));
+      if (tree != null){
+        tree.set(CellAddress.row(addr), sheet.getAt(addr));
+      }
+    }
+  }
+
+  // Evaluate an aggregate over a range from the column trees. Throws
+  // Cell.EvalFormulaException if the result is an error.
+  // Runtime Complexity: O(w log n)
+  //   w: columns in the range
+  //   n: rows covered by the column trees
+  public double aggregate(int func, Range r){
+    return totals(r).result(func);
+  }
+
+  // Evaluate an aggregate over a range by visiting every cell in an
+  // arbitrary cell map.
+  // Runtime Complexity: O(min(w h, N))
+  //   N: cells in the map
+  public static double aggregate(Map<String, Cell> cellMap, int func, Range r){
+    return totals(cellMap, r).result(func);
+  }
+
+  // Return the totals of a range from the column trees, falling back
+  // to visiting its cells if it is not registered.
+  // Runtime Complexity: O(w log n)
+  protected synchronized Totals totals(Range r){
+    if (!ranges.containsKey(r.id)){
+      return totals(sheet, r);
+    }
+    Totals t = new Totals();
+    for (int col = r.col1; col <= r.col2; col++){
+      trees.get(col).query(r.row1, r.row2, t);
+    }
+    return t;
+  }
+
+  // Return the totals of a range by visiting every cell in an
+  // arbitrary cell map, or every cell of the map if there are fewer.
+  // Runtime Complexity: O(min(w h, N))
+  protected static Totals totals(Map<String, Cell> cellMap, Range r){
+    Totals t = new Totals();
+    if (r.area() <= cellMap.size()){
+      for (int col = r.col1; col <= r.col2; col++){
+        for (int row = r.row1; row <= r.row2; row++){
+          t.add(cellMap.get(CellAddress.decode(CellAddress.pack(col, row))));
+        }
+      }
+    }
+    else if (cellMap instanceof CellStore){
+      CellStore store = (CellStore) cellMap;
+      for (long addr : store.addresses()){
+        if (r.contains(CellAddress.column(addr), CellAddress.row(addr))){
+          t.add(store.getAt(addr));
+        }
+      }
+    }
+    else{
+      for (Map.Entry<String, Cell> e : cellMap.entrySet()){
+        long addr = CellAddress.encode(e.getKey());
+        if (addr != CellAddress.NONE &&
+            r.contains(CellAddress.column(addr), CellAddress.row(addr))){
+          t.add(e.getValue());
+        }
+      }
+    }
+    return t;
+  }
+
+  // Return the IDs of registered ranges containing the cell id.
+  public synchronized Collection<String> downstreamOf(String id){
+    if (byColumn.isEmpty()){
+      return Collections.emptyList();
+    }
+    long addr = CellAddress.encode(id);
+    if (addr == CellAddress.NONE){
+      return Collections.emptyList();
+    }
+    List<Range> list = byColumn.get(CellAddress.column(addr));
+    if (list == null){
+      return Collections.emptyList();
+    }
+    int row = CellAddress.row(addr);
+    List<String> out = new ArrayList<String>();
+    for (Range r : list){
+      if (r.row1 <= row && row <= r.row2){
+        out.add(r.id);
+      }
+    }
+    return out;
+  }
+
+  // Return the DAG nodes inside the range with the given ID, looking
+  // up each address or checking each node, whichever is fewer.
+  // Runtime Complexity: O(min(w h, V))
+  //   V: nodes in the DAG
+  public synchronized Collection<String> upstreamOf(String id){
+    Range r = ranges.get(id);
+    if (r == null){
+      return Collections.emptyList();
+    }
+    List<String> out = new ArrayList<String>();
+    Set<String> nodes = dag.getNodes();
+    if (r.area() <= nodes.size()){
+      for (int col = r.col1; col <= r.col2; col++){
+        for (int row = r.row1; row <= r.row2; row++){
+          String cellID = CellAddress.decode(CellAddress.pack(col, row));
+          if (dag.hasNode(cellID)){
+            out.add(cellID);
+          }
+        }
+      }
+      return out;
+    }
+    for (String node : nodes){
+      long addr = CellAddress.encode(node);
+      if (addr != CellAddress.NONE &&
+          r.contains(CellAddress.column(addr), CellAddress.row(addr))){
+        out.add(node);
+      }
+    }
+    return out;
+  }
+
+  public synchronized boolean hasUpstream(String id){
+    return ranges.containsKey(id);
+  }
+
+  // Return the IDs of cells inside the range with the given ID which
+  // are marked dirty, looking up each address or checking each cell,
+  // whichever is fewer.
+  // Runtime Complexity: O(min(w h, N))
+  public synchronized List<String> dirtyCells(String id){
+    Range r = ranges.get(id);
+    List<String> out = new ArrayList<String>();
+    if (r == null){
+      return out;
+    }
+    if (r.area() <= sheet.size()){
+      for (int col = r.col1; col <= r.col2; col++){
+        for (int row = r.row1; row <= r.row2; row++){
+          Cell cell = sheet.getAt(CellAddress.pack(col, row));
+          if (cell != null && cell.dirty){
+            out.add(CellAddress.decode(CellAddress.pack(col, row)));
+          }
+        }
+      }
+      return out;
+    }
+    for (long addr : sheet.addresses()){
+      if (r.contains(CellAddress.column(addr), CellAddress.row(addr))){
+        Cell cell = sheet.getAt(addr);
+        if (cell != null && cell.dirty){
+          out.add(CellAddress.decode(addr));
+        }
+      }
+    }
+    return out;
+  }
+
+  // Running totals over a set of cells.
+  protected static class Totals {
+    double sum = 0.0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    int count = 0;
+    int errors = 0;
+
+    void add(Cell cell){
+      if (cell == null){
+        return;
+      }
+      if (cell.hasNumber()){
+        double v = cell.value;
+        sum += v;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+        count++;
+      }
+      else if (cell.isError()){
+        errors++;
+      }
+    }
+
+    // Return whether the aggregate func of these totals is an error:
+    // some cell is in error, or it is the average of no numbers.
+    boolean failed(int func){
+      return errors > 0 || (func == AVG && count == 0);
+    }
+
+    // Return the aggregate func of these totals without checking for
+    // errors.
+    double value(int func){
+      switch (func){
+        case SUM:   return sum;
+        case COUNT: return count;
+        case MIN:   return count == 0 ? 0.0 : min;
+        case MAX:   return count == 0 ? 0.0 : max;
+        case AVG:   return sum / count;
+        default:
+          throw new RuntimeException("Bad aggregate " + func);
+      }
+    }
+
+    double result(int func){
+      if (errors > 0){
+        throw new Cell.EvalFormulaException("Error in range");
+      }
+      if (failed(func)){
+        throw new Cell.EvalFormulaException("Average of nothing");
+      }
+      return value(func);
+    }
+  }
+
+  // Balanced search tree (a treap) over the rows of one column holding
+  // a number or an error; empty and text cells are left out as they
+  // add nothing. Each node carries the totals of its subtree, which
+  // are always recomputed from the cells and never drift. Priorities
+  // are a hash of the row, so the shape depends only on which rows are
+  // present and the depth is O(log n) whatever order they arrive in.
+  protected static class ColumnTree {
+    Node root;
+
+    static class Node {
+      final int row, priority;
+      Node left, right;
+      double value;
+      boolean error;
+      // The row, its heap priority, the subtrees of rows above and
+      // below it, and the cell's number or whether it is in error.
+
+      double sum, min, max;
+      int count, errors;
+      // Totals of the subtree rooted here.
+
+      Node(int row){
+        this.row = row;
+        int h = row;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        this.priority = h;
+      }
+
+      void pull(){
+        boolean number = !error;
+        sum = number ? value : 0.0;
+        min = number ? value : Double.POSITIVE_INFINITY;
+        max = number ? value : Double.NEGATIVE_INFINITY;
+        count = number ? 1 : 0;
+        errors = error ? 1 : 0;
+        add(left);
+        add(right);
+      }
+
+      void add(Node c){
+        if (c != null){
+          sum += c.sum;
+          min = Math.min(min, c.min);
+          max = Math.max(max, c.max);
+          count += c.count;
+          errors += c.errors;
+        }
+      }
+    }
+
+    // Update one row. O(log n)
+    void set(int row, Cell cell){
+      boolean number = cell != null && cell.hasNumber();
+      boolean error = cell != null && cell.isError();
+      root = set(root, row, number || error ? cell : null, error);
+    }
+
+    // Set or remove the row below n and return the new subtree.
+    static Node set(Node n, int row, Cell cell, boolean error){
+      if (n == null){
+        if (cell == null){
+          return null;
+        }
+        Node made = new Node(row);
+        made.value = error ? 0.0 : cell.value;
+        made.error = error;
+        made.pull();
+        return made;
+      }
+      if (row == n.row){
+        if (cell == null){
+          return merge(n.left, n.right);
+        }
+        n.value = error ? 0.0 : cell.value;
+        n.error = error;
+      }
+      else if (row < n.row){
+        n.left = set(n.left, row, cell, error);
+        if (n.left != null && n.left.priority > n.priority){
+          n = rotateRight(n);
+        }
+      }
+      else{
+        n.right = set(n.right, row, cell, error);
+        if (n.right != null && n.right.priority > n.priority){
+          n = rotateLeft(n);
+        }
+      }
+      n.pull();
+      return n;
+    }
+
+    static Node rotateRight(Node n){
+      Node l = n.left;
+      n.left = l.right;
+      n.pull();
+      l.right = n;
+      return l;
+    }
+
+    static Node rotateLeft(Node n){
+      Node r = n.right;
+      n.right = r.left;
+      n.pull();
+      r.left = n;
+      return r;
+    }
+
+    // Join two subtrees, every row of a below every row of b.
+    static Node merge(Node a, Node b){
+      if (a == null){
+        return b;
+      }
+      if (b == null){
+        return a;
+      }
+      if (a.priority > b.priority){
+        a.right = merge(a.right, b);
+        a.pull();
+        return a;
+      }
+      b.left = merge(a, b.left);
+      b.pull();
+      return b;
+    }
+
+    // Add rows lo..hi into t. O(log n)
+    void query(int lo, int hi, Totals t){
+      // find the highest node inside lo..hi, then walk down each side
+      // of it taking whole subtrees which lie inside
+      Node n = root;
+      while (n != null && (n.row < lo || n.row > hi)){
+        n = n.row < lo ? n.right : n.left;
+      }
+      if (n == null){
+        return;
+      }
+      takeOne(n, t);
+      for (Node c = n.left; c != null; ){
+        if (c.row >= lo){
+          takeOne(c, t);
+          take(c.right, t);
+          c = c.left;
+        }
+        else{
+          c = c.right;
+        }
+      }
+      for (Node c = n.right; c != null; ){
+        if (c.row <= hi){
+          takeOne(c, t);
+          take(c.left, t);
+          c = c.right;
+        }
+        else{
+          c = c.left;
+        }
+      }
+    }
+
+    // Add one node's own cell into t.
+    static void takeOne(Node n, Totals t){
+      if (n.error){
+        t.errors++;
+      }
+      else{
+        t.sum += n.value;
+        t.min = Math.min(t.min, n.value);
+        t.max = Math.max(t.max, n.value);
+        t.count++;
+      }
+    }
+
+    // Add a whole subtree into t.
+    static void take(Node n, Totals t){
+      if (n == null){
+        return;
+      }
+      t.sum += n.sum;
+      t.min = Math.min(t.min, n.min);
+      t.max = Math.max(t.max, n.max);
+      t.count += n.count;
+      t.errors += n.errors;
+    }
+  }
+}
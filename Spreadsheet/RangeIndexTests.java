@@ -0,0 +1,253 @@
+// Tests of range aggregates and the RangeIndex behind them
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class RangeIndexTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("RangeIndexTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(2000); 
+
+  // Set alternating IDs and contents in order
+  public static void setAll(Spreadsheet sheet, String... args){
+    for(int i=0; i<args.length; i+=2){
+      sheet.setCell(args[i],args[i+1]);
+    }
+  }
+
+  @Test public void parse_function1(){
+    FNode node = FNode.parseFormulaString("=SUM(B10:A1)");
+    assertEquals(TokenType.Function, node.type);
+    assertEquals("SUM", node.data);
+    assertEquals(TokenType.Range, node.left.type);
+    assertEquals("A1:B10", node.left.data);
+    node = FNode.parseFormulaString("= COUNT ( C3 ) * 2");
+    assertEquals(TokenType.Multiply, node.type);
+    assertEquals("C3:C3", node.left.left.data);
+  }
+  @Test public void parse_function_fail(){
+    String [] bad = {"=SUMM(A1:A2)", "=SUM()", "=SUM(A1:)", "=SUM(A1 A2)",
+                     "=SUM(A1:A2", "=SUM(1)", "=SUM(A_B1:A2)"};
+    for(String s : bad){
+      try{
+        FNode.parseFormulaString(s);
+        fail("Parsed " + s);
+      }
+      catch(RuntimeException e){
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Parse Error"));
+      }
+    }
+  }
+  @Test public void aggregate_all1(){
+    Spreadsheet sheet = new Spreadsheet();
+    setAll(sheet, "A1","1", "A2","2", "B1","hello", "B2","=A2*3", "A4","4",
+                  "C1","=SUM(A1:B4)", "C2","=AVG(A1:B4)", "C3","=MIN(A1:B4)",
+                  "C4","=MAX(A1:B4)", "C5","=COUNT(A1:B4)", "C6","=SUM(D1:D9)",
+                  "C7","=MIN(D1:D9)", "C8","=AVG(D1:D9)");
+    assertEquals("13.0", sheet.getCellDisplayString("C1"));
+    assertEquals("3.3", sheet.getCellDisplayString("C2"));
+    assertEquals("1.0", sheet.getCellDisplayString("C3"));
+    assertEquals("6.0", sheet.getCellDisplayString("C4"));
+    assertEquals("4.0", sheet.getCellDisplayString("C5"));
+    assertEquals("0.0", sheet.getCellDisplayString("C6"));
+    assertEquals("0.0", sheet.getCellDisplayString("C7"));
+    assertEquals("ERROR", sheet.getCellDisplayString("C8"));
+  }
+  @Test public void aggregate_updates1(){
+    Spreadsheet sheet = new Spreadsheet();
+    setAll(sheet, "A1","1", "A2","2", "B1","=SUM(A1:A3)+1", "B2","=B1*2");
+    assertEquals("8.0", sheet.getCellDisplayString("B2"));
+    sheet.setCell("A3","10");
+    assertEquals("28.0", sheet.getCellDisplayString("B2"));
+    sheet.setCell("A1","=A3");
+    assertEquals("46.0", sheet.getCellDisplayString("B2"));
+    sheet.deleteCell("A3");
+    assertEquals("ERROR", sheet.getCellDisplayString("B2"));
+    sheet.setCell("A1","5");
+    assertEquals("16.0", sheet.getCellDisplayString("B2"));
+  }
+  // Ranges cost one DAG node and no stored link per cell
+  @Test public void aggregate_links1(){
+    Spreadsheet sheet = new Spreadsheet();
+    setAll(sheet, "A1","1", "A2","2", "B1","=SUM(A1:A1000)");
+    assertEquals(toSet("A1:A1000"), sheet.dag.getUpstreamLinks("B1"));
+    assertEquals(toSet(), sheet.dag.getUpstreamLinks("A1:A1000"));
+    assertEquals(toSet(), sheet.dag.getDownstreamLinks("A1"));
+    sheet.setCell("B1","=A1");
+    assertTrue(sheet.ranges.isEmpty());
+    assertFalse(sheet.dag.hasNode("A1:A1000"));
+  }
+  @Test public void aggregate_cycle1(){
+    Spreadsheet sheet = new Spreadsheet();
+    setAll(sheet, "A1","1", "A2","=A1+1", "B1","=SUM(A1:A2)");
+    try{
+      sheet.setCell("A1","=B1");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    try{
+      sheet.setCell("A3","=MAX(A1:A5)");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    assertEquals("1.0", sheet.getCellDisplayString("A1"));
+    assertEquals("3.0", sheet.getCellDisplayString("B1"));
+    assertFalse(sheet.ranges.hasUpstream("A1:A5"));
+    sheet.setCell("A1","4");
+    assertEquals("9.0", sheet.getCellDisplayString("B1"));
+  }
+  @Test public void aggregate_batch1(){
+    Spreadsheet sheet = new Spreadsheet();
+    Map<String,String> edits = new LinkedHashMap<String,String>();
+    edits.put("C1","=SUM(A1:B2)");
+    edits.put("A1","1");
+    edits.put("B2","=A1+1");
+    sheet.setCells(edits);
+    assertEquals("3.0", sheet.getCellDisplayString("C1"));
+    edits.clear();
+    edits.put("A1","=C1");
+    try{
+      sheet.setCells(edits);
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    assertEquals("3.0", sheet.getCellDisplayString("C1"));
+  }
+  @Test public void aggregate_lazy_matches_eager(){
+    Spreadsheet eager = new Spreadsheet();
+    Spreadsheet lazy = new Spreadsheet();
+    lazy.setLazy(true);
+    String [] sets = {
+      "A1","1", "A2","=A1*2", "B1","=SUM(A1:A3)", "C1","=B1+AVG(A1:A2)",
+      "A3","7", "A1","3", "A2","oops", "A3","=A1-1", "D1","=COUNT(A1:C1)",
+    };
+    for(int i=0; i<sets.length; i+=2){
+      eager.setCell(sets[i],sets[i+1]);
+      lazy.setCell(sets[i],sets[i+1]);
+      for(String id : new String[]{"B1","C1","D1"}){
+        if(!eager.sheet.containsKey(id)){
+          continue;
+        }
+        assertEquals(id, eager.getCellDisplayString(id), lazy.getCellDisplayString(id));
+      }
+    }
+  }
+  @Test public void aggregate_parallel1(){
+    Spreadsheet seq = new Spreadsheet();
+    Spreadsheet par = new Spreadsheet();
+    par.setRecalcPool(new ForkJoinPool(4));
+    par.setParallelThreshold(8);
+    for(Spreadsheet sheet : new Spreadsheet[]{seq, par}){
+      sheet.setCell("A1","1");
+      for(int i=1; i<=50; i++){
+        sheet.setCell("B"+i,"=A1*"+i);
+        sheet.setCell("C"+i,"=SUM(B1:B"+i+")");
+      }
+      sheet.setCell("D1","=MAX(C1:C50)");
+      sheet.setCell("A1","2");
+    }
+    assertEquals("2550.0", par.getCellDisplayString("D1"));
+    for(int i=1; i<=50; i++){
+      assertEquals(seq.getCellDisplayString("C"+i), par.getCellDisplayString("C"+i));
+    }
+  }
+  @Test public void aggregate_tree_matches_scan(){
+    Random rand = new Random(7);
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("Z1","=SUM(A1:C40)+MIN(B5:C33)+MAX(A2:A9)+COUNT(A1:C40)");
+    for(int i=0; i<400; i++){
+      String id = (char)('A' + rand.nextInt(3)) + "" + (1 + rand.nextInt(40));
+      int r = rand.nextInt(10);
+      sheet.setCell(id, r == 0 ? "" : r == 1 ? "text" : "" + (rand.nextInt(200) - 100));
+      double expect = Cell.evalFormulaTree(sheet.sheet.get("Z1").tree(), sheet.sheet);
+      assertEquals(expect, sheet.sheet.get("Z1").numberValue(), 1e-9);
+    }
+  }
+  // Ranges past the last row or column are rejected by the parser
+  @Test public void range_limit1(){
+    Spreadsheet sheet = new Spreadsheet();
+    String [] bad = {"=SUM(A1:A2000000000)", "=SUM(A1:A16777217)",
+                     "=COUNT(B2:XFE1)", "=SUM(A1:A99999999999)"};
+    for(String s : bad){
+      try{
+        sheet.setCell("B1", s);
+        fail("Accepted " + s);
+      }
+      catch(RuntimeException e){
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Parse Error"));
+      }
+    }
+    assertFalse(sheet.sheet.containsKey("B1"));
+    assertTrue(sheet.ranges.isEmpty());
+  }
+  // Whole columns cost what the cells in them cost
+  @Test public void range_whole_column1(){
+    for(boolean lazy : new boolean[]{false, true}){
+      Spreadsheet sheet = new Spreadsheet();
+      sheet.setLazy(lazy);
+      setAll(sheet, "A1","1", "A1000000","2", "B7","text", "B50000","4",
+                    "XFE1","=SUM(A1:A16777216)", "XFE2","=COUNT(A1:ZZ100000)",
+                    "XFE3","=MAX(A1:XFD16777216)");
+      assertEquals("3.0", sheet.getCellDisplayString("XFE1"));
+      assertEquals("2.0", sheet.getCellDisplayString("XFE2"));
+      assertEquals("4.0", sheet.getCellDisplayString("XFE3"));
+      sheet.setCell("A16777216","=B50000*2");
+      assertEquals("11.0", sheet.getCellDisplayString("XFE1"));
+      assertEquals("8.0", sheet.getCellDisplayString("XFE3"));
+      try{
+        sheet.setCell("A5","=XFE3");
+        fail("Cycle accepted");
+      }
+      catch(DAG.CycleException e){ }
+      sheet.deleteCell("A1000000");
+      sheet.setCell("B7","1");
+      assertEquals("9.0", sheet.getCellDisplayString("XFE1"));
+      assertEquals("3.0", sheet.getCellDisplayString("XFE2"));
+      assertEquals("8.0", sheet.getCellDisplayString("XFE3"));
+    }
+  }
+  // The column trees agree with adding up the rows one by one
+  @Test public void column_tree1(){
+    Random rand = new Random(11);
+    RangeIndex.ColumnTree tree = new RangeIndex.ColumnTree();
+    Cell [] rows = new Cell[300];
+    Cell [] kinds = {null, Cell.make("text"), Cell.make("=Z99")};
+    for(int i=0; i<3000; i++){
+      int row = 1 + rand.nextInt(rows.length - 1);
+      int r = rand.nextInt(6);
+      Cell cell = r < 3 ? kinds[r] : Cell.make("" + (rand.nextInt(100) - 50));
+      if(cell != null){
+        cell.updateValue(new HashMap<String,Cell>());
+      }
+      rows[row] = cell;
+      tree.set(row, cell);
+      int lo = 1 + rand.nextInt(rows.length - 1);
+      int hi = lo + rand.nextInt(rows.length - lo);
+      RangeIndex.Totals expect = new RangeIndex.Totals();
+      for(int k=lo; k<=hi; k++){
+        expect.add(rows[k]);
+      }
+      RangeIndex.Totals got = new RangeIndex.Totals();
+      tree.query(lo, hi, got);
+      assertEquals(expect.sum, got.sum, 1e-9);
+      assertEquals(expect.min, got.min, 0.0);
+      assertEquals(expect.max, got.max, 0.0);
+      assertEquals(expect.count, got.count);
+      assertEquals(expect.errors, got.errors);
+    }
+  }
+
+  // Build a set of strings
+  public static Set<String> toSet(String... args){
+    return new HashSet<String>(Arrays.asList(args));
+  }
+}
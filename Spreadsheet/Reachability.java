@@ -0,0 +1,494 @@
+import java.util.*;
+
+// Transitive queries over a DAG: every node upstream or downstream of
+// a node, whether and by which links one node reaches another, and the
+// depth of a node, the most links on any path up to a node with no
+// upstream links. Implied links count like stored ones, so a cell
+// reaches a formula through any range containing it.
+//
+// A closure kept for every node costs O(N^2) bits and would change on
+// almost every edit, so rather than store one the searches lean on two
+// cheaper facts. First, every node on a path from a to b is ranked
+// between the two in the topological order the DAG already keeps, so
+// when a is ranked after b there is no path at all and otherwise the
+// search never leaves that window. Second, once the searches since the
+// last edit have visited more nodes than the DAG holds, the DAG is
+// numbered and given interval labels: each of LABELS depth first walks
+// over it, visiting links in a different order, gives node v an
+// interval [low, post] from its finishing number post and the least
+// finishing number of anything it reaches. If a reaches b then every
+// interval of a contains the matching one of b, so most pairs with no
+// path are told apart in constant time and a search for b never enters
+// a node whose intervals rule b out. The other way round, a search
+// stops as soon as it meets a node some walk reached b from.
+//
+// Everything is kept until the links next change: the labels, the most
+// recently used closures, and the depth of every node worked out so
+// far.
+public class Reachability {
+  public static final int CACHE_SIZE = 64;
+  public static final int LABELS = 4;
+
+  protected final DAG dag;
+  protected long version;
+  // The DAG queried and its version when the cached answers were
+  // found.
+
+  protected Map<String, Set<String>> precedents, dependents;
+  protected Map<String, Integer> depths;
+  // Cached closures, least recently used first, and depths.
+
+  protected long work;
+  protected Map<String, Integer> numbers;
+  protected int[] start, edges, ranks;
+  protected int[][] low, post, enter;
+  protected int[] seenAt;
+  protected int stamp;
+  // Nodes visited by searches since the last change, and once that
+  // passes the number of nodes, the number of each node, the numbers
+  // downstream of node n as edges[start[n]] to edges[start[n+1]-1],
+  // the rank of each and the labels of each walk. seenAt[n] is stamp
+  // once the current search visits n. All null until built.
+
+  // Construct queries over the given DAG.
+  public Reachability(DAG dag){
+    this.dag = dag;
+    this.version = dag.version();
+    this.precedents = newCache();
+    this.dependents = newCache();
+    this.depths = new HashMap<String, Integer>();
+  }
+
+  protected static Map<String, Set<String>> newCache(){
+    return new LinkedHashMap<String, Set<String>>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest){
+        return size() > CACHE_SIZE;
+      }
+    };
+  }
+
+  // Drop the cached answers if the links changed since they were found.
+  protected void validate(){
+    if (version != dag.version()){
+      precedents.clear();
+      dependents.clear();
+      depths.clear();
+      version = dag.version();
+      work = 0;
+      numbers = null;
+      start = null;
+      edges = null;
+      ranks = null;
+      low = null;
+      post = null;
+      enter = null;
+      seenAt = null;
+    }
+  }
+
+  // Return every node id depends on, directly or not, excluding id.
+  // Runtime Complexity: O(1) cached, O(P + L_P) o/w
+  //   P   : nodes upstream of id
+  //   L_P : links between them
+  public Set<String> precedents(String id){
+    validate();
+    Set<String> found = precedents.get(id);
+    if (found == null){
+      found = Collections.unmodifiableSet(closure(id, true));
+      precedents.put(id, found);
+    }
+    return found;
+  }
+
+  // Return every node depending on id, directly or not, excluding id.
+  // Runtime Complexity: O(1) cached, O(D + L_D) o/w
+  //   D   : nodes downstream of id
+  //   L_D : links between them
+  public Set<String> dependents(String id){
+    validate();
+    Set<String> found = dependents.get(id);
+    if (found == null){
+      found = Collections.unmodifiableSet(closure(id, false));
+      dependents.put(id, found);
+    }
+    return found;
+  }
+
+  // Collect the nodes upstream or downstream of id, none if id is not
+  // a node, as reaches and path have it.
+  protected Set<String> closure(String id, boolean up){
+    Set<String> found = new HashSet<String>();
+    if (!dag.hasNode(id)){
+      return found;
+    }
+    Deque<String> stack = new ArrayDeque<String>();
+    stack.push(id);
+    while (!stack.isEmpty()){
+      String cur = stack.pop();
+      for (String next : up ? dag.getEffectiveUpstream(cur) : dag.getEffectiveDownstream(cur)){
+        if (found.add(next)){
+          stack.push(next);
+        }
+      }
+    }
+    found.remove(id);
+    return found;
+  }
+
+  // Return whether to depends on from, directly or not. A node reaches
+  // itself.
+  // Runtime Complexity: O(1) when from is ranked after to or either
+  //   closure is cached, O(W + L_W) o/w
+  //   W   : nodes downstream of from ranked no later than to
+  //   L_W : links leaving them
+  public boolean reaches(String from, String to){
+    if (from.equals(to)){
+      return dag.hasNode(from);
+    }
+    if (!inOrder(from, to)){
+      return false;
+    }
+    validate();
+    Set<String> known = dependents.get(from);
+    if (known != null){
+      return known.contains(to);
+    }
+    known = precedents.get(to);
+    if (known != null){
+      return known.contains(from);
+    }
+    if (numbers == null){
+      boolean found = search(from, to);
+      if (work > dag.rank.size() && !dag.isBulkLoading()){
+        label();
+      }
+      return found;
+    }
+    return labelledSearch(numbers.get(from), numbers.get(to));
+  }
+
+  // Search depth first from from for to, staying within the rank
+  // window and trying the latest ranked link first at each node, which
+  // heads straight for to whenever the links allow.
+  protected boolean search(String from, String to){
+    int limit = dag.isBulkLoading() ? Integer.MAX_VALUE : dag.rank.get(to);
+    Set<String> seen = new HashSet<String>();
+    Deque<String> stack = new ArrayDeque<String>();
+    seen.add(from);
+    stack.push(from);
+    while (!stack.isEmpty()){
+      work++;
+      String best = null;
+      int bestRank = Integer.MIN_VALUE;
+      for (String next : dag.getEffectiveDownstream(stack.pop())){
+        if (next.equals(to)){
+          return true;
+        }
+        Integer r = dag.rank.get(next);
+        if (r == null || r >= limit || !seen.add(next)){
+          continue;
+        }
+        if (r > bestRank){
+          if (best != null){
+            stack.push(best);
+          }
+          best = next;
+          bestRank = r;
+        }
+        else{
+          stack.push(next);
+        }
+      }
+      // pushed last so it is tried first
+      if (best != null){
+        stack.push(best);
+      }
+    }
+    return false;
+  }
+
+  // Return whether a path from from to to is possible given their
+  // ranks. Ranks are only reliable outside a bulk load.
+  protected boolean inOrder(String from, String to){
+    Integer a = dag.rank.get(from), b = dag.rank.get(to);
+    if (a == null || b == null){
+      return false;
+    }
+    return dag.isBulkLoading() || a < b;
+  }
+
+  // Return a shortest path of downstream links from from to to, listing
+  // both ends, or the empty list if there is none. The path from a
+  // node to itself is the node alone.
+  // Runtime Complexity: O(W + L_W) as for reaches
+  public List<String> path(String from, String to){
+    List<String> path = new ArrayList<String>();
+    if (from.equals(to)){
+      if (dag.hasNode(from)){
+        path.add(from);
+      }
+      return path;
+    }
+    if (!inOrder(from, to)){
+      return path;
+    }
+    validate();
+    int limit = dag.isBulkLoading() ? Integer.MAX_VALUE : dag.rank.get(to);
+    int target = numbers == null ? -1 : numbers.get(to);
+    // breadth first so the path found is a shortest one
+    Map<String, String> parent = new HashMap<String, String>();
+    Deque<String> queue = new ArrayDeque<String>();
+    parent.put(from, null);
+    queue.add(from);
+    while (!queue.isEmpty()){
+      String cur = queue.poll();
+      for (String next : dag.getEffectiveDownstream(cur)){
+        if (next.equals(to)){
+          path.add(to);
+          for (String p = cur; p != null; p = parent.get(p)){
+            path.add(p);
+          }
+          Collections.reverse(path);
+          return path;
+        }
+        if (parent.containsKey(next)){
+          continue;
+        }
+        Integer r = dag.rank.get(next);
+        if (r != null && r < limit && (target < 0 || mightReach(numbers.get(next), target))){
+          parent.put(next, cur);
+          queue.add(next);
+        }
+      }
+    }
+    return path;
+  }
+
+  // Return the most links on any path from id up to a node with no
+  // upstream links: 0 for such a node, or one more than the deepest
+  // node it links to o/w. Works iteratively so long chains do not
+  // exhaust the stack.
+  // Runtime Complexity: O(1) cached, O(P + L_P) o/w as for precedents
+  public int depth(String id){
+    validate();
+    Integer known = depths.get(id);
+    if (known != null){
+      return known;
+    }
+    Deque<String> stack = new ArrayDeque<String>();
+    stack.push(id);
+    while (!stack.isEmpty()){
+      String cur = stack.peek();
+      if (depths.containsKey(cur)){
+        stack.pop();
+        continue;
+      }
+      // settle cur once every node it links to is settled
+      boolean ready = true;
+      int deepest = 0;
+      for (String up : dag.getEffectiveUpstream(cur)){
+        Integer d = depths.get(up);
+        if (d == null){
+          ready = false;
+          stack.push(up);
+        }
+        else{
+          deepest = Math.max(deepest, d + 1);
+        }
+      }
+      if (ready){
+        depths.put(cur, deepest);
+        stack.pop();
+      }
+    }
+    return depths.get(id);
+  }
+
+  // Number the nodes, copy their effective downstream links into
+  // arrays and give each node its interval labels.
+  // Runtime Complexity: O(LABELS (N + L))
+  //   N: nodes, L: links
+  protected void label(){
+    int n = dag.rank.size();
+    Map<String, Integer> number = new HashMap<String, Integer>(n * 2);
+    String[] names = new String[n];
+    int[] order = new int[n];
+    for (Map.Entry<String, Integer> e : dag.rank.entrySet()){
+      names[number.size()] = e.getKey();
+      order[number.size()] = e.getValue();
+      number.put(e.getKey(), number.size());
+    }
+    int[] first = new int[n + 1];
+    int[] links = new int[Math.max(16, n)];
+    int used = 0;
+    for (int v = 0; v < n; v++){
+      first[v] = used;
+      for (String down : dag.getEffectiveDownstream(names[v])){
+        Integer w = number.get(down);
+        if (w == null){
+          continue;
+        }
+        if (used == links.length){
+          links = Arrays.copyOf(links, used * 2);
+        }
+        links[used++] = w;
+      }
+    }
+    first[n] = used;
+    this.start = first;
+    this.edges = links;
+    this.ranks = order;
+    this.low = new int[LABELS][];
+    this.post = new int[LABELS][];
+    this.enter = new int[LABELS][];
+    for (int t = 0; t < LABELS; t++){
+      walk(t, n);
+    }
+    this.seenAt = new int[n];
+    this.stamp = 0;
+    this.numbers = number;
+  }
+
+  // Give every node its t'th interval with an iterative depth first
+  // walk. The first walk takes nodes and links in order, the second in
+  // reverse, and later ones shuffle the nodes and start the links of
+  // each node at a different place, so the walks differ.
+  protected void walk(int t, int n){
+    boolean reverse = (t & 1) == 1;
+    int[] roots = new int[n];
+    for (int k = 0; k < n; k++){
+      roots[k] = reverse ? n - 1 - k : k;
+    }
+    int shift = t / 2;
+    if (shift > 0){
+      Random rand = new Random(t);
+      for (int k = n - 1; k > 0; k--){
+        int j = rand.nextInt(k + 1);
+        int swap = roots[k];
+        roots[k] = roots[j];
+        roots[j] = swap;
+      }
+    }
+    int[] lo = new int[n], po = new int[n], in = new int[n];
+    Arrays.fill(lo, Integer.MAX_VALUE);
+    Arrays.fill(po, -1);
+    boolean[] visited = new boolean[n];
+    int[] stack = new int[n], next = new int[n];
+    int finished = 0;
+    for (int k = 0; k < n; k++){
+      int root = roots[k];
+      if (visited[root]){
+        continue;
+      }
+      visited[root] = true;
+      in[root] = finished;
+      stack[0] = root;
+      next[0] = 0;
+      int depth = 1;
+      while (depth > 0){
+        int v = stack[depth - 1];
+        int degree = start[v + 1] - start[v];
+        if (next[depth - 1] < degree){
+          int i = (next[depth - 1]++ + shift * v) % degree;
+          int w = edges[reverse ? start[v + 1] - 1 - i : start[v] + i];
+          if (!visited[w]){
+            visited[w] = true;
+            in[w] = finished;
+            stack[depth] = w;
+            next[depth] = 0;
+            depth++;
+          }
+          else{
+            lo[v] = Math.min(lo[v], lo[w]);
+          }
+          continue;
+        }
+        po[v] = finished++;
+        lo[v] = Math.min(lo[v], po[v]);
+        depth--;
+        if (depth > 0){
+          int u = stack[depth - 1];
+          lo[u] = Math.min(lo[u], lo[v]);
+        }
+      }
+    }
+    low[t] = lo;
+    post[t] = po;
+    enter[t] = in;
+  }
+
+  // Return whether w was reached from v in some walk, which it can only
+  // have been through links from v: the nodes a walk finishes while
+  // inside v are numbered from enter[v] to post[v].
+  // Runtime Complexity: O(LABELS)
+  protected boolean surelyReaches(int v, int w){
+    for (int t = 0; t < LABELS; t++){
+      if (enter[t][v] <= post[t][w] && post[t][w] < post[t][v]){
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Return whether every interval of v contains that of w, which it
+  // must if v reaches w.
+  // Runtime Complexity: O(LABELS)
+  protected boolean mightReach(int v, int w){
+    for (int t = 0; t < LABELS; t++){
+      if (low[t][v] > low[t][w] || post[t][w] > post[t][v]){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Search depth first from node v for node w as search does, also
+  // never entering a node whose intervals rule w out.
+  // Runtime Complexity: O(1) when the labels rule w out, O(R + L_R) o/w
+  //   R   : nodes downstream of v ranked before w whose intervals
+  //         contain those of w
+  //   L_R : links leaving them
+  protected boolean labelledSearch(int v, int w){
+    if (!mightReach(v, w)){
+      return false;
+    }
+    if (++stamp == 0){
+      Arrays.fill(seenAt, 0);
+      stamp = 1;
+    }
+    int limit = ranks[w];
+    Deque<Integer> stack = new ArrayDeque<Integer>();
+    seenAt[v] = stamp;
+    stack.push(v);
+    while (!stack.isEmpty()){
+      int cur = stack.pop();
+      if (surelyReaches(cur, w)){
+        return true;
+      }
+      int best = -1;
+      for (int i = start[cur]; i < start[cur + 1]; i++){
+        int next = edges[i];
+        if (next == w){
+          return true;
+        }
+        if (seenAt[next] == stamp || ranks[next] >= limit || !mightReach(next, w)){
+          continue;
+        }
+        seenAt[next] = stamp;
+        if (best < 0 || ranks[next] > ranks[best]){
+          if (best >= 0){
+            stack.push(best);
+          }
+          best = next;
+        }
+        else{
+          stack.push(next);
+        }
+      }
+      if (best >= 0){
+        stack.push(best);
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,340 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Binary snapshot of a spreadsheet streamed through NIO channels. A
+// snapshot holds every cell with its cached value, the DAG links and
+// ranks, and the registered ranges, so loading one rebuilds the sheet
+// directly: no formula is parsed or evaluated and no cycle check is
+// run. Formulas are parsed the first time their cell is recalculated.
+//
+// Layout, all numbers big endian:
+//   int    MAGIC, int VERSION
+//   int    cell count, then per cell
+//            ID, byte kind, string contents, byte error, double value
+//   int    first rank, int next rank
+//   int    DAG node count, then per node
+//            ID, int rank, int upstream count, upstream IDs
+//   int    range count, then per range string ID, int uses
+//   long   CRC32 of everything before it
+// An ID is its packed CellAddress, or 0 followed by a string for names
+// that do not encode. A string is an int byte length then UTF-8 bytes.
+public class SheetSnapshot {
+  public static final int MAGIC = 0x41434b53; // "ACKS"
+  public static final int VERSION = 1;
+
+  protected static final byte NUMBER = Cell.NUMBER, STRING = Cell.STRING, FORMULA = Cell.FORMULA;
+  protected static final int BUFFER_SIZE = 1 << 16;
+
+  // Write a snapshot of the sheet to the given file.
+  public static void save(Spreadsheet sheet, Path file) throws IOException{
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                                           StandardOpenOption.WRITE,
+                                           StandardOpenOption.TRUNCATE_EXISTING)){
+      write(sheet, ch);
+    }
+  }
+
+  // Read a snapshot from the given file.
+  public static Spreadsheet load(Path file) throws IOException{
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+      return read(ch);
+    }
+  }
+
+  // Return whether the file starts like a snapshot.
+  public static boolean isSnapshot(Path file) throws IOException{
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+      ByteBuffer head = ByteBuffer.allocate(4);
+      while (head.hasRemaining() && ch.read(head) >= 0){ }
+      return !head.hasRemaining() && head.getInt(0) == MAGIC;
+    }
+  }
+
+  // Stream a snapshot of the sheet to a channel. Lazy sheets are
+  // brought up to date first so every saved value is current.
+  // Runtime Complexity: O(N + L + R)
+  //   N: cells, L: DAG links, R: ranges
+  public static void write(Spreadsheet sheet, WritableByteChannel channel) throws IOException{
+    if (sheet.lazy){
+      for (String id : sheet.sheet.keySet()){
+        sheet.ensureClean(id);
+      }
+    }
+    Out out = new Out(channel);
+    out.putInt(MAGIC);
+    out.putInt(VERSION);
+    out.putInt(sheet.sheet.size());
+    for (Map.Entry<String, Cell> e : sheet.sheet.entrySet()){
+      Cell cell = e.getValue();
+      out.putID(e.getKey());
+      out.putByte(cell.kindCode());
+      out.putString(cell.contents());
+      out.putByte(cell.isError() ? (byte) 1 : (byte) 0);
+      out.putDouble(cell.hasNumber() ? cell.value() : 0.0);
+    }
+    DAG dag = sheet.dag;
+    out.putInt(dag.firstRank);
+    out.putInt(dag.nextRank);
+    out.putInt(dag.rank.size());
+    for (Map.Entry<String, Integer> e : dag.rank.entrySet()){
+      out.putID(e.getKey());
+      out.putInt(e.getValue());
+      Set<String> ups = dag.getUpstreamLinks(e.getKey());
+      out.putInt(ups.size());
+      for (String up : ups){
+        out.putID(up);
+      }
+    }
+    RangeIndex ranges = sheet.ranges;
+    out.putInt(ranges.ranges.size());
+    for (RangeIndex.Range r : ranges.ranges.values()){
+      out.putString(r.id);
+      out.putInt(r.uses);
+    }
+    out.finish();
+  }
+
+  // Rebuild a spreadsheet from a snapshot streamed from a channel.
+  // Throws IOException if the data is not a snapshot this version
+  // understands or fails its checksum.
+  // Runtime Complexity: O(N + L + R)
+  public static Spreadsheet read(ReadableByteChannel channel) throws IOException{
+    return read(channel, new Spreadsheet());
+  }
+
+  // Read a snapshot into the given sheet, which must be empty and not
+  // yet shared with other threads.
+  public static <S extends Spreadsheet> S read(ReadableByteChannel channel, S sheet) throws IOException{
+    In in = new In(channel);
+    if (in.getInt() != MAGIC){
+      throw new IOException("Not a spreadsheet snapshot");
+    }
+    int version = in.getInt();
+    if (version != VERSION){
+      throw new IOException("Unsupported snapshot version " + version);
+    }
+    int cells = in.getInt();
+    for (int i = 0; i < cells; i++){
+      String id = in.getID();
+      byte kind = in.getByte();
+      String contents = in.getString();
+      boolean error = in.getByte() != 0;
+      double value = in.getDouble();
+      sheet.sheet.put(id, Cell.restore(contents, kind, value, error));
+    }
+    DAG dag = sheet.dag;
+    dag.firstRank = in.getInt();
+    dag.nextRank = in.getInt();
+    int nodes = in.getInt();
+    for (int i = 0; i < nodes; i++){
+      String id = in.getID();
+      dag.rank.put(id, in.getInt());
+      int count = in.getInt();
+      Set<String> ups = new HashSet<String>();
+      for (int j = 0; j < count; j++){
+        String up = in.getID();
+        ups.add(up);
+        dag.addDownstreamLink(up, id);
+      }
+      dag.putUpstream(id, ups);
+    }
+    dag.version++;
+    int ranges = in.getInt();
+    for (int i = 0; i < ranges; i++){
+      String id = in.getString();
+      int uses = in.getInt();
+      for (int j = 0; j < uses; j++){
+        sheet.ranges.register(id);
+      }
+    }
+    in.checkCrc();
+    return sheet;
+  }
+
+  // Buffered writer over a channel which keeps a running checksum.
+  protected static class Out {
+    final WritableByteChannel channel;
+    final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final CRC32 crc = new CRC32();
+
+    Out(WritableByteChannel channel){
+      this.channel = channel;
+    }
+
+    void ensure(int bytes) throws IOException{
+      if (buf.remaining() < bytes){
+        flush();
+      }
+    }
+
+    void flush() throws IOException{
+      buf.flip();
+      crc.update(buf.duplicate());
+      while (buf.hasRemaining()){
+        channel.write(buf);
+      }
+      buf.clear();
+    }
+
+    void putByte(byte b) throws IOException{
+      ensure(1);
+      buf.put(b);
+    }
+
+    void putInt(int x) throws IOException{
+      ensure(4);
+      buf.putInt(x);
+    }
+
+    void putLong(long x) throws IOException{
+      ensure(8);
+      buf.putLong(x);
+    }
+
+    void putDouble(double x) throws IOException{
+      ensure(8);
+      buf.putDouble(x);
+    }
+
+    void putString(String s) throws IOException{
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      putInt(bytes.length);
+      int off = 0;
+      while (off < bytes.length){
+        ensure(1);
+        int n = Math.min(buf.remaining(), bytes.length - off);
+        buf.put(bytes, off, n);
+        off += n;
+      }
+    }
+
+    void putID(String id) throws IOException{
+      long addr = CellAddress.encode(id);
+      if (addr != CellAddress.NONE){
+        putLong(addr);
+      }
+      else{
+        putLong(0L);
+        putString(id);
+      }
+    }
+
+    // Write the checksum of everything so far and flush.
+    void finish() throws IOException{
+      flush();
+      buf.putLong(crc.getValue());
+      buf.flip();
+      while (buf.hasRemaining()){
+        channel.write(buf);
+      }
+      buf.clear();
+    }
+  }
+
+  // Buffered reader over a channel which keeps a running checksum of
+  // the bytes consumed.
+  protected static class In {
+    final ReadableByteChannel channel;
+    final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final CRC32 crc = new CRC32();
+
+    In(ReadableByteChannel channel){
+      this.channel = channel;
+      buf.flip();
+    }
+
+    // Make at least bytes bytes available, checksumming the ones
+    // already consumed before they are discarded.
+    void ensure(int bytes) throws IOException{
+      if (buf.remaining() >= bytes){
+        return;
+      }
+      consumed();
+      buf.compact();
+      while (buf.position() < bytes){
+        if (channel.read(buf) < 0){
+          throw new EOFException("Truncated snapshot");
+        }
+      }
+      buf.flip();
+    }
+
+    // Checksum the bytes read since the last call and drop them.
+    void consumed(){
+      ByteBuffer done = buf.duplicate();
+      done.flip();
+      crc.update(done);
+      buf.compact();
+      buf.flip();
+    }
+
+    byte getByte() throws IOException{
+      ensure(1);
+      return buf.get();
+    }
+
+    int getInt() throws IOException{
+      ensure(4);
+      return buf.getInt();
+    }
+
+    long getLong() throws IOException{
+      ensure(8);
+      return buf.getLong();
+    }
+
+    double getDouble() throws IOException{
+      ensure(8);
+      return buf.getDouble();
+    }
+
+    String getString() throws IOException{
+      int length = getInt();
+      if (length < 0 || length > available()){
+        throw new IOException("Corrupt snapshot");
+      }
+      // the length is not checksummed yet, so the array only grows as
+      // the bytes actually arrive
+      byte[] bytes = new byte[Math.min(length, BUFFER_SIZE)];
+      int off = 0;
+      while (off < length){
+        ensure(1);
+        if (off == bytes.length){
+          bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+        }
+        int n = Math.min(buf.remaining(), bytes.length - off);
+        buf.get(bytes, off, n);
+        off += n;
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Return how many bytes are left to read, or Long.MAX_VALUE if the
+    // channel cannot tell.
+    long available() throws IOException{
+      if (channel instanceof SeekableByteChannel){
+        SeekableByteChannel ch = (SeekableByteChannel) channel;
+        return buf.remaining() + ch.size() - ch.position();
+      }
+      return Long.MAX_VALUE;
+    }
+
+    String getID() throws IOException{
+      long addr = getLong();
+      return addr != 0L ? CellAddress.decode(addr) : getString();
+    }
+
+    // Compare the checksum of everything read with the stored one.
+    void checkCrc() throws IOException{
+      consumed();
+      if (getLong() != crc.getValue()){
+        throw new IOException("Snapshot checksum mismatch");
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// Tests of saving and loading spreadsheets
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class SheetSnapshotTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("SheetSnapshotTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(2000); 
+
+  // Set alternating IDs and contents in order
+  public static Spreadsheet build(String... args){
+    Spreadsheet sheet = new Spreadsheet();
+    for(int i=0; i<args.length; i+=2){
+      sheet.setCell(args[i],args[i+1]);
+    }
+    return sheet;
+  }
+
+  // Round trip a sheet through the binary snapshot in memory
+  public static Spreadsheet copy(Spreadsheet sheet) throws IOException{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SheetSnapshot.write(sheet, Channels.newChannel(bytes));
+    return SheetSnapshot.read(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  public static final String [] CHAIN = {
+    "A1","=(B1 * C1 * D1 + E1 / 5)/10000 ", "B1","=C1 + 5 * E1",
+    "C1","=D1 * 10", "D1","=(1+E1) * 4", "E1","=4*2 + 5", "A1","=B1+1",
+    "C1","=E1*4", "D1","=E1*5 + A1",
+  };
+
+  @Test public void snapshot_roundtrip1() throws IOException{
+    Spreadsheet sheet = build("A1"," 1.5  ", "B1","ack!", "C1","=A1*2+Q9", "A_B1","=A1");
+    Spreadsheet copy1 = copy(sheet);
+    assertEquals(sheet.toString(), copy1.toString());
+  }
+  @Test public void snapshot_roundtrip2() throws IOException{
+    Spreadsheet sheet = build(CHAIN);
+    String expect = sheet.toString();
+    Spreadsheet copy1 = copy(sheet);
+    sheet.setCell("E1","hi");
+    assertEquals(expect, copy1.toString());
+  }
+  // Formulas are parsed only when they are needed again
+  @Test public void snapshot_no_parse1() throws IOException{
+    Spreadsheet copy1 = copy(build("A1","2", "B1","=A1*3", "C1","=B1+1", "D1","=A1"));
+    assertNull(copy1.sheet.get("B1").compiled);
+    assertEquals("7.0", copy1.getCellDisplayString("C1"));
+    copy1.setCell("A1","5");
+    assertEquals("16.0", copy1.getCellDisplayString("C1"));
+    try{
+      copy1.setCell("A1","=C1");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+  }
+  @Test public void snapshot_ranges1() throws IOException{
+    Spreadsheet sheet = build("A1","1", "A2","2", "B1","=SUM(A1:A3)", "B2","=COUNT(A1:A3)+B1");
+    Spreadsheet copy1 = copy(sheet);
+    copy1.setCell("A3","10");
+    assertEquals("13.0", copy1.getCellDisplayString("B1"));
+    assertEquals("16.0", copy1.getCellDisplayString("B2"));
+    copy1.setCell("B1","1");
+    copy1.setCell("B2","1");
+    assertTrue(copy1.ranges.isEmpty());
+  }
+  @Test public void snapshot_lazy1() throws IOException{
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setLazy(true);
+    sheet.setCell("A1","3");
+    sheet.setCell("B1","=A1*A1");
+    Spreadsheet copy1 = copy(sheet);
+    assertEquals("9.0", copy1.getCellDisplayString("B1"));
+  }
+  @Test public void snapshot_corrupt1() throws IOException{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SheetSnapshot.write(build(CHAIN), Channels.newChannel(bytes));
+    byte [] data = bytes.toByteArray();
+    data[20] ^= 1;
+    try{
+      SheetSnapshot.read(Channels.newChannel(new ByteArrayInputStream(data)));
+      fail("Corrupt snapshot accepted");
+    }
+    catch(IOException e){ }
+    data = Arrays.copyOf(bytes.toByteArray(), data.length - 3);
+    try{
+      SheetSnapshot.read(Channels.newChannel(new ByteArrayInputStream(data)));
+      fail("Truncated snapshot accepted");
+    }
+    catch(IOException e){ }
+  }
+  // Enough cells to cross the channel buffer several times
+  @Test public void snapshot_large1() throws IOException{
+    Spreadsheet sheet = new Spreadsheet();
+    Map<String,String> edits = new HashMap<String,String>();
+    edits.put("A1","1");
+    for(int i=2; i<=5000; i++){
+      edits.put("A"+i,"=A"+(i-1)+"+1");
+      edits.put("B"+i,"text number "+i);
+    }
+    sheet.setCells(edits);
+    Spreadsheet copy1 = copy(sheet);
+    assertEquals("5000.0", copy1.getCellDisplayString("A5000"));
+    copy1.setCell("A1","2");
+    assertEquals("5001.0", copy1.getCellDisplayString("A5000"));
+  }
+  @Test public void snapshot_file1() throws IOException{
+    File file = File.createTempFile("sheet", ".ack");
+    file.deleteOnExit();
+    Spreadsheet sheet = build(CHAIN);
+    SheetSnapshot.save(sheet, file.toPath());
+    assertTrue(SheetSnapshot.isSnapshot(file.toPath()));
+    assertEquals(sheet.toString(), SheetSnapshot.load(file.toPath()).toString());
+  }
+  @Test public void save_string1(){
+    Spreadsheet sheet = build(CHAIN);
+    sheet.setCell("F1","back\\slash");
+    sheet.setCell("F2","two\nlines");
+    String expect = sheet.toString();
+    Spreadsheet copy1 = Spreadsheet.fromSaveString(sheet.toSaveString());
+    assertEquals(expect, copy1.toString());
+    assertEquals("two\nlines", copy1.getCellContents("F2"));
+  }
+  @Test public void save_string_return1(){
+    Spreadsheet sheet = build("A1","x\ry", "A2","a\r\nb\\r", "A3","=A4+1", "A4","2");
+    String expect = sheet.toString();
+    Spreadsheet copy1 = Spreadsheet.fromSaveString(sheet.toSaveString());
+    assertEquals(expect, copy1.toString());
+    assertEquals("x\ry", copy1.getCellContents("A1"));
+    assertEquals("a\r\nb\\r", copy1.getCellContents("A2"));
+  }
+  // A corrupt string length is refused before anything that size is
+  // allocated, from a stream or a file
+  @Test public void snapshot_corrupt_length1() throws IOException{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SheetSnapshot.write(build("A1","marker text"), Channels.newChannel(bytes));
+    byte [] data = bytes.toByteArray();
+    String text = new String(data, "ISO-8859-1");
+    int at = text.indexOf("marker text") - 4;
+    data[at] = 0x7f;
+    data[at+1] = data[at+2] = data[at+3] = (byte) 0xff;
+    try{
+      SheetSnapshot.read(Channels.newChannel(new ByteArrayInputStream(data)));
+      fail("Corrupt snapshot accepted");
+    }
+    catch(IOException e){ }
+    File file = File.createTempFile("sheet", ".snap");
+    file.deleteOnExit();
+    java.nio.file.Files.write(file.toPath(), data);
+    try{
+      SheetSnapshot.load(file.toPath());
+      fail("Corrupt snapshot accepted");
+    }
+    catch(IOException e){
+      assertEquals("Corrupt snapshot", e.getMessage());
+    }
+  }
+}
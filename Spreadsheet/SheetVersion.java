@@ -0,0 +1,92 @@
+import java.util.*;
+
+// An immutable committed state of a Spreadsheet. A sheet with
+// versioning on publishes a new version after every edit, built from
+// the previous one by replacing only the cells the edit changed, and
+// readers on any thread can hold and read a version without locks
+// while the writer goes on to the next edit. A version never changes
+// once published.
+public final class SheetVersion {
+  protected final long number;
+  protected final PersistentMap<String, Entry> cells;
+  // Sequence number of the version, counting from 0 for the empty
+  // sheet, and the state of every cell in it.
+
+  protected static final SheetVersion EMPTY =
+    new SheetVersion(0, PersistentMap.<String, Entry>empty());
+
+  protected SheetVersion(long number, PersistentMap<String, Entry> cells){
+    this.number = number;
+    this.cells = cells;
+  }
+
+  // The state of one cell in a version.
+  public static final class Entry {
+    public final String contents;
+    public final String display;
+    public final Double value;
+    public final String[] upstream;
+
+    public Entry(String contents, String display, Double value, String[] upstream){
+      this.contents = contents;
+      this.display = display;
+      this.value = value;
+      this.upstream = upstream;
+    }
+  }
+
+  // Return the sequence number of this version.
+  public long number(){
+    return number;
+  }
+
+  // Return the number of cells with contents.
+  public int size(){
+    return cells.size();
+  }
+
+  // Return the IDs of the cells with contents.
+  public List<String> ids(){
+    return cells.keys();
+  }
+
+  // Return the displayed value of a cell, "" for an empty cell.
+  public String getCellDisplayString(String id){
+    Entry e = cells.get(id);
+    return e == null ? "" : e.display;
+  }
+
+  // Return the contents of a cell, "" for an empty cell.
+  public String getCellContents(String id){
+    Entry e = cells.get(id);
+    return e == null ? "" : e.contents;
+  }
+
+  // Return the numeric value of a cell, or null if it is empty, text,
+  // or in error.
+  public Double getNumberValue(String id){
+    Entry e = cells.get(id);
+    return e == null ? null : e.value;
+  }
+
+  // Return the IDs a cell's formula reads.
+  public Set<String> getUpstreamLinks(String id){
+    Entry e = cells.get(id);
+    if (e == null){
+      return Collections.emptySet();
+    }
+    return new HashSet<String>(Arrays.asList(e.upstream));
+  }
+
+  // Return the version after replacing the given cells, with a null
+  // entry meaning the cell was emptied.
+  // Runtime Complexity: O(k log32 n)
+  //   k: cells changed
+  protected SheetVersion next(Map<String, Entry> changes){
+    PersistentMap<String, Entry> map = cells;
+    for (Map.Entry<String, Entry> c : changes.entrySet()){
+      map = c.getValue() == null ? map.minus(c.getKey()) : map.plus(c.getKey(), c.getValue());
+    }
+    return new SheetVersion(number + 1, map);
+  }
+}
@@ -0,0 +1,137 @@
+// Tests of immutable sheet versions and the map behind them
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class SheetVersionTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("SheetVersionTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(5000); 
+
+  // Key with a chosen hash code to force collisions
+  public static class Key {
+    final int id, hash;
+    Key(int id, int hash){ this.id = id; this.hash = hash; }
+    public int hashCode(){ return hash; }
+    public boolean equals(Object o){ return o instanceof Key && ((Key) o).id == id; }
+  }
+
+  @Test public void map_matches_hashmap(){
+    Random rand = new Random(13);
+    Map<Key,Integer> expect = new HashMap<Key,Integer>();
+    PersistentMap<Key,Integer> map = PersistentMap.empty();
+    List<PersistentMap<Key,Integer>> old = new ArrayList<PersistentMap<Key,Integer>>();
+    for(int i=0; i<20000; i++){
+      int id = rand.nextInt(3000);
+      // a third of the keys share one of a few hash codes
+      Key k = new Key(id, id % 3 == 0 ? id % 7 : id * 0x9E3779B9);
+      if(rand.nextInt(3) == 0){
+        expect.remove(k);
+        map = map.minus(k);
+      }
+      else{
+        expect.put(k, i);
+        map = map.plus(k, i);
+      }
+      assertEquals(expect.size(), map.size());
+      if(i % 5000 == 0){
+        old.add(map);
+      }
+    }
+    for(int id=0; id<3000; id++){
+      Key k = new Key(id, id % 3 == 0 ? id % 7 : id * 0x9E3779B9);
+      assertEquals(expect.get(k), map.get(k));
+    }
+    assertEquals(expect.keySet(), new HashSet<Key>(map.keys()));
+    assertEquals(1, old.get(0).size());
+  }
+  @Test public void version_immutable1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1","2");
+    sheet.setVersioned(true);
+    SheetVersion v1 = sheet.currentVersion();
+    sheet.setCell("B1","=A1*3");
+    SheetVersion v2 = sheet.currentVersion();
+    sheet.setCell("A1","5");
+    sheet.deleteCell("B1");
+    SheetVersion v4 = sheet.currentVersion();
+    assertEquals(1, v1.size());
+    assertEquals("", v1.getCellDisplayString("B1"));
+    assertEquals("6.0", v2.getCellDisplayString("B1"));
+    assertEquals(toSet("A1"), v2.getUpstreamLinks("B1"));
+    assertEquals("5.0", v4.getCellDisplayString("A1"));
+    assertEquals("", v4.getCellContents("B1"));
+    assertEquals(v1.number() + 3, v4.number());
+    try{
+      sheet.setCell("A1","=A1");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+    assertSame(v4, sheet.currentVersion());
+  }
+  @Test public void version_lazy1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setLazy(true);
+    sheet.setCell("A1","2");
+    sheet.setCell("B1","=A1+1");
+    sheet.setVersioned(true);
+    sheet.setCell("C1","=B1*2");
+    sheet.setCell("A1","10");
+    assertEquals("22.0", sheet.currentVersion().getCellDisplayString("C1"));
+    assertEquals(Double.valueOf(11.0), sheet.currentVersion().getNumberValue("B1"));
+  }
+  // Readers on other threads always see a consistent sheet
+  @Test public void version_readers1() throws Exception{
+    final Spreadsheet sheet = new Spreadsheet();
+    sheet.setVersioned(true);
+    sheet.setCell("A1","0");
+    for(int i=2; i<=50; i++){
+      sheet.setCell("A"+i,"=A"+(i-1)+"+1");
+    }
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicInteger bad = new AtomicInteger();
+    final AtomicLong reads = new AtomicLong();
+    Thread [] readers = new Thread[3];
+    for(int t=0; t<readers.length; t++){
+      readers[t] = new Thread(){
+        public void run(){
+          while(!done.get()){
+            SheetVersion v = sheet.currentVersion();
+            Double first = v.getNumberValue("A1");
+            Double last = v.getNumberValue("A50");
+            if(first == null || last == null || last - first != 49.0){
+              bad.incrementAndGet();
+            }
+            reads.incrementAndGet();
+            Thread.yield();
+          }
+        }
+      };
+      readers[t].start();
+    }
+    for(int i=1; i<=500; i++){
+      sheet.setCell("A1",""+i);
+    }
+    done.set(true);
+    for(Thread t : readers){
+      t.join();
+    }
+    assertEquals(0, bad.get());
+    assertTrue(reads.get() > 0);
+    assertEquals("549.0", sheet.currentVersion().getCellDisplayString("A50"));
+  }
+
+  // Build a set of strings
+  public static Set<String> toSet(String... args){
+    return new HashSet<String>(Arrays.asList(args));
+  }
+}
@@ -1,17 +1,233 @@
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 public class Spreadsheet{
 // Basic model for a spreadsheet. Allows cells to be set by specifying their ID
-  protected Map<String, Cell> sheet;
+  protected CellStore sheet;
   protected DAG dag;
+  protected RangeIndex ranges;
+  // Aggregate trees for the ranges used by formulas. Each range is one
+  // DAG node whose links to the cells inside it are implied by the
+  // index rather than stored.
 
-  // Construct a new empty spreadsheet
+  protected FormulaPool formulas;
+  // Shared, simplified trees of the linked formulas.
+
+  protected boolean lazy;
+  // In lazy mode edits only mark the affected cells dirty and a cell
+  // is evaluated, along with whatever dirty cells it reads, when its
+  // value is asked for. The result is kept until it is marked again.
+
+  protected EditJournal journal;
+  // When set, every successful edit is appended to the journal and a
+  // checkpoint is taken whenever the journal says one is due.
+
+  protected volatile SheetVersion version;
+  protected Set<String> changed;
+  // When versioning is on, every edit ends by publishing an immutable
+  // SheetVersion which other threads may read without locking while
+  // this one works on the next edit. changed collects the cells an
+  // edit touched so only they are copied into the new version.
+
+  protected ForkJoinPool pool;
+  protected int parallelThreshold = 512;
+  // When a pool is set, recalculation is split into wavefronts of
+  // cells whose upstream cells are all in earlier wavefronts, and the
+  // cells of any wavefront with at least parallelThreshold cells are
+  // evaluated concurrently. Each cell only reads finished wavefronts
+  // so the results match sequential evaluation exactly.
+
+  protected final LongAdder evaluated = new LongAdder();
+  protected final LongAdder pruned = new LongAdder();
+  // Formula evaluations done by recalculation, and those skipped as
+  // nothing the cell reads had changed.
+
+  protected int blockThreshold = 8;
+  // Runs of at least blockThreshold TemplateCells of one template which
+  // cannot read one another are evaluated together as a column block
+  // by FormulaTemplate.updateBlock rather than one cell at a time.
+
+  protected ChangeFeed feed;
+  protected Set<String> notified;
+  // Listeners to cell changes, made on the first subscription, and the
+  // cells the current edit touched in the order they were touched,
+  // handed to the feed as the edit ends. Both null until then.
+
+  // Construct a new empty spreadsheet tracking dependencies in a
+  // CompactDAG, whose links are int arrays over node numbers.
   public Spreadsheet(){
-    this.sheet = new HashMap<String, Cell>();
-    this.dag = new DAG();
+    this(new PackedCellStore());
+  }
+
+  // Construct an empty spreadsheet tracking dependencies in the given
+  // empty DAG, such as a plain DAG of String sets.
+  public Spreadsheet(DAG dag){
+    this(new PackedCellStore(), dag);
+  }
+
+  // Construct an empty spreadsheet keeping its cells in the given
+  // store.
+  protected Spreadsheet(CellStore store){
+    this(store, new CompactDAG());
+  }
+
+  protected Spreadsheet(CellStore store, DAG dag){
+    this.sheet = store;
+    this.dag = dag;
+    this.ranges = new RangeIndex(sheet, dag);
+    this.sheet.setRanges(ranges);
+    this.dag.setLinkSource(ranges);
+    this.formulas = new FormulaPool();
   }
   
+  // Turn lazy evaluation on or off. Turning it off brings every dirty
+  // cell up to date.
+  public void setLazy(boolean lazy){
+    if (this.lazy && !lazy){
+      for (String id : sheet.keySet()){
+        ensureClean(id);
+      }
+    }
+    this.lazy = lazy;
+  }
+
+  // Return whether the sheet evaluates cells lazily.
+  public boolean isLazy(){
+    return lazy;
+  }
+
+  // Evaluate large recalculations on the given pool, or sequentially
+  // if pool is null.
+  public void setRecalcPool(ForkJoinPool pool){
+    this.pool = pool;
+  }
+
+  // Turn publishing of immutable versions on or off. Turning it on
+  // publishes a version holding the whole sheet.
+  public void setVersioned(boolean versioned){
+    if (!versioned){
+      this.changed = null;
+      this.version = null;
+      return;
+    }
+    if (changed == null){
+      this.version = SheetVersion.EMPTY;
+      this.changed = new HashSet<String>(sheet.keySet());
+      publish();
+    }
+  }
+
+  // Return the latest published version, or null if versioning is off.
+  // Safe to call from any thread.
+  public SheetVersion currentVersion(){
+    return version;
+  }
+
+  // Return the pool holding the sheet's formula trees.
+  public FormulaPool getFormulaPool(){
+    return formulas;
+  }
+
+  // Report formula node counts before and after simplifying and
+  // sharing.
+  public String formulaReport(){
+    return formulas.report();
+  }
+
+  // Log edits to the given journal from now on, or stop if null.
+  public void setJournal(EditJournal journal){
+    this.journal = journal;
+  }
+
+  // Set the smallest wavefront which is worth evaluating in parallel.
+  public void setParallelThreshold(int cells){
+    this.parallelThreshold = cells;
+  }
+
+  // Return the number of cells recalculation has evaluated.
+  public long getEvaluationCount(){
+    return evaluated.sum();
+  }
+
+  // Return the number of cells recalculation skipped because nothing
+  // they read had changed.
+  public long getPrunedCount(){
+    return pruned.sum();
+  }
+
+  // Summarize the recalculation counts.
+  public String recalcReport(){
+    long done = evaluated.sum(), skipped = pruned.sum();
+    return String.format("%d cells evaluated, %d pruned (%.1f%%)", done, skipped,
+                         done + skipped == 0 ? 0.0 : 100.0 * skipped / (done + skipped));
+  }
+
+  // Set the fewest cells worth evaluating as a column block.
+  public void setBlockThreshold(int cells){
+    this.blockThreshold = cells;
+  }
+
+  // Call listener with the new state of every cell each edit changes.
+  // Calls happen on the feed's executor, by default a thread of its
+  // own, so a slow listener never holds up edits.
+  public ChangeFeed.Subscription subscribe(ChangeFeed.Listener listener){
+    return watched(feed().subscribe(listener));
+  }
+
+  // Call listener whenever an edit changes the cell with the given ID.
+  public ChangeFeed.Subscription subscribeCell(String id, ChangeFeed.Listener listener){
+    verifyIDFormat(id);
+    return watched(feed().subscribeCell(id, listener));
+  }
+
+  // Call listener with the cells of the given range, such as "A1:B10",
+  // each edit changes.
+  public ChangeFeed.Subscription subscribeRange(String rangeID, ChangeFeed.Listener listener){
+    RangeIndex.Range range = RangeIndex.Range.parse(rangeID);
+    if (range == null){
+      throw new RuntimeException("Not well formatted");
+    }
+    return watched(feed().subscribeRange(range, listener));
+  }
+
+  // Bring every watched cell up to date in lazy mode. From then on
+  // each edit leaves them clean, so marking cells dirty always reaches
+  // them.
+  protected ChangeFeed.Subscription watched(ChangeFeed.Subscription s){
+    if (lazy){
+      for (String id : sheet.keySet()){
+        if (feed.watches(id)){
+          ensureClean(id);
+        }
+      }
+    }
+    return s;
+  }
+
+  // Deliver changes on the given executor rather than the feed's own
+  // thread, such as Runnable::run to deliver before each edit returns.
+  public void setChangeExecutor(Executor executor){
+    feed().setExecutor(executor);
+  }
+
+  // Return the change feed, making it on first use.
+  protected ChangeFeed feed(){
+    if (feed == null){
+      notified = new LinkedHashSet<String>();
+      feed = new ChangeFeed(null);
+    }
+    return feed;
+  }
+
   // Return a string representation of the spreadsheet.
   public String toString(){
+    // every value is shown so bring them all up to date
+    if (lazy){
+      for (String id : sheet.keySet()){
+        ensureClean(id);
+      }
+    }
     // make string builder
     StringBuilder s = new StringBuilder();
     // add the top line in suggested format and border
@@ -27,10 +243,80 @@ public class Spreadsheet{
     return s.toString();           
   }
    
+  // Write a binary snapshot of the sheet to the given file.
+  public void save(java.nio.file.Path file) throws IOException{
+    SheetSnapshot.save(this, file);
+  }
+
+  // Return the contents of every cell as text with one "ID contents"
+  // line per cell. Backslashes and both kinds of line break in
+  // contents are escaped, as readLine splits on either.
+  // This is the interchange format; SheetSnapshot saves and loads much
+  // faster.
+  public String toSaveString(){
+    StringBuilder s = new StringBuilder();
+    for (Map.Entry<String, Cell> e : sheet.entrySet()){
+      String contents = e.getValue().contents().replace("\\", "\\\\")
+                                               .replace("\n", "\\n").replace("\r", "\\r");
+      s.append(e.getKey()).append(' ').append(contents).append('\n');
+    }
+    return s.toString();
+  }
+
+  // Build a spreadsheet from a string produced by toSaveString.
+  public static Spreadsheet fromSaveString(String saveString){
+    try{
+      return readSaveText(new BufferedReader(new StringReader(saveString)));
+    }
+    catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Build a spreadsheet from the toSaveString format read line by line,
+  // so a file need not be held in memory as one string. The cells are
+  // set as one batch and evaluated once.
+  public static Spreadsheet readSaveText(BufferedReader in) throws IOException{
+    Map<String, String> contents = new HashMap<String, String>();
+    String line;
+    while ((line = in.readLine()) != null){
+      if (line.trim().isEmpty()){
+        continue;
+      }
+      int space = line.indexOf(' ');
+      if (space < 0){
+        throw new RuntimeException("Bad save line '" + line + "'");
+      }
+      contents.put(line.substring(0, space), unescape(line.substring(space + 1)));
+    }
+    Spreadsheet s = new Spreadsheet();
+    s.setCells(contents);
+    return s;
+  }
+
+  // Undo the escaping done by toSaveString.
+  protected static String unescape(String text){
+    if (text.indexOf('\\') < 0){
+      return text;
+    }
+    StringBuilder s = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++){
+      char c = text.charAt(i);
+      if (c == '\\' && i + 1 < text.length()){
+        c = text.charAt(++i);
+        s.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+      }
+      else{
+        s.append(c);
+      }
+    }
+    return s.toString();
+  }
+
   // Check if a cell ID is well formatted.
   public static void verifyIDFormat(String id){
-    // check if string matches this regular expression
-    if (!id.matches("^[A-Z]+[1-9][0-9]*$")){
+    // letters followed by a row number without leading zeros
+    if (!CellAddress.isWellFormed(id)){
       throw new RuntimeException("Not well formatted");
     }
   }
@@ -38,6 +324,9 @@ public class Spreadsheet{
   // Retrieve a string which should be displayed for the value of the
   // cell with the given ID. Return "" if the specified cell is empty.
   public String getCellDisplayString(String id){
+    if (lazy){
+      ensureClean(id);
+    }
     return sheet.get(id).displayString();
   }
   
@@ -46,16 +335,38 @@ public class Spreadsheet{
   public String getCellContents(String id){
     return sheet.get(id).contents();
   }
+
+  // Return the IDs of every cell the given cell depends on, directly or
+  // through other formulas and ranges, in no particular order.
+  public Set<String> getPrecedents(String id){
+    return cellsOnly(dag.getAllPrecedents(id));
+  }
+
+  // Return the IDs of every cell depending on the given cell, directly
+  // or through other formulas and ranges.
+  public Set<String> getDependents(String id){
+    return cellsOnly(dag.getAllDependents(id));
+  }
+
+  // Drop the range nodes from a set of DAG nodes.
+  protected static Set<String> cellsOnly(Set<String> nodes){
+    Set<String> cells = new HashSet<String>();
+    for (String node : nodes){
+      if (node.indexOf(':') < 0){
+        cells.add(node);
+      }
+    }
+    return cells;
+  }
   
   // Delete the contents of the cell with the given ID. 
   public void deleteCell(String id){
-    // remove id from the sheet
-    sheet.remove(id);
-    Set<String> set = new HashSet<String>();
-    // add it back to the dag with empty set to make contents empty
-    dag.add(id,set);
+    unlink(id);
     // notify downstream cells of the chage
+    touched(id);
     notifyDownstreamOfChange(id);
+    publish();
+    log(id, "");
   }
   
   // Set the given cell with the given contents. 
@@ -65,22 +376,666 @@ public class Spreadsheet{
       deleteCell(id);
       return;
     }
-    Cell cell = Cell.make(contents); // make new cell with new contents
-    cell.updateValue(sheet); // update the cells values 
-    dag.add(id, cell.getUpstreamIDs()); // add cell to dag
-    sheet.put(id, cell); // put id into sheet with updated cell
+    Cell cell = formulas.make(id, contents); // make new cell with new contents
+    link(id, cell);
+    if (!lazy){
+      cell.updateValue(sheet); // update the cells values 
+    }
+    ranges.cellChanged(id, cell);
+    touched(id);
     notifyDownstreamOfChange(id);
+    publish();
+    log(id, contents);
+  }
+
+  // Put a new cell into the sheet and the DAG without evaluating it.
+  // Throws DAG.CycleException, leaving everything as it was, if the
+  // cell's references would form a cycle.
+  protected void link(String id, Cell cell){
+    // ranges must be tracked before the cell is linked
+    ranges.registerAll(cell.getRangeIDs());
+    try{
+      dag.add(id, cell.getUpstreamIDs()); // add cell to dag
+    }
+    catch(RuntimeException e){
+      ranges.unregisterAll(cell.getRangeIDs());
+      throw e;
+    }
+    formulas.acquire(id, cell);
+    sheet.advanceEpoch();
+    Cell old = sheet.put(id, cell); // put id into sheet with new cell
+    if (old != null){
+      ranges.unregisterAll(old.getRangeIDs());
+      formulas.release(id, old);
+    }
+  }
+
+  // Remove a cell from the sheet and its links from the DAG. The node
+  // itself is dropped unless some formula still reads the cell, so a
+  // range it was in no longer counts it as a precedent.
+  protected void unlink(String id){
+    // remove id from the sheet
+    Cell old = sheet.remove(id);
+    sheet.advanceEpoch();
+    ranges.cellChanged(id, null);
+    Set<String> set = new HashSet<String>();
+    // add it back to the dag with empty set to make contents empty
+    dag.add(id,set);
+    dag.forget(id);
+    if (old != null){
+      ranges.unregisterAll(old.getRangeIDs());
+      formulas.release(id, old);
+    }
+  }
+
+  // Set many cells at once. Keys are cell IDs and values their new
+  // contents, with "" or null deleting the cell. All cells are parsed
+  // and all dependency changes made before a single cycle check, then
+  // every affected cell is recalculated once in dependency order. If
+  // any contents fail to parse or the batch would create a cycle, an
+  // exception is thrown and the sheet is left exactly as it was.
+  public void setCells(Map<String, String> contents){
+    Map<String, Cell> made = makeAll(contents);
+    List<String> order = linkAll(made);
+    recalculate(order, made.keySet());
+    publish();
+    logAll(contents);
+  }
+
+  // Parse new contents into cells, with null standing for a deleted
+  // cell. Formulas of a shape already in the sheet or earlier in the
+  // batch are not parsed.
+  protected Map<String, Cell> makeAll(Map<String, String> contents){
+    Map<String, Cell> made = new HashMap<String, Cell>();
+    Map<String, FormulaTemplate> batch = new HashMap<String, FormulaTemplate>();
+    for (Map.Entry<String, String> e : contents.entrySet()){
+      String text = e.getValue();
+      boolean empty = text == null || text.equals("");
+      made.put(e.getKey(), empty ? null : formulas.make(e.getKey(), text, batch));
+    }
+    return made;
+  }
+
+  // Put a batch of new cells into the sheet and the DAG without
+  // evaluating them and return every affected ID in dependency order.
+  // Throws before anything has changed if the batch forms a cycle.
+  protected List<String> linkAll(Map<String, Cell> made){
+    Map<String, Set<String>> links = new HashMap<String, Set<String>>();
+    for (Map.Entry<String, Cell> e : made.entrySet()){
+      Cell cell = e.getValue();
+      if (cell == null){
+        links.put(e.getKey(), new HashSet<String>());
+      }
+      else{
+        links.put(e.getKey(), cell.getUpstreamIDs());
+        ranges.registerAll(cell.getRangeIDs());
+      }
+    }
+    // throws before anything in the sheet has changed
+    List<String> order;
+    try{
+      order = dag.addAll(links);
+    }
+    catch(RuntimeException e){
+      for (Cell cell : made.values()){
+        if (cell != null){
+          ranges.unregisterAll(cell.getRangeIDs());
+        }
+      }
+      throw e;
+    }
+    sheet.advanceEpoch();
+    for (Map.Entry<String, Cell> e : made.entrySet()){
+      Cell old;
+      if (e.getValue() == null){
+        old = sheet.remove(e.getKey());
+        dag.forget(e.getKey());
+      }
+      else{
+        formulas.acquire(e.getKey(), e.getValue());
+        old = sheet.put(e.getKey(), e.getValue());
+      }
+      if (old != null){
+        ranges.unregisterAll(old.getRangeIDs());
+        formulas.release(e.getKey(), old);
+      }
+      ranges.cellChanged(e.getKey(), e.getValue());
+      touched(e.getKey());
+    }
+    return order;
+  }
+
+  // Note that the cell with the given ID may have changed in the
+  // current edit.
+  protected void touched(String id){
+    if (changed != null){
+      changed.add(id);
+    }
+    if (notified != null){
+      notified.add(id);
+    }
+  }
+
+  // Publish a version with the cells touched since the last one. In
+  // lazy mode those cells are brought up to date first since a
+  // version cannot evaluate anything later.
+  // Runtime Complexity: O(k log32 n)
+  //   k: cells touched by the edit
+  protected void publish(){
+    notifyListeners();
+    if (changed == null || changed.isEmpty()){
+      return;
+    }
+    if (lazy){
+      for (String id : changed){
+        ensureClean(id);
+      }
+    }
+    Map<String, SheetVersion.Entry> entries = new HashMap<String, SheetVersion.Entry>();
+    for (String id : changed){
+      Cell cell = sheet.get(id);
+      if (cell == null){
+        entries.put(id, null);
+      }
+      else{
+        String[] ups = dag.getUpstreamLinks(id).toArray(new String[0]);
+        entries.put(id, new SheetVersion.Entry(cell.contents(), cell.displayString(),
+                                               cell.numberValue(), ups));
+      }
+    }
+    changed.clear();
+    version = version.next(entries);
+  }
+
+  // Hand the feed the new state of each watched cell the edit touched,
+  // bringing it up to date first in lazy mode. Only the cells are read
+  // here; listeners are called later on the feed's executor.
+  // Runtime Complexity: O(k)
+  //   k: cells touched by the edit
+  protected void notifyListeners(){
+    if (notified == null || notified.isEmpty()){
+      return;
+    }
+    List<ChangeFeed.Change> changes = changesOf(notified);
+    notified.clear();
+    if (!changes.isEmpty()){
+      feed.offer(changes);
+    }
+  }
+
+  // Return the new state of each of the given cells that some listener
+  // watches, bringing it up to date first in lazy mode.
+  // Runtime Complexity: O(k)
+  protected List<ChangeFeed.Change> changesOf(Collection<String> ids){
+    List<ChangeFeed.Change> changes = new ArrayList<ChangeFeed.Change>();
+    if (feed.isEmpty()){
+      return changes;
+    }
+    for (String id : ids){
+      if (!feed.watches(id)){
+        continue;
+      }
+      if (lazy){
+        ensureClean(id);
+      }
+      Cell cell = sheet.get(id);
+      changes.add(cell == null ? new ChangeFeed.Change(id, "", null)
+                               : new ChangeFeed.Change(id, cell.displayString(), cell.numberValue()));
+    }
+    return changes;
+  }
+
+  // Snapshot the sheet into the journal's directory.
+  protected void checkpoint() throws IOException{
+    journal.checkpoint(this);
+  }
+
+  // Append a batch of applied edits to the journal if there is one,
+  // then take a checkpoint if one is due.
+  protected void logAll(Map<String, String> contents){
+    if (journal == null){
+      return;
+    }
+    appendAll(contents);
+    checkpointIfDue();
+  }
+
+  // Append an applied edit to the journal if there is one, then take a
+  // checkpoint if one is due.
+  protected void log(String id, String contents){
+    if (journal == null){
+      return;
+    }
+    appendAll(Collections.singletonMap(id, contents));
+    checkpointIfDue();
+  }
+
+  // Append a batch of applied edits to the journal if there is one
+  // without checkpointing, for callers which must first finish
+  // recalculating.
+  protected void appendAll(Map<String, String> contents){
+    if (journal == null){
+      return;
+    }
+    try{
+      for (Map.Entry<String, String> e : contents.entrySet()){
+        journal.append(e.getKey(), e.getValue());
+      }
+    }
+    catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Snapshot the sheet if the journal says a checkpoint is due. Every
+  // edit logged so far must have been recalculated.
+  protected void checkpointIfDue(){
+    if (journal == null || !journal.checkpointDue()){
+      return;
+    }
+    try{
+      checkpoint();
+    }
+    catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Update the values of the cells in the given order which the edit
+  // of sources may have changed, skipping IDs which have no cell. A
+  // cell is only evaluated when a source or a cell it reads changed,
+  // and changed means a new error state or a value with other bits, so
+  // propagation stops wherever a recalculated value comes out the same.
+  // Sources in the order are always evaluated and count as changed. In
+  // lazy mode the cells are only marked.
+  protected void recalculate(List<String> order, Collection<String> sources){
+    recalculate(order, sources, null);
+  }
+
+  // Recalculate as above, following the downstream links in links, as
+  // made by downstreamLinks(order), instead of the DAG's if it is not
+  // null, so the DAG may change meanwhile.
+  protected void recalculate(List<String> order, Collection<String> sources,
+                             Map<String, Collection<String>> links){
+    if (lazy){
+      for (String id : order){
+        touched(id);
+        Cell cell = sheet.get(id);
+        if (cell != null){
+          cell.dirty = true;
+        }
+      }
+      return;
+    }
+    Set<String> needed = new HashSet<String>(sources);
+    for (String id : sources){
+      markNeeded(id, needed, links);
+    }
+    if (pool != null && order.size() >= parallelThreshold){
+      recalculateParallel(order, sources, needed, links);
+      return;
+    }
+    TemplateCell[] block = null;
+    double[] oldValues = null;
+    boolean[] oldErrors = null;
+    int i = 0;
+    while (i < order.size()){
+      String id = order.get(i);
+      Cell cell = sheet.get(id);
+      if (cell == null){
+        i++;
+        continue;
+      }
+      if (!needed.contains(id)){
+        pruned.increment();
+        i++;
+        continue;
+      }
+      if (cell instanceof TemplateCell && ((TemplateCell) cell).template.columnar){
+        if (block == null){
+          block = new TemplateCell[FormulaTemplate.BLOCK_ROWS];
+          oldValues = new double[block.length];
+          oldErrors = new boolean[block.length];
+        }
+        int n = blockRun(order, i, (TemplateCell) cell, block, needed);
+        for (int k = 0; k < n; k++){
+          oldValues[k] = block[k].value;
+          oldErrors[k] = block[k].error;
+        }
+        if (n >= blockThreshold){
+          block[0].template.updateBlock(block, 0, n, sheet);
+        }
+        else{
+          for (int k = 0; k < n; k++){
+            block[k].updateValue(sheet);
+          }
+        }
+        evaluated.add(n);
+        for (int k = 0; k < n; k++){
+          String blockID = order.get(i + k);
+          if (sources.contains(blockID) || changed(block[k], oldValues[k], oldErrors[k])){
+            propagate(blockID, block[k], needed, links);
+          }
+        }
+        i += n;
+        continue;
+      }
+      double oldValue = cell.value;
+      boolean oldError = cell.error;
+      cell.updateValue(sheet);
+      evaluated.increment();
+      if (sources.contains(id) || changed(cell, oldValue, oldError)){
+        propagate(id, cell, needed, links);
+      }
+      i++;
+    }
+  }
+
+  // Return whether a cell's result differs from the old one.
+  protected static boolean changed(Cell cell, double oldValue, boolean oldError){
+    if (cell.error || oldError){
+      return cell.error != oldError;
+    }
+    return Double.doubleToRawLongBits(cell.value) != Double.doubleToRawLongBits(oldValue);
+  }
+
+  // Record that a cell has a new result: publish it and let the ranges
+  // and cells reading it know.
+  protected void propagate(String id, Cell cell, Set<String> needed,
+                           Map<String, Collection<String>> links){
+    touched(id);
+    ranges.cellChanged(id, cell);
+    markNeeded(id, needed, links);
+  }
+
+  // Add everything reading id to needed, passing straight through the
+  // ranges and deleted cells, which have nothing to evaluate.
+  protected void markNeeded(String id, Set<String> needed, Map<String, Collection<String>> links){
+    Deque<String> stack = new ArrayDeque<String>();
+    stack.push(id);
+    while (!stack.isEmpty()){
+      for (String down : downstreamOf(stack.pop(), links)){
+        if (needed.add(down) && sheet.get(down) == null){
+          stack.push(down);
+        }
+      }
+    }
+  }
+
+  // Return the stored and implied downstream links of id, from links
+  // if it is not null and otherwise from the DAG.
+  protected Collection<String> downstreamOf(String id, Map<String, Collection<String>> links){
+    if (links == null){
+      return dag.getEffectiveDownstream(id);
+    }
+    Collection<String> down = links.get(id);
+    return down == null ? Collections.<String>emptyList() : down;
+  }
+
+  // Copy the stored and implied downstream links of every node of a
+  // downstream order, which all lead back into the order, so it can be
+  // recalculated without reading the DAG.
+  // Runtime Complexity: O(n + e)
+  //   n: nodes in the order, e: links out of them
+  protected Map<String, Collection<String>> downstreamLinks(List<String> order){
+    Map<String, Collection<String>> links = new HashMap<String, Collection<String>>();
+    for (String id : order){
+      Collection<String> down = dag.getEffectiveDownstream(id);
+      if (!down.isEmpty()){
+        links.put(id, new ArrayList<String>(down));
+      }
+    }
+    return links;
+  }
+
+  // Collect into block the run of needed cells of order starting at i,
+  // which holds first, that are TemplateCells of first's template in
+  // first's column, and return its length. The template reads nothing
+  // in its own column and the run is consecutive in a topological
+  // order, so no cell of the run reads another even indirectly.
+  protected int blockRun(List<String> order, int i, TemplateCell first, TemplateCell[] block,
+                         Set<String> needed){
+    int column = CellAddress.column(first.anchor);
+    block[0] = first;
+    int n = 1;
+    while (n < block.length && i + n < order.size()){
+      String id = order.get(i + n);
+      Cell next = sheet.get(id);
+      if (!(next instanceof TemplateCell) || !needed.contains(id)){
+        break;
+      }
+      TemplateCell tc = (TemplateCell) next;
+      if (tc.template != first.template || CellAddress.column(tc.anchor) != column){
+        break;
+      }
+      block[n++] = tc;
+    }
+    return n;
+  }
+
+  // Evaluate the needed cells of a topological order wavefront by
+  // wavefront on the pool. A cell's wavefront is one past the latest
+  // wavefront of the cells it reads within the order.
+  protected void recalculateParallel(List<String> order, Collection<String> sources,
+                                     Set<String> needed, Map<String, Collection<String>> links){
+    // levels are pushed downstream since a range node's upstream
+    // links are implied and expensive to list
+    Map<String, Integer> level = new HashMap<String, Integer>();
+    List<List<String>> waves = new ArrayList<List<String>>();
+    for (String id : order){
+      Integer got = level.get(id);
+      int lvl = got == null ? 0 : got;
+      for (String down : downstreamOf(id, links)){
+        Integer downLvl = level.get(down);
+        if (downLvl == null || downLvl < lvl + 1){
+          level.put(down, lvl + 1);
+        }
+      }
+      if (sheet.get(id) == null){
+        continue;
+      }
+      while (waves.size() <= lvl){
+        waves.add(new ArrayList<String>());
+      }
+      waves.get(lvl).add(id);
+    }
+    for (List<String> all : waves){
+      // only now are the earlier waves' changes known
+      List<String> ids = new ArrayList<String>(all.size());
+      for (String id : all){
+        if (needed.contains(id)){
+          ids.add(id);
+        }
+      }
+      pruned.add(all.size() - ids.size());
+      evaluated.add(ids.size());
+      List<Cell> wave = new ArrayList<Cell>(ids.size());
+      double[] oldValues = new double[ids.size()];
+      boolean[] oldErrors = new boolean[ids.size()];
+      for (int i = 0; i < ids.size(); i++){
+        Cell cell = sheet.get(ids.get(i));
+        wave.add(cell);
+        oldValues[i] = cell.value;
+        oldErrors[i] = cell.error;
+      }
+      List<Cell> rest = evaluateBlocks(wave);
+      if (rest.size() >= parallelThreshold){
+        pool.invoke(new RecalcTask(rest, 0, rest.size()));
+      }
+      else{
+        for (Cell cell : rest){
+          cell.updateValue(sheet);
+        }
+      }
+      // later waves may aggregate over this one
+      for (int i = 0; i < ids.size(); i++){
+        String id = ids.get(i);
+        if (sources.contains(id) || changed(wave.get(i), oldValues[i], oldErrors[i])){
+          propagate(id, wave.get(i), needed, links);
+        }
+      }
+    }
+  }
+
+  // Evaluate the TemplateCells of a wavefront sharing a template with
+  // at least blockThreshold - 1 others as column blocks, ordered by
+  // address so neighbouring rows are gathered together, and return the
+  // cells left to evaluate one by one. Cells of a wavefront never read
+  // one another so any template may be grouped.
+  // Runtime Complexity: O(W log W)
+  //   W: the size of the wavefront
+  protected List<Cell> evaluateBlocks(List<Cell> wave){
+    Map<FormulaTemplate, List<TemplateCell>> groups =
+      new IdentityHashMap<FormulaTemplate, List<TemplateCell>>();
+    for (Cell cell : wave){
+      if (cell instanceof TemplateCell){
+        TemplateCell tc = (TemplateCell) cell;
+        List<TemplateCell> group = groups.get(tc.template);
+        if (group == null){
+          group = new ArrayList<TemplateCell>();
+          groups.put(tc.template, group);
+        }
+        group.add(tc);
+      }
+    }
+    List<Cell> rest = new ArrayList<Cell>();
+    for (Cell cell : wave){
+      if (!(cell instanceof TemplateCell) ||
+          groups.get(((TemplateCell) cell).template).size() < blockThreshold){
+        rest.add(cell);
+      }
+    }
+    for (List<TemplateCell> group : groups.values()){
+      if (group.size() < blockThreshold){
+        continue;
+      }
+      TemplateCell[] cells = group.toArray(new TemplateCell[0]);
+      Arrays.sort(cells, new Comparator<TemplateCell>(){
+        public int compare(TemplateCell a, TemplateCell b){
+          return Long.compare(a.anchor, b.anchor);
+        }
+      });
+      pool.invoke(new BlockTask(cells, 0, cells.length));
+    }
+    return rest;
+  }
+
+  // Evaluates a slice of one wavefront, splitting it in half until
+  // the pieces are small enough.
+  protected class RecalcTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    protected final List<Cell> cells;
+    protected final int lo, hi;
+
+    protected RecalcTask(List<Cell> cells, int lo, int hi){
+      this.cells = cells;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    protected void compute(){
+      if (hi - lo <= 256){
+        for (int i = lo; i < hi; i++){
+          cells.get(i).updateValue(sheet);
+        }
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new RecalcTask(cells, lo, mid), new RecalcTask(cells, mid, hi));
+    }
+  }
+
+  // Evaluates a slice of one column block the same way.
+  protected class BlockTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    protected final TemplateCell[] cells;
+    protected final int lo, hi;
+
+    protected BlockTask(TemplateCell[] cells, int lo, int hi){
+      this.cells = cells;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    protected void compute(){
+      if (hi - lo <= FormulaTemplate.BLOCK_ROWS){
+        cells[lo].template.updateBlock(cells, lo, hi, sheet);
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new BlockTask(cells, lo, mid), new BlockTask(cells, mid, hi));
+    }
+  }
+
+  // Mark the given cell and everything downstream of it dirty. A
+  // dirty cell's downstream cells are always dirty already, so the
+  // walk stops at them.
+  protected void markDirty(String id){
+    Deque<String> stack = new ArrayDeque<String>();
+    stack.push(id);
+    while (!stack.isEmpty()){
+      String cur = stack.pop();
+      Cell cell = sheet.get(cur);
+      if (cell != null){
+        if (cell.dirty && !cur.equals(id)){
+          continue;
+        }
+        cell.dirty = true;
+        touched(cur);
+      }
+      for (String down : dag.getEffectiveDownstream(cur)){
+        stack.push(down);
+      }
+    }
+  }
+
+  // Bring a cell up to date if it is dirty, first evaluating any dirty
+  // cells it reads. Uses an explicit stack so long chains of dirty
+  // cells do not exhaust the call stack.
+  protected void ensureClean(String id){
+    Deque<String> stack = new ArrayDeque<String>();
+    stack.push(id);
+    while (!stack.isEmpty()){
+      String cur = stack.peek();
+      Cell cell = sheet.get(cur);
+      if (cell == null || !cell.dirty){
+        stack.pop();
+        continue;
+      }
+      boolean ready = true;
+      for (String up : dag.getUpstreamLinks(cur)){
+        Cell upCell = sheet.get(up);
+        if (upCell != null && upCell.dirty){
+          stack.push(up);
+          ready = false;
+        }
+        // a range is clean once every cell inside it is
+        if (upCell == null && ranges.hasUpstream(up)){
+          for (String inside : ranges.dirtyCells(up)){
+            stack.push(inside);
+            ready = false;
+          }
+        }
+      }
+      if (ready){
+        cell.updateValue(sheet);
+        cell.dirty = false;
+        ranges.cellChanged(cur, cell);
+        stack.pop();
+      }
+    }
   }
 
   // Notify all downstream cells of a change in the given cell.
   public void notifyDownstreamOfChange(String id){
-    Set<String> downStream = dag.getDownstreamLinks(id);
-    // go through all the downstream ids and update the value
-    // recursively do it for each cell's downstreams to make sure 
-    // everything updates in order
-    for (String cell : downStream){
-      sheet.get(cell).updateValue(sheet);
-      notifyDownstreamOfChange(cell);
+    if (lazy){
+      markDirty(id);
+      return;
     }
+    // the dag hands back every affected cell once, upstreams first, so
+    // shared cells in diamond shapes are only evaluated a single time
+    List<String> order = dag.getDownstreamOrder(Collections.singleton(id));
+    // the changed cell comes first and has already been updated
+    recalculate(order.subList(1, order.size()), Collections.singleton(id));
   }
 }
\ No newline at end of file
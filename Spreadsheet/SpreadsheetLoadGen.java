@@ -0,0 +1,188 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Load generator for SpreadsheetServer. Opens many client connections
+// from one selector thread and drives each through a number of
+// pipelined batches. Client k works in its own column: it sets
+// COL1 to =COL2*2 once, then each batch sends depth/2 pairs of
+// "set COL2 i" and "get COL1" and checks every answer, so the run
+// also verifies that pipelined edits are applied in order.
+public class SpreadsheetLoadGen {
+
+  // Totals of one run.
+  public static class Result {
+    public long requests;
+    public long errors;
+    public long nanos;
+    public long[] batchNanos;
+    // Requests answered, wrong or error answers, wall time of the run,
+    // and the round trip time of every batch in increasing order.
+
+    public double requestsPerSecond(){
+      return requests * 1e9 / Math.max(1, nanos);
+    }
+
+    // Return the given percentile of batch round trip times in
+    // microseconds.
+    public double percentileMicros(double p){
+      if (batchNanos.length == 0){
+        return 0;
+      }
+      int i = (int) Math.min(batchNanos.length - 1, Math.floor(p / 100.0 * batchNanos.length));
+      return batchNanos[i] / 1000.0;
+    }
+
+    public String toString(){
+      return String.format("%d requests, %d errors, %.0f req/s, batch p50 %.0f us, p99 %.0f us",
+                           requests, errors, requestsPerSecond(),
+                           percentileMicros(50), percentileMicros(99));
+    }
+  }
+
+  // One simulated client.
+  protected static class Client {
+    final SocketChannel channel;
+    final String column;
+    int batchesLeft;
+    int pending;
+    long sentAt;
+    int value;
+    ByteBuffer out;
+    ByteBuffer in = ByteBuffer.allocate(1 << 16);
+    Deque<String> expected = new ArrayDeque<String>();
+
+    Client(SocketChannel channel, String column, int batches){
+      this.channel = channel;
+      this.column = column;
+      this.batchesLeft = batches;
+    }
+  }
+
+  // Run clients connections against the server, each sending batches
+  // pipelined batches of depth requests (rounded up to an even number).
+  public static Result run(InetSocketAddress address, int clients, int batches, int depth)
+    throws IOException{
+    int pairs = Math.max(1, (depth + 1) / 2);
+    Result result = new Result();
+    List<Long> times = new ArrayList<Long>();
+    long start = System.nanoTime();
+    try (Selector selector = Selector.open()){
+      for (int k = 0; k < clients; k++){
+        SocketChannel ch = SocketChannel.open(address);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        ch.configureBlocking(false);
+        Client c = new Client(ch, CellAddress.columnName(k + 1), batches);
+        // the first batch sets up the formula
+        StringBuilder setup = new StringBuilder();
+        setup.append("set ").append(c.column).append("1 =").append(c.column).append("2*2\n");
+        c.expected.add("OK");
+        send(c, setup, pairs);
+        ch.register(selector, SelectionKey.OP_READ | (c.out.hasRemaining() ? SelectionKey.OP_WRITE : 0), c);
+      }
+      int open = clients;
+      while (open > 0){
+        selector.select();
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()){
+          SelectionKey key = it.next();
+          it.remove();
+          Client c = (Client) key.attachment();
+          if (key.isWritable()){
+            c.channel.write(c.out);
+            if (!c.out.hasRemaining()){
+              key.interestOps(SelectionKey.OP_READ);
+            }
+          }
+          if (key.isReadable()){
+            receive(c, result);
+            if (c.pending == 0){
+              times.add(System.nanoTime() - c.sentAt);
+              if (--c.batchesLeft <= 0){
+                key.cancel();
+                c.channel.close();
+                open--;
+                continue;
+              }
+              send(c, new StringBuilder(), pairs);
+              if (c.out.hasRemaining()){
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+              }
+            }
+          }
+        }
+      }
+    }
+    result.nanos = System.nanoTime() - start;
+    result.batchNanos = new long[times.size()];
+    for (int i = 0; i < times.size(); i++){
+      result.batchNanos[i] = times.get(i);
+    }
+    Arrays.sort(result.batchNanos);
+    return result;
+  }
+
+  // Append one pipelined batch to the given text and write as much of
+  // it as the socket takes.
+  protected static void send(Client c, StringBuilder batch, int pairs) throws IOException{
+    for (int i = 0; i < pairs; i++){
+      c.value++;
+      batch.append("set ").append(c.column).append("2 ").append(c.value).append('\n');
+      batch.append("get ").append(c.column).append("1\n");
+      c.expected.add("OK");
+      c.expected.add(String.format("VALUE %.1f", 2.0 * c.value));
+    }
+    c.pending = c.expected.size();
+    c.out = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+    c.sentAt = System.nanoTime();
+    c.channel.write(c.out);
+  }
+
+  // Read answers and check them against the expected ones.
+  protected static void receive(Client c, Result result) throws IOException{
+    if (c.channel.read(c.in) < 0){
+      throw new EOFException("Server closed connection for column " + c.column);
+    }
+    c.in.flip();
+    int start = c.in.position();
+    for (int i = start; i < c.in.limit(); i++){
+      if (c.in.get(i) == '\n'){
+        String line = new String(c.in.array(), start, i - start, StandardCharsets.UTF_8);
+        start = i + 1;
+        String expect = c.expected.poll();
+        if (!line.equals(expect)){
+          result.errors++;
+        }
+        result.requests++;
+        c.pending--;
+      }
+    }
+    c.in.position(start);
+    c.in.compact();
+  }
+
+  // Usage: java SpreadsheetLoadGen [clients] [batches] [depth] [port]
+  // Starts a server on localhost unless a port is given.
+  public static void main(String args[]) throws Exception{
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int batches = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int depth = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+    SpreadsheetServer server = null;
+    int port;
+    if (args.length > 3){
+      port = Integer.parseInt(args[3]);
+    }
+    else{
+      server = new SpreadsheetServer(new ConcurrentSpreadsheet());
+      port = server.start(0, Runtime.getRuntime().availableProcessors());
+    }
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    System.out.println(run(address, clients, batches, depth));
+    if (server != null){
+      server.close();
+    }
+  }
+}
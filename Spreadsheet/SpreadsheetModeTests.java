@@ -0,0 +1,350 @@
+// Tests of the optional evaluation modes of Spreadsheet
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class SpreadsheetModeTests {
+  /*Main method runs tests in this file*/ 
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("SpreadsheetModeTests");
+  } 
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(2000); 
+
+  // Utility to build a map of contents from alternating IDs and
+  // contents. Invoke as:
+  //
+  //   Map<String,String> edits = edits("A1","2","B1","=A1*2");
+  // 
+  public static Map<String,String> edits(String... args){
+    Map<String,String> map = new LinkedHashMap<String,String>();
+    for(int i=0; i<args.length; i+=2){
+      map.put(args[i],args[i+1]);
+    }
+    return map;
+  }
+
+  // Lazy sheets only evaluate what is read
+  @Test public void lazy_pull1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setLazy(true);
+    sheet.setCell("A1","2");
+    sheet.setCell("B1","=A1*2");
+    sheet.setCell("C1","=B1+A1");
+    sheet.setCell("D1","=C1*10");
+    assertTrue(sheet.sheet.get("D1").dirty);
+    assertEquals("6.0", sheet.getCellDisplayString("C1"));
+    assertFalse(sheet.sheet.get("B1").dirty);
+    assertTrue(sheet.sheet.get("D1").dirty);
+    sheet.setCell("A1","3");
+    assertTrue(sheet.sheet.get("B1").dirty);
+    assertEquals("90.0", sheet.getCellDisplayString("D1"));
+    sheet.deleteCell("A1");
+    assertEquals("ERROR", sheet.getCellDisplayString("D1"));
+  }
+  @Test public void lazy_matches_eager(){
+    Spreadsheet eager = new Spreadsheet();
+    Spreadsheet lazy = new Spreadsheet();
+    lazy.setLazy(true);
+    String [] sets = {
+      "A1","1", "B1","=A1+1", "C1","=A1*B1", "D1","=C1-B1/A1",
+      "A1","4", "B1","hello", "E1","=D1+C1", "B1","=-A1", "A1","",
+    };
+    for(int i=0; i<sets.length; i+=2){
+      eager.setCell(sets[i],sets[i+1]);
+      lazy.setCell(sets[i],sets[i+1]);
+    }
+    for(String id : new String[]{"B1","C1","D1","E1"}){
+      assertEquals(id, eager.getCellDisplayString(id), lazy.getCellDisplayString(id));
+    }
+    lazy.setLazy(false);
+    for(String id : lazy.sheet.keySet()){
+      assertFalse(id, lazy.sheet.get(id).dirty);
+    }
+  }
+  @Test public void lazy_long_chain(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setLazy(true);
+    sheet.setCell("A1","0");
+    for(int i=2; i<=20000; i++){
+      sheet.setCell("A"+i,"=A"+(i-1)+"+1");
+    }
+    assertEquals("19999.0", sheet.getCellDisplayString("A20000"));
+  }
+  // Parallel recalculation gives the same values as sequential
+  @Test public void parallel_matches_sequential(){
+    Spreadsheet seq = new Spreadsheet();
+    Spreadsheet par = new Spreadsheet();
+    seq.setBlockThreshold(Integer.MAX_VALUE);
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+    par.setRecalcPool(pool);
+    par.setParallelThreshold(8);
+    Map<String,String> edits = edits("A1","1.5");
+    for(int i=1; i<=200; i++){
+      edits.put("B"+i, "=A1*"+i);
+      edits.put("C"+i, "=B"+i+"/3 + A1");
+      edits.put("D"+i, "=C"+i+" - B"+((i%200)+1));
+    }
+    seq.setCells(edits);
+    par.setCells(edits);
+    seq.setCell("A1","-2.25");
+    par.setCell("A1","-2.25");
+    for(int i=1; i<=200; i++){
+      assertEquals(seq.sheet.get("D"+i).numberValue(), par.sheet.get("D"+i).numberValue());
+    }
+    pool.shutdown();
+  }
+  // Column blocks give the same bits and errors as evaluating each
+  // cell on its own
+  @Test public void blocks_match_cells(){
+    Spreadsheet cells = new Spreadsheet();
+    Spreadsheet blocks = new Spreadsheet();
+    Spreadsheet parallel = new Spreadsheet();
+    cells.setBlockThreshold(Integer.MAX_VALUE);
+    blocks.setBlockThreshold(0);
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+    parallel.setRecalcPool(pool);
+    parallel.setParallelThreshold(16);
+    Spreadsheet[] sheets = {cells, blocks, parallel};
+    String[] values = {"1", "-0", "0", "2.5", "NaN", "-1e300", "x", ""};
+    Random rand = new Random(1020);
+    Map<String,String> edits = new HashMap<String,String>();
+    for(int i=1; i<=300; i++){
+      edits.put("A"+i, values[rand.nextInt(values.length)]);
+      edits.put("Z"+i, values[rand.nextInt(values.length)]);
+      edits.put("B"+i, "=A"+i+"*Z"+i+" - -A"+i+"/(A"+i+"-1)");
+      edits.put("C"+(i+1), "=SUM(A"+i+":A"+(i+2)+")/COUNT(A"+i+":A"+(i+2)+")+B"+i);
+      edits.put("D"+i, "=C"+(i+1)+"*0.5-B"+i);
+      edits.put("E"+(i+1), "=E"+i+"+D"+i);
+    }
+    edits.put("E1", "0");
+    for(Spreadsheet sheet : sheets){
+      sheet.setCells(edits);
+    }
+    assertTrue(blocks.getFormulaPool().templateCellCount() >= 4 * 299);
+    for(int step=0; step<20; step++){
+      Map<String,String> change = new HashMap<String,String>();
+      int count = step % 2 == 0 ? 1 : 150;
+      for(int k=0; k<count; k++){
+        String id = (rand.nextInt(4) == 0 ? "Z" : "A") + (1 + rand.nextInt(300));
+        change.put(id, values[rand.nextInt(values.length)]);
+      }
+      for(Spreadsheet sheet : sheets){
+        sheet.setCells(change);
+      }
+      for(int i=1; i<=300; i++){
+        for(String col : new String[]{"B", "C", "D", "E"}){
+          String cid = col + (col.compareTo("C") >= 0 && !col.equals("D") ? i+1 : i);
+          Double expect = cells.sheet.get(cid).numberValue();
+          assertEquals(cid, expect, blocks.sheet.get(cid).numberValue());
+          assertEquals(cid, expect, parallel.sheet.get(cid).numberValue());
+        }
+      }
+    }
+    pool.shutdown();
+  }
+
+  // Recalculation stops below a cell whose value came out the same
+  @Test public void cutoff_prunes1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "5");
+    sheet.setCell("A2", "9");
+    sheet.setCell("B1", "=MAX(A1:A2)");
+    for(int i=1; i<=100; i++){
+      sheet.setCell("C" + i, "=B1+" + i);
+    }
+    long evaluated = sheet.getEvaluationCount(), pruned = sheet.getPrunedCount();
+    sheet.setCell("A1", "7");
+    assertEquals(evaluated + 1, sheet.getEvaluationCount());
+    assertEquals(pruned + 100, sheet.getPrunedCount());
+    assertEquals("109.0", sheet.getCellDisplayString("C100"));
+    sheet.setCell("A1", "12");
+    assertEquals("112.0", sheet.getCellDisplayString("C100"));
+    sheet.setCell("A2", "x");
+    assertEquals("13.0", sheet.getCellDisplayString("C1"));
+    sheet.setCell("A1", "=Q99");
+    assertEquals("ERROR", sheet.getCellDisplayString("C1"));
+    evaluated = sheet.getEvaluationCount();
+    sheet.setCell("A2", "z");
+    assertEquals(evaluated + 1, sheet.getEvaluationCount());
+    sheet.setCell("A1", "1");
+    assertEquals("2.0", sheet.getCellDisplayString("C1"));
+  }
+
+  // A value changing only its sign of zero still propagates
+  @Test public void cutoff_signed_zero1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "3");
+    sheet.setCell("B1", "=A1*0");
+    sheet.setCell("C1", "=1/B1");
+    assertEquals("Infinity", sheet.getCellDisplayString("C1"));
+    sheet.setCell("A1", "-3");
+    assertEquals("-Infinity", sheet.getCellDisplayString("C1"));
+    sheet.setCells(edits("A1", "4"));
+    assertEquals("Infinity", sheet.getCellDisplayString("C1"));
+  }
+
+  // Pruned recalculation agrees with the lazy sheet, which evaluates
+  // everything marked, sequentially, in blocks and in parallel
+  @Test public void cutoff_matches_lazy1(){
+    Spreadsheet lazy = new Spreadsheet();
+    lazy.setLazy(true);
+    Spreadsheet seq = new Spreadsheet();
+    Spreadsheet par = new Spreadsheet();
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+    par.setRecalcPool(pool);
+    par.setParallelThreshold(4);
+    Spreadsheet[] sheets = {lazy, seq, par};
+    Random rand = new Random(1021);
+    Map<String,String> edits = new HashMap<String,String>();
+    for(int i=1; i<=60; i++){
+      edits.put("A"+i, "" + rand.nextInt(4));
+      edits.put("B"+i, "=MIN(A"+i+":A"+(i+1)+")*0+A"+i+"/2");
+      edits.put("C"+i, "=MAX(B"+i+":B"+(i+2)+")-B"+i);
+      edits.put("D"+i, "=C"+i+"*C"+i);
+    }
+    for(Spreadsheet sheet : sheets){
+      sheet.setCells(edits);
+    }
+    for(int step=0; step<100; step++){
+      Map<String,String> change = new HashMap<String,String>();
+      int count = step % 3 == 0 ? 20 : 1;
+      for(int k=0; k<count; k++){
+        String v = rand.nextInt(10) == 0 ? "" : rand.nextInt(10) == 0 ? "n/a" : "" + rand.nextInt(4);
+        change.put("A" + (1 + rand.nextInt(61)), v);
+      }
+      for(Spreadsheet sheet : sheets){
+        sheet.setCells(change);
+      }
+      for(int i=1; i<=60; i++){
+        for(String col : new String[]{"B", "C", "D"}){
+          String expect = lazy.getCellDisplayString(col + i);
+          assertEquals(col + i, expect, seq.getCellDisplayString(col + i));
+          assertEquals(col + i, expect, par.getCellDisplayString(col + i));
+        }
+      }
+    }
+    assertTrue(seq.getPrunedCount() > 0);
+    assertTrue(par.getPrunedCount() > 0);
+    pool.shutdown();
+  }
+
+  // Precedents and dependents pass through ranges, which are not
+  // reported themselves, and follow cells added to a range later
+  @Test public void precedents_through_ranges1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "1");
+    sheet.setCell("A2", "2");
+    sheet.setCell("B1", "=SUM(A1:A3)");
+    sheet.setCell("C1", "=B1*2");
+    assertEquals(new HashSet<String>(Arrays.asList("A1", "A2", "B1")), sheet.getPrecedents("C1"));
+    assertEquals(new HashSet<String>(Arrays.asList("B1", "C1")), sheet.getDependents("A2"));
+    assertEquals(Arrays.asList("A1", "A1:A3", "B1", "C1"), sheet.dag.findPath("A1", "C1"));
+    assertEquals(3, sheet.dag.getDepth("C1"));
+    sheet.setCell("A3", "=A2+1");
+    assertEquals(new HashSet<String>(Arrays.asList("A1", "A2", "A3", "B1")), sheet.getPrecedents("C1"));
+    assertTrue(sheet.dag.reaches("A3", "C1"));
+    assertEquals(4, sheet.dag.getDepth("C1"));
+    sheet.deleteCell("B1");
+    assertEquals(new HashSet<String>(Arrays.asList("B1")), sheet.getPrecedents("C1"));
+    assertFalse(sheet.dag.reaches("A1", "C1"));
+  }
+
+  // A deleted cell no formula reads leaves the ranges it was in
+  @Test public void precedents_deleted_member1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("B1", "=SUM(A1:A5)");
+    sheet.setCell("C1", "=B1*2");
+    sheet.setCell("A3", "4");
+    sheet.setCell("A4", "1");
+    sheet.setCell("D1", "=A4");
+    assertEquals(new HashSet<String>(Arrays.asList("A3", "A4", "B1")), sheet.getPrecedents("C1"));
+    sheet.deleteCell("A3");
+    sheet.setCells(Collections.singletonMap("A4", ""));
+    // D1 still reads A4
+    assertEquals(new HashSet<String>(Arrays.asList("A4", "B1")), sheet.getPrecedents("C1"));
+    assertEquals(new HashSet<String>(), sheet.getDependents("A3"));
+    assertEquals(new ArrayList<String>(), sheet.dag.findPath("A3", "C1"));
+    assertFalse(sheet.dag.reaches("A3", "C1"));
+    assertFalse(sheet.dag.hasNode("A3"));
+    sheet.setCell("A3", "5");
+    assertEquals(new HashSet<String>(Arrays.asList("A3", "A4", "B1")), sheet.getPrecedents("C1"));
+    assertEquals("10.0", sheet.getCellDisplayString("C1"));
+    try{
+      sheet.setCell("A3", "=C1");
+      fail("Cycle accepted");
+    }
+    catch(DAG.CycleException e){ }
+  }
+
+  // Everything a failed batch could have touched, for comparing
+  public static String state(Spreadsheet sheet){
+    List<String> ranges = new ArrayList<String>();
+    for (RangeIndex.Range r : sheet.ranges.ranges.values()){
+      ranges.add(r.id + "x" + r.uses);
+    }
+    Collections.sort(ranges);
+    List<String> links = new ArrayList<String>(Arrays.asList(sheet.dag.toString().split("\n")));
+    Collections.sort(links);
+    List<String> cells = new ArrayList<String>(Arrays.asList(sheet.toString().split("\n")));
+    Collections.sort(cells);
+    return cells + "\n" + links + "\n" + ranges;
+  }
+
+  // A batch which fails to parse or closes a cycle leaves the cells,
+  // the DAG and the ranges as they were
+  @Test public void setcells_failure_unchanged1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "1");
+    sheet.setCell("A2", "=A1+1");
+    sheet.setCell("B1", "=SUM(A1:A3)");
+    sheet.setCell("C1", "=B1*2");
+    String before = state(sheet);
+    Map<String, String> edits = new LinkedHashMap<String, String>();
+    edits.put("A3", "=SUM(A1:A2)");
+    edits.put("D1", "=MAX(A1:B2)");
+    edits.put("A1", "=1+");
+    try{
+      sheet.setCells(edits);
+      fail("Expected a parse error");
+    }
+    catch(RuntimeException e){ }
+    assertEquals(before, state(sheet));
+    edits.put("A1", "=C1");
+    try{
+      sheet.setCells(edits);
+      fail("Expected a cycle");
+    }
+    catch(DAG.CycleException e){ }
+    assertEquals(before, state(sheet));
+    sheet.setCell("A1", "5");
+    assertEquals("22.0", sheet.getCellDisplayString("C1"));
+  }
+
+  // Ranks handed out by batches near the limit are renumbered rather
+  // than overflowing, so cycles are still caught afterwards
+  @Test public void setcells_rank_limit1(){
+    Spreadsheet sheet = new Spreadsheet();
+    sheet.setCell("A1", "1");
+    for (int i = 1; i <= 500; i++){
+      sheet.setCell("C" + i, i == 1 ? "=A1" : "=C" + (i-1) + "+1");
+    }
+    // the next batch ranks its 501 cells across the limit
+    sheet.dag.nextRank = DAG.RANK_LIMIT - 250;
+    sheet.setCells(Collections.singletonMap("A1", "4"));
+    assertTrue(sheet.dag.nextRank < DAG.RANK_LIMIT);
+    assertEquals("503.0", sheet.getCellDisplayString("C500"));
+    try{
+      sheet.setCell("A1", "=C500");
+      fail("Expected a cycle");
+    }
+    catch(DAG.CycleException e){ }
+    sheet.setCell("A1", "10");
+    assertEquals("509.0", sheet.getCellDisplayString("C500"));
+  }
+}
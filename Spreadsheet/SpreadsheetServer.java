@@ -0,0 +1,314 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Serves the AckCellTextUI command set over a line protocol on the
+// loopback interface. Each request is one line and gets exactly one
+// response line, in order:
+//
+//   set ID CONTENTS   ->  OK | ERR message
+//   delete ID         ->  OK
+//   get ID            ->  VALUE display string
+//   contents ID       ->  CONTENTS contents
+//   save FILE         ->  OK | ERR message
+//   load FILE         ->  OK | ERR message
+//   quit              ->  BYE, then the connection is closed
+//
+// Connections are spread over a few event loops, each a thread running
+// a Selector over non-blocking channels, so tens of thousands of idle
+// or busy clients cost a buffer each rather than a thread each.
+// Clients may pipeline: every complete line in a read is answered and
+// the answers go out in a single write. A client that stops reading
+// its answers is not read from again until they drain.
+//
+// All loops share one ConcurrentSpreadsheet, so edits arriving on
+// different loops recalculate in parallel. Commands run on the loop
+// thread, so a slow save, load or large recalculation delays the other
+// clients of that loop only.
+public class SpreadsheetServer implements Closeable {
+  public static final int MAX_LINE = 1 << 20;
+
+  protected volatile ConcurrentSpreadsheet sheet;
+  protected ServerSocketChannel server;
+  protected Loop[] loops;
+  protected int nextLoop;
+
+  // Construct a server for the given sheet.
+  public SpreadsheetServer(ConcurrentSpreadsheet sheet){
+    this.sheet = sheet;
+  }
+
+  // Return the sheet currently served, which a load replaces.
+  public ConcurrentSpreadsheet getSheet(){
+    return sheet;
+  }
+
+  // Start listening on the loopback interface with the given number
+  // of event loops and return the port, which is chosen by the system
+  // if port is 0.
+  public int start(int port, int loopCount) throws IOException{
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+    server.configureBlocking(false);
+    loops = new Loop[loopCount];
+    for (int i = 0; i < loopCount; i++){
+      loops[i] = new Loop(i);
+    }
+    server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    for (Loop loop : loops){
+      loop.thread.start();
+    }
+    return ((InetSocketAddress) server.getLocalAddress()).getPort();
+  }
+
+  // Stop accepting, close every connection and wait for the loops.
+  public void close() throws IOException{
+    for (Loop loop : loops){
+      loop.running = false;
+      loop.selector.wakeup();
+    }
+    for (Loop loop : loops){
+      try{
+        loop.thread.join();
+      }
+      catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+      }
+    }
+    server.close();
+  }
+
+  // Run a request and return its response line without the newline.
+  protected String execute(String line){
+    ConcurrentSpreadsheet sheet = this.sheet;
+    String command = line.trim();
+    String arg = "";
+    int space = command.indexOf(' ');
+    if (space >= 0){
+      arg = command.substring(space + 1).trim();
+      command = command.substring(0, space);
+    }
+    try{
+      switch (command){
+        case "set": {
+          int split = arg.indexOf(' ');
+          String id = split < 0 ? arg : arg.substring(0, split);
+          String contents = split < 0 ? "" : arg.substring(split + 1).trim();
+          sheet.setCell(id, contents);
+          return "OK";
+        }
+        case "delete":
+          sheet.deleteCell(arg);
+          return "OK";
+        case "get": {
+          Cell cell = sheet.sheet.get(arg);
+          return "VALUE " + (cell == null ? "" : sheet.getCellDisplayString(arg));
+        }
+        case "contents": {
+          Cell cell = sheet.sheet.get(arg);
+          return "CONTENTS " + (cell == null ? "" : cell.contents());
+        }
+        case "save":
+          sheet.save(Paths.get(arg));
+          return "OK";
+        case "load":
+          try (FileChannel ch = FileChannel.open(Paths.get(arg), StandardOpenOption.READ)){
+            this.sheet = SheetSnapshot.read(ch, new ConcurrentSpreadsheet());
+          }
+          return "OK";
+        case "quit":
+          return "BYE";
+        default:
+          return "ERR Unrecognized command '" + command + "'";
+      }
+    }
+    catch(Exception e){
+      String msg = String.valueOf(e.getMessage()).replace('\n', ' ').replace('\r', ' ');
+      return "ERR " + msg;
+    }
+  }
+
+  // One selector thread and the connections assigned to it.
+  protected class Loop implements Runnable {
+    final Selector selector;
+    final Thread thread;
+    final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+    volatile boolean running = true;
+
+    Loop(int index) throws IOException{
+      selector = Selector.open();
+      thread = new Thread(this, "sheet-server-" + index);
+      thread.setDaemon(true);
+    }
+
+    public void run(){
+      try{
+        while (running){
+          selector.select();
+          SocketChannel ch;
+          while ((ch = incoming.poll()) != null){
+            ch.register(selector, SelectionKey.OP_READ, new Connection(ch));
+          }
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()){
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()){
+              continue;
+            }
+            try{
+              if (key.isAcceptable()){
+                accept();
+              }
+              else{
+                ((Connection) key.attachment()).ready(key);
+              }
+            }
+            catch(IOException e){
+              key.cancel();
+              key.channel().close();
+            }
+          }
+        }
+      }
+      catch(IOException e){
+        // the selector failed; nothing more can be served here
+      }
+      finally{
+        for (SelectionKey key : selector.keys()){
+          try{
+            key.channel().close();
+          }
+          catch(IOException e){ }
+        }
+        try{
+          selector.close();
+        }
+        catch(IOException e){ }
+      }
+    }
+
+    // Hand each waiting client to the next loop in turn.
+    void accept() throws IOException{
+      SocketChannel ch;
+      while ((ch = server.accept()) != null){
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Loop loop = loops[nextLoop++ % loops.length];
+        loop.incoming.add(ch);
+        loop.selector.wakeup();
+      }
+    }
+  }
+
+  // Buffers of one client.
+  protected class Connection {
+    final SocketChannel channel;
+    ByteBuffer in = ByteBuffer.allocate(4096);
+    ByteBuffer out = ByteBuffer.allocate(4096);
+    boolean closing;
+
+    Connection(SocketChannel channel){
+      this.channel = channel;
+      out.flip();
+    }
+
+    void ready(SelectionKey key) throws IOException{
+      if (key.isWritable()){
+        flush(key);
+      }
+      if (key.isValid() && key.isReadable() && !out.hasRemaining()){
+        read(key);
+      }
+    }
+
+    void read(SelectionKey key) throws IOException{
+      int n = channel.read(in);
+      if (n < 0){
+        key.cancel();
+        channel.close();
+        return;
+      }
+      // answer every complete line, keeping a partial one for later
+      in.flip();
+      StringBuilder answers = new StringBuilder();
+      int start = in.position();
+      for (int i = start; i < in.limit(); i++){
+        if (in.get(i) == '\n'){
+          String line = new String(in.array(), start, i - start, StandardCharsets.UTF_8);
+          start = i + 1;
+          if (line.trim().isEmpty()){
+            continue;
+          }
+          String answer = execute(line);
+          answers.append(answer).append('\n');
+          if (answer.equals("BYE")){
+            closing = true;
+            break;
+          }
+        }
+      }
+      in.position(start);
+      in.compact();
+      if (!in.hasRemaining()){
+        if (in.capacity() >= MAX_LINE){
+          answers.append("ERR Line too long\n");
+          closing = true;
+        }
+        else{
+          in = grow(in, in.capacity() * 2);
+        }
+      }
+      if (answers.length() > 0){
+        byte[] bytes = answers.toString().getBytes(StandardCharsets.UTF_8);
+        out = ByteBuffer.wrap(bytes);
+        flush(key);
+      }
+    }
+
+    // Write what is pending, waiting for the socket to drain if it
+    // cannot all go now.
+    void flush(SelectionKey key) throws IOException{
+      channel.write(out);
+      if (out.hasRemaining()){
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      if (closing){
+        key.cancel();
+        channel.close();
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  protected static ByteBuffer grow(ByteBuffer buf, int capacity){
+    ByteBuffer bigger = ByteBuffer.allocate(capacity);
+    buf.flip();
+    bigger.put(buf);
+    return bigger;
+  }
+
+  // Serve an empty sheet, or the snapshot named by the second
+  // argument, on the port given by the first (default 7310).
+  public static void main(String args[]) throws Exception{
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 7310;
+    ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+    if (args.length > 1){
+      try (FileChannel ch = FileChannel.open(Paths.get(args[1]), StandardOpenOption.READ)){
+        sheet = SheetSnapshot.read(ch, sheet);
+      }
+    }
+    SpreadsheetServer server = new SpreadsheetServer(sheet);
+    int loops = Runtime.getRuntime().availableProcessors();
+    port = server.start(port, loops);
+    System.out.printf("Serving on localhost:%d with %d loops\n", port, loops);
+    Thread.currentThread().join();
+  }
+}
@@ -0,0 +1,140 @@
+// Tests of the network server and its load generator
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.Test; // fixes some compile problems with annotations
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+
+public class SpreadsheetServerTests {
+  /*Main method runs tests in this file*/
+  public static void main(String args[])
+  {
+    org.junit.runner.JUnitCore.main("SpreadsheetServerTests");
+  }
+
+  // Global timeout for all tests: use argument to Timeout.millis( __ );
+  @Rule public Timeout globalTimeout = Timeout.millis(20000);
+
+  SpreadsheetServer server;
+  int port;
+
+  @Before public void setUp() throws IOException{
+    server = new SpreadsheetServer(new ConcurrentSpreadsheet());
+    port = server.start(0, 2);
+  }
+
+  @After public void tearDown() throws IOException{
+    server.close();
+  }
+
+  // Send the lines as one write and read one answer per line
+  public static List<String> converse(int port, String... lines) throws IOException{
+    try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port)){
+      StringBuilder sb = new StringBuilder();
+      for(String line : lines){
+        sb.append(line).append('\n');
+      }
+      OutputStream out = s.getOutputStream();
+      out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+      List<String> answers = new ArrayList<String>();
+      for(int i=0; i<lines.length; i++){
+        answers.add(in.readLine());
+      }
+      return answers;
+    }
+  }
+
+  // Pipelined commands are answered in order
+  @Test public void server_pipeline1() throws Exception{
+    List<String> answers = converse(port,
+                                    "set A1 5",
+                                    "set B1 =A1*2",
+                                    "get B1",
+                                    "contents B1",
+                                    "set A1 7",
+                                    "get B1",
+                                    "delete B1",
+                                    "get B1");
+    assertEquals(Arrays.asList("OK", "OK", "VALUE 10.0", "CONTENTS =A1*2",
+                               "OK", "VALUE 14.0", "OK", "VALUE "),
+                 answers);
+    assertEquals("7.0", server.getSheet().getCellDisplayString("A1"));
+  }
+
+  // Bad commands and bad formulas get ERR without closing the connection
+  @Test public void server_errors1() throws Exception{
+    List<String> answers = converse(port,
+                                    "frobnicate A1",
+                                    "set A1 =A1+1",
+                                    "set B1 =(",
+                                    "set C1 3",
+                                    "get C1");
+    assertTrue(answers.get(0), answers.get(0).startsWith("ERR"));
+    assertTrue(answers.get(1), answers.get(1).startsWith("ERR"));
+    assertTrue(answers.get(2), answers.get(2).startsWith("ERR"));
+    assertEquals("OK", answers.get(3));
+    assertEquals("VALUE 3.0", answers.get(4));
+  }
+
+  // quit answers BYE and closes the connection
+  @Test public void server_quit1() throws Exception{
+    try(Socket s = new Socket(InetAddress.getLoopbackAddress(), port)){
+      s.getOutputStream().write("quit\nset A1 1\n".getBytes(StandardCharsets.UTF_8));
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+      assertEquals("BYE", in.readLine());
+      assertNull(in.readLine());
+    }
+    assertFalse(server.getSheet().sheet.containsKey("A1"));
+  }
+
+  // A saved sheet can be loaded back after it has changed
+  @Test public void server_save_load1() throws Exception{
+    Path file = Files.createTempFile("server", ".acks");
+    try{
+      List<String> answers = converse(port,
+                                      "set A1 2",
+                                      "set A2 =A1+1",
+                                      "save " + file,
+                                      "set A1 10",
+                                      "get A2",
+                                      "load " + file,
+                                      "get A2",
+                                      "set A1 4",
+                                      "get A2");
+      assertEquals(Arrays.asList("OK", "OK", "OK", "OK", "VALUE 11.0",
+                                 "OK", "VALUE 3.0", "OK", "VALUE 5.0"),
+                   answers);
+      assertTrue(converse(port, "load " + file + ".missing").get(0).startsWith("ERR"));
+    }
+    finally{
+      Files.deleteIfExists(file);
+    }
+  }
+
+  // Many clients pipelining at once all see their own edits in order
+  @Test public void server_load1() throws Exception{
+    InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    SpreadsheetLoadGen.Result r = SpreadsheetLoadGen.run(addr, 200, 5, 8);
+    assertEquals(0, r.errors);
+    assertEquals(200 * (1 + 5 * 8), r.requests);
+    assertEquals(200 * 5, r.batchNanos.length);
+    ConcurrentSpreadsheetTests.checkConsistent(server.getSheet());
+  }
+
+  // A long line is read across several buffers
+  @Test public void server_long_line1() throws Exception{
+    StringBuilder sb = new StringBuilder("set A1 =1");
+    for(int i=0; i<3000; i++){
+      sb.append("+1");
+    }
+    List<String> answers = converse(port, sb.toString(), "get A1");
+    assertEquals(Arrays.asList("OK", "VALUE 3001.0"), answers);
+  }
+}
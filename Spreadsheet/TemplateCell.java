@@ -0,0 +1,62 @@
+import java.util.*;
+
+// A formula cell whose formula has the shape of a FormulaTemplate. It
+// stores no contents, tree or compiled formula of its own, only the
+// template and its address, and works everything else out from them.
+public class TemplateCell extends Cell {
+  protected final FormulaTemplate template;
+  protected final long anchor;
+  // Shared formula and the packed address of this cell.
+
+  // Construct a cell at anchor with the template's formula. Like any
+  // new formula cell it is in error until first evaluated.
+  public TemplateCell(FormulaTemplate template, long anchor){
+    this.template = template;
+    this.anchor = anchor;
+    this.kind = FORMULA;
+    this.error = true;
+  }
+
+  // Return the template.
+  public FormulaTemplate template(){
+    return template;
+  }
+
+  // Rebuild the contents from the template.
+  // Runtime Complexity: O(S)
+  @Override
+  public String contents(){
+    return template.contents(anchor);
+  }
+
+  // The template's body is shared; callers wanting a formula of their
+  // own use tree().
+  @Override
+  protected Formula compiled(){
+    return null;
+  }
+
+  // Parse the contents afresh, as the tree is not kept.
+  @Override
+  public FNode tree(){
+    return FormulaPool.simplify(FNode.parseFormulaString(contents()));
+  }
+
+  @Override
+  public String[] getRangeIDs(){
+    return template.rangeNames(anchor);
+  }
+
+  @Override
+  public Set<String> getUpstreamIDs(){
+    Set<String> set = new HashSet<String>();
+    Collections.addAll(set, template.refs(anchor));
+    Collections.addAll(set, template.rangeNames(anchor));
+    return set;
+  }
+
+  @Override
+  public void updateValue(Map<String,Cell> cellMap){
+    template.update(this, cellMap);
+  }
+}
@@ -6,7 +6,9 @@ public enum TokenType {
   Divide("/"),
   Negate("negate"),
   CellID("CellID"),
-  Number("Number");
+  Number("Number"),
+  Function("Function"),
+  Range("Range");
 
   // String representation of the token
   public String typeString;